@@ -0,0 +1,77 @@
+package com.raverun.match.server.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.raverun.match.server.api.Acknowledger;
+import com.raverun.match.server.impl.BatchingAcknowledger;
+import com.raverun.match.server.impl.TxAcknowledger;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Acknowledged messages/sec for {@code rabbitmq.ack.strategy=tx} versus {@code batched}
+ * when every synchronous broker call costs {@code roundTripMicros}. The {@code roundTrips}
+ * counter shows how many of those calls each strategy made.
+ */
+@State( Scope.Thread )
+@Fork( 1 )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+public class AckBenchmark
+{
+    @Param( { "0", "100" } )
+    public int roundTripMicros;
+
+    @Param( { "TX", "BATCHED" } )
+    public String strategy;
+
+    @Setup( Level.Trial )
+    public void setUp() throws Exception
+    {
+        broker = new InMemoryBroker( roundTripMicros * 1000L );
+        Channel channel = broker.createChannel();
+
+        if( strategy.equals( "TX" ) )
+            acker = new TxAcknowledger( channel );
+        else
+            acker = new BatchingAcknowledger( channel, 10, 200, TimeUnit.MILLISECONDS );
+    }
+
+    @Benchmark
+    public void ack( Counters counters ) throws Exception
+    {
+        long tag = ++deliveryTag;
+        acker.register( tag );
+        acker.ack( tag );
+
+        counters.roundTrips = broker.roundTrips();
+        counters.ackFrames = broker.ackFrames();
+    }
+
+    @AuxCounters( AuxCounters.Type.EVENTS )
+    @State( Scope.Thread )
+    public static class Counters
+    {
+        public long roundTrips;
+        public long ackFrames;
+    }
+
+    private InMemoryBroker broker;
+    private Acknowledger acker;
+    private long deliveryTag;
+}
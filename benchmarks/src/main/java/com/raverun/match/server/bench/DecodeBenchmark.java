@@ -0,0 +1,111 @@
+package com.raverun.match.server.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.raverun.match.api.MatchParam;
+import com.raverun.match.server.api.MatchParamCodec;
+import com.raverun.match.server.impl.CompactMatchParamCodec;
+import com.raverun.match.server.impl.MatchParamCodecs;
+import com.raverun.match.server.impl.SerializedMatchParamCodec;
+
+/**
+ * Cost of decoding one request in each wire format, through the codecs that
+ * {@code MatchParamCodecs} picks for their content-types. Run with {@code -prof gc} for the
+ * bytes allocated per decode.
+ * <p>
+ * The body starts {@code offset} bytes into its buffer, as it would in a larger delivery
+ * buffer; at 0 the serialized format goes through {@code MatchParam.deserialize}.
+ * <p>
+ * The request is a {@code MatchParam} with a sample value in every property, or the one
+ * serialized in the file named by the system property {@code bench.body}
+ * (e.g. {@code -jvmArgs -Dbench.body=/tmp/match.bin}), captured from the queue.
+ */
+@State( Scope.Benchmark )
+@Fork( 1 )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+public class DecodeBenchmark
+{
+    @Param( { "0", "16" } )
+    public int offset;
+
+    @Setup( Level.Trial )
+    public void setUp() throws IOException
+    {
+        MatchParamCodecs codecs = new MatchParamCodecs( Stubs.configuration( new HashMap<String, String>() ) );
+        serializedCodec = codecs.codecFor( SerializedMatchParamCodec.CONTENT_TYPE );
+        compactCodec = codecs.codecFor( CompactMatchParamCodec.CONTENT_TYPE );
+        if( !( compactCodec instanceof CompactMatchParamCodec ) )
+            throw new IllegalStateException( CompactMatchParamCodec.CONTENT_TYPE + " is not registered; see the log" );
+
+        final String path = System.getProperty( "bench.body" );
+        final byte[] captured = ( path == null ) ? null : FileUtils.readFileToByteArray( new File( path ) );
+        final MatchParam param = ( captured == null ) ? Stubs.sampleParam() : MatchParam.deserialize( captured );
+
+        final byte[] serialized = ( captured == null ) ? serialize( param ) : captured;
+        final byte[] compact = ((CompactMatchParamCodec)compactCodec).encode( param );
+        serializedBuffer = at( offset, serialized );
+        serializedLength = serialized.length;
+        compactBuffer = at( offset, compact );
+        compactLength = compact.length;
+    }
+
+    @Benchmark
+    public MatchParam serialized()
+    {
+        return serializedCodec.decode( serializedBuffer, offset, serializedLength );
+    }
+
+    @Benchmark
+    public MatchParam compact()
+    {
+        return compactCodec.decode( compactBuffer, offset, compactLength );
+    }
+
+    private static byte[] serialize( MatchParam param ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream( bytes );
+        out.writeObject( param );
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * {@code body} copied {@code offset} bytes into a buffer with as much room after it
+     */
+    private static byte[] at( int offset, byte[] body )
+    {
+        byte[] buffer = new byte[ offset + body.length + offset ];
+        System.arraycopy( body, 0, buffer, offset, body.length );
+        return buffer;
+    }
+
+    private MatchParamCodec serializedCodec;
+    private MatchParamCodec compactCodec;
+    private byte[] serializedBuffer;
+    private int serializedLength;
+    private byte[] compactBuffer;
+    private int compactLength;
+}
@@ -0,0 +1,105 @@
+package com.raverun.match.server.bench;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.raverun.match.server.impl.MatchDispatcher;
+import com.raverun.match.server.metrics.MatchMetrics;
+
+/**
+ * Dispatch on its own, without AMQP or decoding: tasks/sec through the worker pool
+ * when each task takes {@code taskMicros}.
+ * <ul>
+ * <li>{@code serial} submits and waits for every task, which is what {@code timedRun} used to do
+ * <li>{@code bounded} goes through {@code MatchDispatcher} with {@code workers} tasks in flight
+ * </ul>
+ */
+@State( Scope.Benchmark )
+@Fork( 1 )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+public class DispatchBenchmark
+{
+    @Param( { "0", "200" } )
+    public int taskMicros;
+
+    @Param( { "20" } )
+    public int workers;
+
+    @Setup( Level.Trial )
+    public void setUp()
+    {
+        executor = Executors.newFixedThreadPool( workers );
+        dispatcher = new MatchDispatcher( executor, workers, 20, TimeUnit.SECONDS, "bench", new MatchMetrics() );
+
+        final long latencyNanos = taskMicros * 1000L;
+        task = new Runnable()
+        {
+            public void run()
+            {
+                if( latencyNanos > 0 )
+                    LockSupport.parkNanos( latencyNanos );
+                completed.release();
+            }
+        };
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws InterruptedException
+    {
+        dispatcher.shutdown();
+        executor.shutdown();
+        executor.awaitTermination( 5, TimeUnit.SECONDS );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( BURST )
+    public void serial() throws Exception
+    {
+        for( int i = 0; i < BURST; i++ )
+        {
+            Future<?> future = executor.submit( task );
+            future.get( 20, TimeUnit.SECONDS );
+        }
+        completed.acquire( BURST );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( BURST )
+    public void bounded() throws Exception
+    {
+        for( int i = 0; i < BURST; i++ )
+            dispatcher.dispatch( task );
+
+        completed.acquire( BURST );
+    }
+
+    static final int BURST = 1000;
+
+    private ExecutorService executor;
+    private MatchDispatcher dispatcher;
+    private Runnable task;
+
+    private final Semaphore completed = new Semaphore( 0 );
+}
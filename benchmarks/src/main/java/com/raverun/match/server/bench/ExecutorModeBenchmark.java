@@ -0,0 +1,107 @@
+package com.raverun.match.server.bench;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.raverun.match.server.impl.MatchDispatcher;
+import com.raverun.match.server.impl.NamedThreadFactory;
+import com.raverun.match.server.impl.ThreadPerTaskExecutor;
+import com.raverun.match.server.metrics.MatchMetrics;
+
+/**
+ * {@code daemon.executor.mode=pool} against {@code daemon.executor.mode=virtual} for tasks that
+ * block for {@code blockMicros}, the way a match blocks on JDBC: tasks/sec through {@code MatchDispatcher}.
+ * <ul>
+ * <li>{@code pool}: {@code concurrency} platform threads
+ * <li>{@code virtual}: a virtual thread per task, {@code concurrency} running at once (the {@code db.maxactive} limit)
+ * </ul>
+ * Run on JDK 21 or later; on older JVMs {@code virtual} falls back to a platform thread per task.
+ */
+@State( Scope.Benchmark )
+@Fork( 1 )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+public class ExecutorModeBenchmark
+{
+    @Param( { "pool", "virtual" } )
+    public String mode;
+
+    @Param( { "20", "100" } )
+    public int concurrency;
+
+    @Param( { "1000" } )
+    public int blockMicros;
+
+    @Setup( Level.Trial )
+    public void setUp()
+    {
+        if( mode.equals( "virtual" ) )
+        {
+            ThreadFactory factory = ThreadPerTaskExecutor.virtualThreadFactory( "bench" );
+            if( factory == null )
+                factory = new NamedThreadFactory( "bench", true, true );
+            executor = new ThreadPerTaskExecutor( factory, concurrency );
+        }
+        else
+            executor = Executors.newFixedThreadPool( concurrency );
+
+        dispatcher = new MatchDispatcher( executor, BURST, 20, TimeUnit.SECONDS, "bench", new MatchMetrics() );
+
+        final long blockNanos = blockMicros * 1000L;
+        task = new Runnable()
+        {
+            public void run()
+            {
+                LockSupport.parkNanos( blockNanos );
+                completed.release();
+            }
+        };
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws InterruptedException
+    {
+        dispatcher.shutdown();
+        executor.shutdown();
+        executor.awaitTermination( 5, TimeUnit.SECONDS );
+    }
+
+    @Benchmark
+    @OperationsPerInvocation( BURST )
+    public void blocking() throws Exception
+    {
+        for( int i = 0; i < BURST; i++ )
+            dispatcher.dispatch( task );
+
+        completed.acquire( BURST );
+    }
+
+    static final int BURST = 1000;
+
+    private ExecutorService executor;
+    private MatchDispatcher dispatcher;
+    private Runnable task;
+
+    private final Semaphore completed = new Semaphore( 0 );
+}
@@ -0,0 +1,25 @@
+package com.raverun.match.server.bench;
+
+import com.raverun.match.api.MatchParam;
+import com.raverun.match.server.api.MatchParamCodec;
+
+/**
+ * Answers every message with the same placeholder {@code MatchParam}, so that the
+ * pipeline benchmarks measure everything but decoding. {@code DecodeBenchmark} covers that.
+ */
+public class FixtureCodec implements MatchParamCodec
+{
+    public String contentType()
+    {
+        return CONTENT_TYPE;
+    }
+
+    public MatchParam decode( byte[] buffer, int offset, int length )
+    {
+        return PARAM;
+    }
+
+    public static final String CONTENT_TYPE = "application/x-match-bench";
+
+    private static final MatchParam PARAM = Stubs.placeholderParam();
+}
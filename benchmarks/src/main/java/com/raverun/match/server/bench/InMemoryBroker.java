@@ -0,0 +1,303 @@
+package com.raverun.match.server.bench;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.jcip.annotations.GuardedBy;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+
+/**
+ * An in-process stand-in for a rabbitmq broker holding a single queue.
+ * <p>
+ * Messages {@link #publish(byte[], String) published} while consumers are registered are
+ * pushed to them round-robin on the publishing thread; otherwise they wait for 
+ * {@code basic.get}. As on a real broker, a channel's {@code basic.qos} prefetch count caps
+ * the deliveries pushed to it that are not acknowledged yet; messages for which no channel has
+ * room wait, and are pushed on the thread whose {@code basic.ack} makes room. A message
+ * published back by a consumer (a requeue) joins the end of the queue. Synchronous AMQP methods ({@code tx.select}, {@code tx.commit},
+ * {@code basic.get}, {@code basic.qos} and the declarations) park the caller for
+ * {@code roundTripNanos} to model the network round-trip to a real broker. 
+ * {@code basic.ack} and {@code basic.publish} are asynchronous in AMQP and cost nothing here.
+ */
+public class InMemoryBroker
+{
+    public InMemoryBroker( long roundTripNanos )
+    {
+        this.roundTripNanos = roundTripNanos;
+        this.connection = Stubs.stub( Connection.class, new ConnectionHandler() );
+    }
+
+    public Connection connection()
+    {
+        return connection;
+    }
+
+    public Channel createChannel()
+    {
+        return newChannel();
+    }
+
+    public void publish( byte[] body, String contentType ) throws IOException
+    {
+        AMQP.BasicProperties props = new AMQP.BasicProperties();
+        props.setContentType( contentType );
+
+        queue.add( new Message( props, body ) );
+        push();
+    }
+
+    public int consumerCount()
+    {
+        return consumers.size();
+    }
+
+    /**
+     * @return number of {@code basic.ack} frames received (one may cover many deliveries)
+     */
+    public long ackFrames()
+    {
+        return ackFrames.get();
+    }
+
+    /**
+     * @return number of messages published back by the consumer side (requeues)
+     */
+    public long republished()
+    {
+        return republished.get();
+    }
+
+    public long roundTrips()
+    {
+        return roundTrips.get();
+    }
+
+    private Channel newChannel()
+    {
+        return Stubs.stub( Channel.class, new ChannelHandler( channelNumbers.incrementAndGet() ) );
+    }
+
+    /**
+     * Pushes waiting messages to the consumers whose channels have room, in turn
+     */
+    private void push() throws IOException
+    {
+        synchronized( deliveries )
+        {
+            while( !queue.isEmpty() )
+            {
+                Registration registration = nextWithRoom();
+                if( registration == null )
+                    return;
+
+                Message message = queue.poll();
+                registration.consumer.handleDelivery( registration.consumerTag, 
+                    new Envelope( registration.channel.delivered(), false, "", QUEUE ), message.props, message.body );
+            }
+        }
+    }
+
+    private Registration nextWithRoom()
+    {
+        final int count = consumers.size();
+        for( int i = 0; i < count; i++ )
+        {
+            Registration registration = consumers.get( ( next++ & Integer.MAX_VALUE ) % count );
+            if( registration.channel.hasRoom() )
+                return registration;
+        }
+        return null;
+    }
+
+    private void roundTrip()
+    {
+        roundTrips.incrementAndGet();
+        if( roundTripNanos > 0 )
+            LockSupport.parkNanos( roundTripNanos );
+    }
+
+    private final class ConnectionHandler implements InvocationHandler
+    {
+        public Object invoke( Object proxy, Method method, Object[] args )
+        {
+            final String name = method.getName();
+            if( name.equals( "createChannel" ) )
+                return newChannel();
+            if( name.equals( "isOpen" ) )
+                return Boolean.TRUE;
+
+            return Stubs.answer( proxy, method, args );
+        }
+    }
+
+    private final class ChannelHandler implements InvocationHandler
+    {
+        ChannelHandler( int number )
+        {
+            this.number = number;
+        }
+
+        public Object invoke( Object proxy, Method method, Object[] args ) throws IOException
+        {
+            final String name = method.getName();
+
+            if( name.equals( "basicAck" ) )
+            {
+                ackFrames.incrementAndGet();
+                acked( ((Long)args[ 0 ]).longValue(), ((Boolean)args[ 1 ]).booleanValue() );
+                push();
+                return null;
+            }
+            if( name.equals( "basicPublish" ) )
+            {
+                republished.incrementAndGet();
+                queue.add( new Message( (AMQP.BasicProperties)args[ args.length - 2 ], (byte[])args[ args.length - 1 ] ) );
+                push();
+                return null;
+            }
+            if( name.equals( "basicQos" ) )
+            {
+                roundTrip();
+                synchronized( deliveries )
+                {
+                    prefetch = ((Integer)args[ args.length == 1 ? 0 : 1 ]).intValue();
+                }
+                push();
+                return null;
+            }
+            if( name.equals( "basicGet" ) )
+            {
+                roundTrip();
+                Message message = queue.poll();
+                if( message == null )
+                    return null;
+
+                return new GetResponse( new Envelope( deliveryTags.incrementAndGet(), false, "", QUEUE ), 
+                    message.props, message.body, queue.size() );
+            }
+            if( name.equals( "basicConsume" ) )
+            {
+                roundTrip();
+                for( Object arg : args )
+                {
+                    if( arg instanceof Consumer )
+                    {
+                        String consumerTag = "bench-" + number;
+                        consumers.add( new Registration( this, (Consumer)arg, consumerTag ) );
+                        push();
+                        return consumerTag;
+                    }
+                }
+                throw new IllegalArgumentException( "no Consumer passed to basicConsume" );
+            }
+            if( name.equals( "txSelect" ) || name.equals( "txCommit" ) 
+                || name.endsWith( "Declare" ) || name.equals( "queueBind" ) )
+            {
+                roundTrip();
+                return null;
+            }
+            if( name.equals( "isOpen" ) )
+                return Boolean.TRUE;
+            if( name.equals( "getChannelNumber" ) )
+                return number;
+            if( name.equals( "getConnection" ) )
+                return connection;
+
+            return Stubs.answer( proxy, method, args );
+        }
+
+        /**
+         * @return the tag of a delivery pushed to this channel, which now awaits its ack
+         */
+        long delivered()
+        {
+            synchronized( deliveries )
+            {
+                final long tag = deliveryTags.incrementAndGet();
+                unacked.add( tag );
+                return tag;
+            }
+        }
+
+        boolean hasRoom()
+        {
+            synchronized( deliveries )
+            {
+                return prefetch == 0 || unacked.size() < prefetch;
+            }
+        }
+
+        private void acked( long tag, boolean multiple )
+        {
+            synchronized( deliveries )
+            {
+                if( multiple )
+                    unacked.headSet( tag, true ).clear();
+                else
+                    unacked.remove( tag );
+            }
+        }
+
+        private final int number;
+        private final AtomicLong deliveryTags = new AtomicLong();
+
+        /** pushed deliveries not acked yet; {@code basic.get} does not count against the prefetch */
+        @GuardedBy("deliveries") private final NavigableSet<Long> unacked = new TreeSet<Long>();
+        @GuardedBy("deliveries") private int prefetch;
+    }
+
+    private static final class Registration
+    {
+        Registration( ChannelHandler channel, Consumer consumer, String consumerTag )
+        {
+            this.channel = channel;
+            this.consumer = consumer;
+            this.consumerTag = consumerTag;
+        }
+
+        final ChannelHandler channel;
+        final Consumer consumer;
+        final String consumerTag;
+    }
+
+    private static final class Message
+    {
+        Message( AMQP.BasicProperties props, byte[] body )
+        {
+            this.props = props;
+            this.body = body;
+        }
+
+        final AMQP.BasicProperties props;
+        final byte[] body;
+    }
+
+    public static final String QUEUE = "mqueue.bench";
+
+    private final long roundTripNanos;
+    private final Connection connection;
+    private final Queue<Message> queue = new ConcurrentLinkedQueue<Message>();
+    private final List<Registration> consumers = new CopyOnWriteArrayList<Registration>();
+    private final Object deliveries = new Object();
+    @GuardedBy("deliveries") private int next;
+    private final AtomicInteger channelNumbers = new AtomicInteger();
+    private final AtomicLong ackFrames = new AtomicLong();
+    private final AtomicLong republished = new AtomicLong();
+    private final AtomicLong roundTrips = new AtomicLong();
+}
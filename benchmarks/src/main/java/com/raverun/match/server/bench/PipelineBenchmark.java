@@ -0,0 +1,200 @@
+package com.raverun.match.server.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.inject.Provider;
+import com.raverun.match.api.MatchHandler;
+import com.raverun.match.api.MatchParam;
+import com.raverun.match.server.api.BatchMatchHandler;
+import com.raverun.match.server.api.MatcherRunnableFactory;
+import com.raverun.match.server.impl.BodyMatchKeyExtractor;
+import com.raverun.match.server.impl.DefaultPoller;
+import com.raverun.match.server.impl.ExecutorServiceProvider;
+import com.raverun.match.server.impl.InFlightLimits;
+import com.raverun.match.server.impl.MatchParamCodecs;
+import com.raverun.match.server.impl.MatcherRunnable;
+import com.raverun.match.server.impl.RedeliveryTracker;
+import com.raverun.match.server.impl.RequestCoalescer;
+import com.raverun.match.server.impl.StripeKeyExtractor;
+import com.raverun.match.server.metrics.MatchMetrics;
+import com.raverun.shared.Configuration;
+import com.raverun.shared.StageMapper;
+import com.rabbitmq.client.Connection;
+
+/**
+ * The whole consume &rarr; dispatch &rarr; match pipeline: a {@code DefaultPoller} in push mode
+ * with its executor from {@code ExecutorServiceProvider}, running {@code MatcherRunnable}s,
+ * against an {@code InMemoryBroker} and a stub {@code MatchHandler} that takes
+ * {@code handlerMicros} per request. Everything else is configured as in production, from
+ * the settings below.
+ * <ul>
+ * <li>{@code throughput} publishes {@code BURST} messages and waits for all of them to be matched: messages/sec
+ * <li>{@code latency} publishes one message and waits for it: p50/p99 queue-to-completion in the SampleTime histogram
+ * </ul>
+ * Run with {@code -prof gc} for allocation per message.
+ */
+@State( Scope.Benchmark )
+@Fork( 1 )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+public class PipelineBenchmark
+{
+    @Param( { "0", "200" } )
+    public int handlerMicros;
+
+    @Param( { "1", "3" } )
+    public int channels;
+
+    @Param( { "20" } )
+    public int workers;
+
+    @Param( { "BEFORE", "AFTER" } )
+    public String ackMode;
+
+    @Setup( Level.Trial )
+    public void setUp() throws Exception
+    {
+        broker = new InMemoryBroker( 0 );
+
+        Map<String, String> settings = new HashMap<String, String>();
+        settings.put( "daemon.codecs", FixtureCodec.class.getName() );
+        settings.put( "daemon.consume.mode", "push" );
+        settings.put( "daemon.ack.mode", ackMode );
+        settings.put( "daemon.threadpool.size", String.valueOf( workers ) );
+        settings.put( "daemon.inflight.max", String.valueOf( workers ) );
+        settings.put( "rabbitmq.channel.per.connection", String.valueOf( channels ) );
+        settings.put( "rabbitmq.queuename.match", InMemoryBroker.QUEUE );
+        settings.put( "rabbitmq.exchange.match", "mexchange.bench" );
+        final Configuration config = Stubs.configuration( settings );
+
+        final MatchMetrics metrics = new MatchMetrics();
+        executorProvider = new ExecutorServiceProvider( config, metrics );
+
+        final MatchHandler matchHandler = stubHandler( handlerMicros * 1000L, completed );
+        final StripeKeyExtractor stripeKeys = new StripeKeyExtractor( config );
+        MatcherRunnableFactory runnableFactory = new MatcherRunnableFactory()
+        {
+            public Runnable create( MatchParam param, Object key )
+            {
+                return new MatcherRunnable( matchHandler, stripeKeys, param, key );
+            }
+        };
+
+        poller = new DefaultPoller( constant( broker.connection() ), config, Stubs.stub( StageMapper.class, ANSWER ),
+            Stubs.dbLogger(), executorProvider, runnableFactory, Stubs.stub( BatchMatchHandler.class, ANSWER ),
+            new RedeliveryTracker( config ), new RequestCoalescer( config ), new BodyMatchKeyExtractor(), 
+            new MatchParamCodecs( config ), new InFlightLimits( config, metrics ), metrics, 1 );
+        poller.start();
+
+        while( broker.consumerCount() < channels )
+            Thread.sleep( 1 );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws InterruptedException
+    {
+        poller.stop();
+        poller.join();
+        executorProvider.drain();
+    }
+
+    @Benchmark
+    @BenchmarkMode( Mode.Throughput )
+    @OutputTimeUnit( TimeUnit.SECONDS )
+    @OperationsPerInvocation( BURST )
+    public void throughput() throws Exception
+    {
+        for( int i = 0; i < BURST; i++ )
+            broker.publish( body(), FixtureCodec.CONTENT_TYPE );
+
+        completed.acquire( BURST );
+    }
+
+    @Benchmark
+    @BenchmarkMode( Mode.SampleTime )
+    @OutputTimeUnit( TimeUnit.MICROSECONDS )
+    public void latency() throws Exception
+    {
+        broker.publish( body(), FixtureCodec.CONTENT_TYPE );
+        completed.acquire();
+    }
+
+    /**
+     * Distinct bodies, so nothing could be coalesced even if it were enabled
+     */
+    private byte[] body()
+    {
+        return ByteBuffer.allocate( 8 ).putLong( sequence++ ).array();
+    }
+
+    /**
+     * A {@code MatchHandler} that parks for {@code latencyNanos} per request and then releases {@code completed}
+     */
+    static MatchHandler stubHandler( final long latencyNanos, final Semaphore completed )
+    {
+        return Stubs.stub( MatchHandler.class, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args )
+            {
+                if( !method.getName().equals( "process" ) )
+                    return Stubs.answer( proxy, method, args );
+
+                if( latencyNanos > 0 )
+                    LockSupport.parkNanos( latencyNanos );
+
+                completed.release();
+                return Stubs.zero( method.getReturnType() );
+            }
+        } );
+    }
+
+    static <T> Provider<T> constant( final T value )
+    {
+        return new Provider<T>()
+        {
+            public T get()
+            {
+                return value;
+            }
+        };
+    }
+
+    static final int BURST = 1000;
+
+    private static final InvocationHandler ANSWER = new InvocationHandler()
+    {
+        public Object invoke( Object proxy, Method method, Object[] args )
+        {
+            return Stubs.answer( proxy, method, args );
+        }
+    };
+
+    private InMemoryBroker broker;
+    private ExecutorServiceProvider executorProvider;
+    private DefaultPoller poller;
+    private long sequence;
+
+    private final Semaphore completed = new Semaphore( 0 );
+}
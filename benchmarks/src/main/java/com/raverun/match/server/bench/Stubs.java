@@ -0,0 +1,209 @@
+package com.raverun.match.server.bench;
+
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.Map;
+
+import com.raverun.match.api.MatchParam;
+import com.raverun.shared.Configuration;
+import com.raverun.shared.services.DbLogger;
+
+/**
+ * Stand-ins for the collaborators that normally come out of the Guice injector.
+ * <p>
+ * They are dynamic proxies so that the benchmarks keep compiling whatever else 
+ * those interfaces grow.
+ */
+public final class Stubs
+{
+    /**
+     * {@code s(key)} answers from {@code values}; {@code i(key, default)} parses it or falls back to the default
+     */
+    public static Configuration configuration( final Map<String, String> values )
+    {
+        return stub( Configuration.class, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args )
+            {
+                if( method.getName().equals( "s" ) && args != null && args.length == 1 )
+                    return values.get( args[ 0 ] );
+
+                if( method.getName().equals( "i" ) && args != null && args.length == 2 )
+                {
+                    String value = values.get( args[ 0 ] );
+                    return ( value == null ) ? args[ 1 ] : Integer.valueOf( value.trim() );
+                }
+
+                return answer( proxy, method, args );
+            }
+        } );
+    }
+
+    /**
+     * Discards every log row
+     */
+    public static DbLogger dbLogger()
+    {
+        return stub( DbLogger.class, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args )
+            {
+                return answer( proxy, method, args );
+            }
+        } );
+    }
+
+    public static <T> T stub( Class<T> type, InvocationHandler handler )
+    {
+        return type.cast( Proxy.newProxyInstance( type.getClassLoader(), new Class<?>[] { type }, handler ) );
+    }
+
+    /**
+     * A {@code MatchParam} for the pipeline to pass around: {@link #sampleParam()} if
+     * {@code MatchParam} has a public no-argument constructor, otherwise one read from a
+     * serialization stream that carries none of its fields. Stub handlers must not rely on its values.
+     */
+    public static MatchParam placeholderParam()
+    {
+        try
+        {
+            MatchParam.class.getConstructor();
+            return sampleParam();
+        }
+        catch( NoSuchMethodException e )
+        {
+            return withoutFields();
+        }
+    }
+
+    private static MatchParam withoutFields()
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( bytes );
+            out.writeShort( ObjectStreamConstants.STREAM_MAGIC );
+            out.writeShort( ObjectStreamConstants.STREAM_VERSION );
+            out.writeByte( ObjectStreamConstants.TC_OBJECT );
+            out.writeByte( ObjectStreamConstants.TC_CLASSDESC );
+            out.writeUTF( MatchParam.class.getName() );
+            out.writeLong( ObjectStreamClass.lookup( MatchParam.class ).getSerialVersionUID() );
+            out.writeByte( ObjectStreamConstants.SC_SERIALIZABLE );
+            out.writeShort( 0 ); // no fields
+            out.writeByte( ObjectStreamConstants.TC_ENDBLOCKDATA );
+            out.writeByte( ObjectStreamConstants.TC_NULL ); // no serializable superclass
+            out.close();
+
+            return (MatchParam)new ObjectInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ).readObject();
+        }
+        catch( Exception e )
+        {
+            throw new IllegalStateException( "cannot create a placeholder MatchParam", e );
+        }
+    }
+
+    /**
+     * A {@code MatchParam} with a sample value in every property that has a public getter and setter
+     *
+     * @throws IllegalStateException if {@code MatchParam} has no public no-argument constructor
+     */
+    public static MatchParam sampleParam()
+    {
+        try
+        {
+            MatchParam param = MatchParam.class.newInstance();
+            for( PropertyDescriptor property : Introspector.getBeanInfo( MatchParam.class, Object.class ).getPropertyDescriptors() )
+            {
+                if( property.getReadMethod() != null && property.getWriteMethod() != null )
+                {
+                    Object value = sample( property.getName(), property.getPropertyType() );
+                    if( value != null )
+                        property.getWriteMethod().invoke( param, value );
+                }
+            }
+            return param;
+        }
+        catch( Exception e )
+        {
+            throw new IllegalStateException( "cannot fill a sample MatchParam", e );
+        }
+    }
+
+    static Object sample( String name, Class<?> type )
+    {
+        if( type == String.class )
+            return "sample " + name;
+        if( type == Date.class )
+            return new Date( 1262304000000L );
+        if( type.isEnum() )
+            return type.getEnumConstants()[ 0 ];
+        if( type == boolean.class || type == Boolean.class )
+            return Boolean.TRUE;
+        if( type == char.class || type == Character.class )
+            return Character.valueOf( 'x' );
+        if( type == byte.class || type == Byte.class )
+            return Byte.valueOf( (byte)42 );
+        if( type == short.class || type == Short.class )
+            return Short.valueOf( (short)4242 );
+        if( type == int.class || type == Integer.class )
+            return Integer.valueOf( 424242 );
+        if( type == long.class || type == Long.class )
+            return Long.valueOf( 4242424242L );
+        if( type == float.class || type == Float.class )
+            return Float.valueOf( 42.5f );
+        if( type == double.class || type == Double.class )
+            return Double.valueOf( 42.5 );
+        return null;
+    }
+
+    /**
+     * Identity semantics for {@code Object} methods, a zero value for everything else
+     */
+    static Object answer( Object proxy, Method method, Object[] args )
+    {
+        final String name = method.getName();
+        if( name.equals( "equals" ) && args != null && args.length == 1 )
+            return proxy == args[ 0 ];
+        if( name.equals( "hashCode" ) && args == null )
+            return System.identityHashCode( proxy );
+        if( name.equals( "toString" ) && args == null )
+            return "stub " + proxy.getClass().getInterfaces()[ 0 ].getSimpleName();
+
+        return zero( method.getReturnType() );
+    }
+
+    static Object zero( Class<?> type )
+    {
+        if( !type.isPrimitive() || type == void.class )
+            return null;
+        if( type == boolean.class )
+            return Boolean.FALSE;
+        if( type == char.class )
+            return Character.valueOf( (char)0 );
+        if( type == byte.class )
+            return Byte.valueOf( (byte)0 );
+        if( type == short.class )
+            return Short.valueOf( (short)0 );
+        if( type == int.class )
+            return Integer.valueOf( 0 );
+        if( type == long.class )
+            return Long.valueOf( 0 );
+        if( type == float.class )
+            return Float.valueOf( 0 );
+        return Double.valueOf( 0 );
+    }
+
+    private Stubs()
+    {
+    }
+}
@@ -13,16 +13,28 @@ import com.google.inject.assistedinject.FactoryProvider;
 import com.google.inject.name.Names;
 import com.raverun.match.api.MatchHandler;
 import com.raverun.match.logic.MatchHandlerImpl;
+import com.raverun.match.server.api.BatchMatchHandler;
+import com.raverun.match.server.api.CandidateIndex;
 import com.raverun.match.server.api.MatchDaemon;
+import com.raverun.match.server.api.MatchKeyExtractor;
 import com.raverun.match.server.api.MatcherRunnableFactory;
 import com.raverun.match.server.api.PollerFactory;
 import com.raverun.match.server.api.RetryPolicy;
+import com.raverun.match.server.api.RowWriter;
 import com.raverun.match.server.db.DbConnectionProvider;
+import com.raverun.match.server.db.DeferredDataSource;
+import com.raverun.match.server.db.PooledDataSourceProvider;
+import com.raverun.match.server.impl.AsyncDbLogger;
+import com.raverun.match.server.impl.BodyMatchKeyExtractor;
+import com.raverun.match.server.impl.CachingMatchHandler;
 import com.raverun.match.server.impl.MatcherRunnable;
 import com.raverun.match.server.impl.DefaultMatchDaemon;
 import com.raverun.match.server.impl.DefaultPoller;
-import com.raverun.match.server.impl.DefaultRetryPolicy;
 import com.raverun.match.server.impl.ExecutorServiceProvider;
+import com.raverun.match.server.impl.LoopingBatchMatchHandler;
+import com.raverun.match.server.impl.RetryPolicyProvider;
+import com.raverun.match.server.impl.SqlCandidateIndex;
+import com.raverun.match.server.impl.WriteBehindRowWriter;
 import com.raverun.queue.QueueConnectionProvider;
 import com.raverun.shared.Configuration;
 import com.raverun.shared.Obfuscator;
@@ -32,7 +44,6 @@ import com.raverun.shared.impl.FileConfiguration;
 import com.raverun.shared.impl.ObfuscatorJasypt;
 import com.raverun.shared.impl.ObfuscatorRot47;
 import com.raverun.shared.impl.StageMapperImpl;
-import com.raverun.shared.persistence.DataSourceProvider;
 import com.raverun.shared.services.DbLogger;
 import com.raverun.shared.services.impl.DbLoggerImpl;
 import com.rabbitmq.client.Connection;
@@ -67,19 +78,34 @@ public class GuiceModule extends AbstractModule
             break;
         }
 
-        bind( DataSource.class ).toProvider( DataSourceProvider.class ).in( Scopes.SINGLETON );
+        // the one connection pool; the JNDI name Main registers refers to it too
+        bind( DataSource.class ).toProvider( PooledDataSourceProvider.class ).in( Scopes.SINGLETON );
+        requestStaticInjection( DeferredDataSource.class );
 
-        bind( RetryPolicy.class ).to( DefaultRetryPolicy.class ).in( Scopes.SINGLETON );
+        // one per poller slot, since policies keep track of their slot's failures
+        bind( RetryPolicy.class ).toProvider( RetryPolicyProvider.class );
 
         bind( Connection.class ).toProvider( QueueConnectionProvider.class );
 
-        bind( ExecutorService.class ).toProvider( ExecutorServiceProvider.class );
+        bind( ExecutorService.class ).toProvider( ExecutorServiceProvider.class ).in( Scopes.SINGLETON );
 
         bind( java.sql.Connection.class ).toProvider( DbConnectionProvider.class );
 
-        bind( DbLogger.class ).to( DbLoggerImpl.class ).in( Scopes.SINGLETON );
+        bind( DbLoggerImpl.class ).in( Scopes.SINGLETON );
 
-        bind( MatchHandler.class ).to( MatchHandlerImpl.class ).in( Scopes.SINGLETON );
+        bind( DbLogger.class ).to( AsyncDbLogger.class ).in( Scopes.SINGLETON );
+
+        bind( RowWriter.class ).to( WriteBehindRowWriter.class ).in( Scopes.SINGLETON );
+
+        bind( CandidateIndex.class ).to( SqlCandidateIndex.class ).in( Scopes.SINGLETON );
+
+        bind( MatchHandlerImpl.class ).in( Scopes.SINGLETON );
+
+        bind( MatchHandler.class ).to( CachingMatchHandler.class ).in( Scopes.SINGLETON );
+
+        bind( BatchMatchHandler.class ).to( LoopingBatchMatchHandler.class ).in( Scopes.SINGLETON );
+
+        bind( MatchKeyExtractor.class ).to( BodyMatchKeyExtractor.class ).in( Scopes.SINGLETON );
 
         bind( PollerFactory.class ).toProvider(
             FactoryProvider.newFactory( PollerFactory.class,
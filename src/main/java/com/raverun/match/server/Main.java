@@ -2,10 +2,13 @@ package com.raverun.match.server;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import net.jcip.annotations.GuardedBy;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -15,7 +18,6 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
-import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.log4j.Logger;
 
 import com.google.inject.AbstractModule;
@@ -25,6 +27,14 @@ import com.google.inject.Injector;
 import com.google.inject.Stage;
 import com.raverun.match.server.GuiceModule.ConfigurationType;
 import com.raverun.match.server.api.MatchDaemon;
+import com.raverun.match.server.db.DeferredDataSource;
+import com.raverun.match.server.db.PooledDataSourceProvider;
+import com.raverun.match.server.impl.AsyncDbLogger;
+import com.raverun.match.server.impl.Autoscaler;
+import com.raverun.match.server.impl.CacheInvalidator;
+import com.raverun.match.server.impl.SqlCandidateIndex;
+import com.raverun.match.server.impl.WriteBehindRowWriter;
+import com.raverun.shared.Configuration;
 import com.raverun.shared.Constraint;
 import com.raverun.shared.services.PropertyFile;
 import com.raverun.shared.services.impl.PropertyFileImpl;
@@ -32,9 +42,18 @@ import com.raverun.shared.services.impl.PropertyFileImpl;
 public class Main
 {
     @Inject
-    public Main( MatchDaemon daemon )
+    public Main( MatchDaemon daemon, Autoscaler autoscaler, CacheInvalidator cacheInvalidator,
+        SqlCandidateIndex candidateIndex, AsyncDbLogger dbLogger, WriteBehindRowWriter rowWriter,
+        PooledDataSourceProvider dbPool, Configuration config )
     {
+        this.daemonStopTimeout = config.i( KEY_DRAIN_MS, 10000 ) + DAEMON_STOP_MARGIN_MS;
         this.daemon = daemon;
+        this.autoscaler = autoscaler;
+        this.cacheInvalidator = cacheInvalidator;
+        this.candidateIndex = candidateIndex;
+        this.dbLogger = dbLogger;
+        this.rowWriter = rowWriter;
+        this.dbPool = dbPool;
     }
 
     public static void main( String[] args )
@@ -103,7 +122,8 @@ public class Main
         
         try
         {
-            initializeJndiDataSource( propertyFile.load( path ), datasource );
+            // bound before the injector, whose eager singletons may look it up
+            initializeJndiDataSource( DeferredDataSource.create(), datasource );
 
             Injector injector = getInjector( configurationFor( service ), stageFor( stage ), path );
             logger.info( "Guice Injector created" );
@@ -117,12 +137,14 @@ public class Main
                     public void run() 
                     { 
                         logger.info( "Shutting down" );
-                        if( mainArray[ 0 ].daemon != null )
-                            mainArray[ 0 ].daemon.stop();
+                        mainArray[ 0 ].shutdown();
                      }
                  });
             
+            main.candidateIndex.start();
+            main.cacheInvalidator.start();
             main.daemon.start();
+            main.autoscaler.start();
             main.daemon.join();
 
             logger.info( "dying" );
@@ -133,8 +155,55 @@ public class Main
         }
         finally
         {
-            if( main != null && main.daemon != null )
-                main.daemon.stop();
+            if( main != null )
+                main.shutdown();
+        }
+    }
+
+    /**
+     * Stops consuming and waits for the daemon to finish the match tasks in flight, since they
+     * still write rows; only then are the buffered rows written out and the pool closed.
+     * Runs once, whether on the shutdown hook or when the daemon dies by itself.
+     */
+    private synchronized void shutdown()
+    {
+        if( shutDown )
+            return;
+        shutDown = true;
+
+        autoscaler.stop();
+        cacheInvalidator.stop();
+        candidateIndex.stop();
+        if( daemon != null )
+        {
+            daemon.stop();
+            try
+            {
+                if( !daemon.join( daemonStopTimeout, TimeUnit.MILLISECONDS ) )
+                    logger.warn( "daemon still running after " + daemonStopTimeout + " ms; closing the writers anyway" );
+            }
+            catch( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeWriters();
+        dbPool.close();
+    }
+
+    /**
+     * Writes out the buffered match result rows and {@code integrationlog} rows
+     */
+    private void closeWriters()
+    {
+        try
+        {
+            rowWriter.close( WRITER_CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS );
+            dbLogger.close( WRITER_CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS );
+        }
+        catch( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -146,9 +215,11 @@ public class Main
     }
 
     /**
+     * Registers the server's connection pool under {@code java:comp/env/jdbc/<datasource>}
+     *
      * @throws IllegalStateException
      */
-    private static void initializeJndiDataSource( Properties props, final String datasource )
+    private static void initializeJndiDataSource( DataSource dataSource, final String datasource )
     {
         try 
         {
@@ -159,25 +230,9 @@ public class Main
             ic.createSubcontext( "java:comp/env" );
             ic.createSubcontext( DATASOURCE_PREFIX ); // "java:comp/env/jdbc"
 
-            BasicDataSource ds = new BasicDataSource();
-            ds.setUrl( props.getProperty( "db.url" ) );
-            ds.setDriverClassName( props.getProperty( "db.driver" ) );
-            ds.setTimeBetweenEvictionRunsMillis( 900 );
-            ds.setMinEvictableIdleTimeMillis( 65000 );
-            ds.setValidationQuery( "SELECT 1" );
-            ds.setTestOnBorrow( true );
-            ds.setTestWhileIdle( true );
-            ds.setMaxActive( 15 );
-            ds.setMaxWait( 10000 );
-            ds.setMaxIdle( 6 );
-            ds.setUsername( USER );
-            ds.setPassword( PASS );
-
             final String fullDatasource = DATASOURCE_PREFIX + FORWARD_SLASH + datasource;
-            ic.bind( fullDatasource, ds ); // "java:comp/env/jdbc/mcdb"
-
-            BasicDataSource bds = (BasicDataSource) ic.lookup( fullDatasource ); // "java:comp/env/jdbc/mcdb"
-            logger.info( "Main: " + bds.getDriverClassName() );
+            ic.bind( fullDatasource, dataSource ); // "java:comp/env/jdbc/mcdb"
+            logger.info( "Main: bound the connection pool to " + fullDatasource );
         } 
         catch( NamingException ex ) 
         {
@@ -234,10 +289,6 @@ public class Main
     public final static String CONFIG_DB = "db";
     public final static String CONFIG_FILE = "file";
 
-    // FIXME temporary hack
-    private static final String USER = "raverun";
-    private static final String PASS = "dba"; 
-
     static
     {
         map.put( CONFIG_DB, ConfigurationType.DB );
@@ -248,6 +299,15 @@ public class Main
     private static final Logger logger = Logger.getLogger( Main.class );
 
     private final MatchDaemon daemon;
+    private final Autoscaler autoscaler;
+    private final CacheInvalidator cacheInvalidator;
+    private final SqlCandidateIndex candidateIndex;
+    private final AsyncDbLogger dbLogger;
+    private final WriteBehindRowWriter rowWriter;
+    private final PooledDataSourceProvider dbPool;
+    private final long daemonStopTimeout;
+
+    @GuardedBy("this") private boolean shutDown;
 
     private static InitialContext ic;
 
@@ -258,4 +318,8 @@ public class Main
     private static final String PREFIX_PROPERTY_FILE_WIN = "C:\\";
     private static final String PREFIX_PROPERTY_FILE_LINUX = "/etc/raverun/";
     private static final String DEFAULT_PROPERTY_FILENAME = "matchserver.properties";
+    private static final long WRITER_CLOSE_TIMEOUT_MS = 5000;
+    /** time the daemon gets to stop its pollers, on top of draining the match tasks */
+    private static final long DAEMON_STOP_MARGIN_MS = 5000;
+    private static final String KEY_DRAIN_MS = "daemon.threadpool.drain.millisecond";
 }
@@ -0,0 +1,39 @@
+package com.raverun.match.server.api;
+
+import java.io.IOException;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Settles the deliveries received on one rabbitmq {@code Channel}.
+ * <p>
+ * Every delivery must be {@link #register(long) registered} (in the order received) 
+ * before it is acked or requeued. Implementations decide when the acknowledgement 
+ * actually reaches the broker.
+ *
+ * @author Gavin Bong
+ */
+public interface Acknowledger
+{
+    void register( long deliveryTag );
+
+    void ack( long deliveryTag ) throws IOException;
+
+    /**
+     * Puts the message back on {@code queue}, the one it came from. The 0-8 protocol has no 
+     * {@code basic.reject}, so this republishes {@code body} through the default exchange, which 
+     * routes it to that queue alone, and acks the original delivery.
+     */
+    void requeue( String queue, Envelope envelope, AMQP.BasicProperties props, byte[] body ) throws IOException;
+
+    /**
+     * Sends any acknowledgement that has been held back for longer than the implementation allows
+     */
+    void flushIfDue() throws IOException;
+
+    /**
+     * Sends every acknowledgement that can be sent now
+     */
+    void flush() throws IOException;
+}
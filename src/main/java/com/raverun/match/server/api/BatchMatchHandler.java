@@ -0,0 +1,26 @@
+package com.raverun.match.server.api;
+
+import java.util.List;
+
+import com.raverun.match.api.MatchParam;
+
+/**
+ * Processes several match requests in one go, so that an implementation can
+ * replace per-request database round-trips with set-based ones.
+ * <p>
+ * If {@code process} throws, the requests in {@code params} are matched again one at a
+ * time through the {@code MatchHandler}, and only those that fail again are treated as
+ * failed (and may be redelivered); hence implementations must tolerate seeing a request
+ * again. An implementation that knows which requests failed throws a
+ * {@code PartialBatchFailureException} instead, and none are matched again.
+ *
+ * @author Gavin Bong
+ */
+public interface BatchMatchHandler
+{
+    /**
+     * @param keys the identity of each request from the {@code MatchKeyExtractor}, in the 
+     *   order of {@code params}; an element is null if unknown
+     */
+    void process( List<MatchParam> params, List<Object> keys );
+}
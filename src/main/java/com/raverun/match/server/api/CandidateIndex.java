@@ -0,0 +1,30 @@
+package com.raverun.match.server.api;
+
+/**
+ * The match candidates of every key, held in memory by the server so that a match
+ * can look them up instead of querying the database. Keys and candidates are the
+ * numeric ids the index was loaded with.
+ * <p>
+ * Implementations are thread-safe; a lookup never blocks on a refresh.
+ *
+ * @author Gavin Bong
+ */
+public interface CandidateIndex
+{
+    /**
+     * @return false until the index has been loaded (or if it is disabled), in which case
+     *         callers must read their candidates from the database
+     */
+    boolean ready();
+
+    /**
+     * @return the candidates of {@code key} in ascending order, empty if it has none;
+     *         never null. The array is shared and must not be modified.
+     */
+    long[] candidates( long key );
+
+    /**
+     * @return whether {@code candidate} is one of the candidates of {@code key}
+     */
+    boolean contains( long key, long candidate );
+}
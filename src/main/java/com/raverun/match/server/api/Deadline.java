@@ -0,0 +1,106 @@
+package com.raverun.match.server.api;
+
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * The moment after which the result of a match request no longer matters.
+ * <p>
+ * While a match task runs, its deadline is the thread's {@link #current()} one: JDBC
+ * statements created through the server's {@code DataSource} get a query timeout from it,
+ * and long-running match logic can call {@link #check()} between steps to give up early.
+ *
+ * @author Gavin Bong
+ */
+@Immutable
+public final class Deadline
+{
+    private Deadline( long nanos )
+    {
+        this.nanos = nanos;
+    }
+
+    public static Deadline after( long duration, TimeUnit unit )
+    {
+        return new Deadline( System.nanoTime() + unit.toNanos( duration ) );
+    }
+
+    /**
+     * @param epochMillis wall-clock time, as in {@code System.currentTimeMillis()}
+     */
+    public static Deadline at( long epochMillis )
+    {
+        return after( epochMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * @param other may be null
+     * @return whichever of the two comes first
+     */
+    public Deadline earlier( Deadline other )
+    {
+        return ( other == null || nanos - other.nanos <= 0 ) ? this : other;
+    }
+
+    /**
+     * @return the time left, negative once expired
+     */
+    public long remaining( TimeUnit unit )
+    {
+        return unit.convert( nanos - System.nanoTime(), TimeUnit.NANOSECONDS );
+    }
+
+    public boolean expired()
+    {
+        return nanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @return the deadline of the match task running on this thread, or null
+     */
+    public static Deadline current()
+    {
+        return current.get();
+    }
+
+    /**
+     * @throws DeadlineExceededException if the current deadline has expired
+     */
+    public static void check()
+    {
+        Deadline deadline = current.get();
+        if( deadline != null && deadline.expired() )
+            throw new DeadlineExceededException( "deadline exceeded by " + ( -deadline.remaining( TimeUnit.MILLISECONDS ) ) + " ms" );
+    }
+
+    /**
+     * Makes {@code deadline} the current one of this thread
+     *
+     * @return the previous one, to be passed to {@link #leave(Deadline)}
+     */
+    public static Deadline enter( Deadline deadline )
+    {
+        Deadline previous = current.get();
+        current.set( deadline );
+        return previous;
+    }
+
+    public static void leave( Deadline previous )
+    {
+        if( previous == null )
+            current.remove();
+        else
+            current.set( previous );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Deadline(" + remaining( TimeUnit.MILLISECONDS ) + " ms left)";
+    }
+
+    private final long nanos;
+
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<Deadline>();
+}
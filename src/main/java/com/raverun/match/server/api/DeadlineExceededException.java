@@ -0,0 +1,16 @@
+package com.raverun.match.server.api;
+
+/**
+ * A match request outlived its {@link Deadline}; it is dropped rather than retried.
+ *
+ * @author Gavin Bong
+ */
+public class DeadlineExceededException extends RuntimeException
+{
+    public DeadlineExceededException( String message )
+    {
+        super( message );
+    }
+
+    private static final long serialVersionUID = 1L;
+}
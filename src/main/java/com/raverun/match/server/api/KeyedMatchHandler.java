@@ -0,0 +1,18 @@
+package com.raverun.match.server.api;
+
+import com.raverun.match.api.MatchHandler;
+import com.raverun.match.api.MatchParam;
+
+/**
+ * A {@code MatchHandler} that can use the identity of a request when the caller already
+ * knows it, instead of deriving it again from the request.
+ *
+ * @author Gavin Bong
+ */
+public interface KeyedMatchHandler extends MatchHandler
+{
+    /**
+     * @param key what the {@code MatchKeyExtractor} made of {@code param}; null if unknown
+     */
+    void process( MatchParam param, Object key );
+}
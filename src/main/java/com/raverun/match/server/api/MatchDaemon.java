@@ -1,5 +1,7 @@
 package com.raverun.match.server.api;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * A {@code MatchHandler} subscribes to requests for 
  * matching (by reading from a rabbitMq queue)
@@ -13,4 +15,22 @@ public interface MatchDaemon extends Runnable
     void stop();
     
     void join() throws InterruptedException;
+
+    /**
+     * @return false if the daemon was still running when {@code timeout} elapsed
+     */
+    boolean join( long timeout, TimeUnit unit ) throws InterruptedException;
+
+    /**
+     * @return the number of pollers being supervised
+     */
+    int pollers();
+
+    /**
+     * Starts or stops pollers until {@code count} are supervised
+     *
+     * @throws IllegalArgumentException if {@code count} is out of range
+     * @throws IllegalStateException if the daemon is stopping
+     */
+    void resize( int count );
 }
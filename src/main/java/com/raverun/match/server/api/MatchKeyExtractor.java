@@ -0,0 +1,19 @@
+package com.raverun.match.server.api;
+
+import com.raverun.match.api.MatchParam;
+
+/**
+ * Derives the identity of a match request. Two requests with equal keys 
+ * are considered to ask for the same match.
+ *
+ * @author Gavin Bong
+ */
+public interface MatchKeyExtractor
+{
+    /**
+     * @param param the decoded request
+     * @param body the raw message body {@code param} was decoded from
+     * @return a key with value-based {@code equals} and {@code hashCode}; never null
+     */
+    Object keyOf( MatchParam param, byte[] body );
+}
@@ -0,0 +1,25 @@
+package com.raverun.match.server.api;
+
+import com.raverun.match.api.MatchParam;
+
+/**
+ * Decodes a {@code MatchParam} from a message body of one wire format, 
+ * identified by the AMQP {@code content-type} property.
+ * <p>
+ * Implementations must be thread-safe and should decode straight from 
+ * {@code buffer} rather than copying the region they are given.
+ *
+ * @author Gavin Bong
+ */
+public interface MatchParamCodec
+{
+    /**
+     * @return the {@code content-type} this codec understands
+     */
+    String contentType();
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not a valid encoding
+     */
+    MatchParam decode( byte[] buffer, int offset, int length );
+}
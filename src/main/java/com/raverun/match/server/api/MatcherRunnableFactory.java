@@ -4,5 +4,8 @@ import com.raverun.match.api.MatchParam;
 
 public interface MatcherRunnableFactory
 {
-    Runnable create( MatchParam param );
+    /**
+     * @param key the identity of {@code param} from the {@code MatchKeyExtractor}; null if unknown
+     */
+    Runnable create( MatchParam param, Object key );
 }
@@ -0,0 +1,34 @@
+package com.raverun.match.server.api;
+
+import java.util.List;
+
+/**
+ * Thrown by a {@link BatchMatchHandler} that knows which requests of the batch failed,
+ * so that only those are treated as failed.
+ *
+ * @author Gavin Bong
+ */
+public class PartialBatchFailureException extends RuntimeException
+{
+    /**
+     * @param failures what each request of the batch failed with, in the order of the batch; 
+     *   null for those that succeeded
+     */
+    public PartialBatchFailureException( List<RuntimeException> failures, RuntimeException first )
+    {
+        super( first.getMessage(), first );
+        this.failures = failures;
+    }
+
+    /**
+     * @return null if the {@code index}th request of the batch succeeded
+     */
+    public RuntimeException failureOf( int index )
+    {
+        return failures.get( index );
+    }
+
+    private final List<RuntimeException> failures;
+
+    private static final long serialVersionUID = 1L;
+}
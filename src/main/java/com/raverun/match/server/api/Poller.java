@@ -21,4 +21,10 @@ public interface Poller extends Runnable
      * @throws InterruptedException
      */
     void join() throws InterruptedException;
+
+    /**
+     * @return what ended the last run (e.g. the broker refusing the connection), or null 
+     *         if it was stopped or the cause is unknown
+     */
+    Throwable failure();
 }
@@ -1,11 +1,28 @@
 package com.raverun.match.server.api;
 
+/**
+ * Decides whether, and after how long, the daemon starts a new {@code Poller} once
+ * the previous one has ended.
+ */
 public interface RetryPolicy
 {
-    boolean retry( long numberOfExecutions );
+    /**
+     * @param numberOfExecutions pollers started so far, plus one
+     * @param cause why the last poller ended (see {@link Poller#failure()}), or null if unknown
+     * @param uptime how long, in milliseconds, the last poller ran
+     */
+    boolean retry( long numberOfExecutions, Throwable cause, long uptime );
 
+    /**
+     * @return true if giving up should be escalated beyond the log
+     */
     boolean mustAlert();
 
+    /**
+     * @return the backoff, in milliseconds, before the first poller
+     */
+    int initialBackoff();
+
     /**
      * Uses properties in {@code daemon.properties}
      * <ul>
@@ -14,7 +31,8 @@ public interface RetryPolicy
      * </ul>
      * 
      * @param currentBackoff - duration in milliseconds for backoff
+     * @param uptime - how long, in milliseconds, the last poller ran
      * @return
      */
-    int newBackoff( int currentBackoff );
+    int newBackoff( int currentBackoff, long uptime );
 }
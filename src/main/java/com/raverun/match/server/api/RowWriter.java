@@ -0,0 +1,24 @@
+package com.raverun.match.server.api;
+
+/**
+ * Write-behind for the rows a match produces: {@link #write(String, Object...)} queues
+ * the row and returns, and the rows are later executed together in JDBC batches.
+ * <p>
+ * A row is written some time after the match that queued it has finished, and its message
+ * has been acknowledged, also with {@code daemon.ack.mode=after}: the ack covers the match,
+ * not its rows. So a row that fails to be written, is dropped for lack of room, or is still
+ * queued when the process dies is lost, and the request is not redelivered to make it again.
+ * Rows that must not be lost are to be written synchronously, within the match.
+ * <p>
+ * Rows of different statements may be executed in a different order than they were queued.
+ *
+ * @author Gavin Bong
+ */
+public interface RowWriter
+{
+    /**
+     * @param sql an {@code INSERT}, {@code UPDATE} or {@code DELETE} with one placeholder per value
+     * @param values bound positionally with {@code setObject}
+     */
+    void write( String sql, Object... values );
+}
@@ -0,0 +1,59 @@
+package com.raverun.match.server.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+
+/**
+ * A {@code DataSource} that can be bound under a JNDI name before the injector exists,
+ * borrowing from the server's one pool once the injector has been given to it.
+ * <p>
+ * The module requests static injection of this class, which Guice performs before it
+ * builds the eager singletons of {@code Stage.PRODUCTION}; so whatever looks the name up
+ * while it is being constructed already reaches the pool. Used earlier than that, every
+ * method throws {@code SQLException}.
+ *
+ * @author Gavin Bong
+ */
+public final class DeferredDataSource
+{
+    private DeferredDataSource() {}
+
+    public static DataSource create()
+    {
+        return (DataSource)Proxy.newProxyInstance( DeferredDataSource.class.getClassLoader(),
+            new Class<?>[] { DataSource.class }, new Forward() );
+    }
+
+    private static final class Forward implements InvocationHandler
+    {
+        public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+        {
+            if( method.getDeclaringClass() == Object.class )
+                return method.invoke( this, args );
+
+            final Provider<DataSource> target = pool;
+            if( target == null )
+                throw new SQLException( "the connection pool is not available before the injector is" );
+
+            try
+            {
+                return method.invoke( target.get(), args );
+            }
+            catch( InvocationTargetException e )
+            {
+                throw e.getCause();
+            }
+        }
+    }
+
+    @Inject
+    private static volatile Provider<DataSource> pool;
+}
@@ -0,0 +1,210 @@
+package com.raverun.match.server.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.log4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.raverun.match.server.impl.ExecutorServiceProvider;
+import com.raverun.match.server.metrics.Gauge;
+import com.raverun.match.server.metrics.LatencyHistogram;
+import com.raverun.match.server.metrics.MatchMetrics;
+import com.raverun.shared.Configuration;
+import com.raverun.shared.StageMapper;
+
+/**
+ * The one database connection pool of the server. The {@code DataSource} and
+ * {@code java.sql.Connection} bindings and the JNDI name {@code Main} registers all
+ * borrow from it.
+ * <p>
+ * It holds at most {@code db.maxactive} connections or, when that is unset, one per
+ * match worker plus {@code db.pool.headroom} for the DbLogger and the like, following
+ * the workers as the {@code Autoscaler} resizes them. A caller waits up to
+ * {@code db.maxwait.millisecond} for a connection.
+ * <p>
+ * Connections are not validated on borrow. Instead, every {@code db.idle.test.interval.millisecond}
+ * the idle ones are checked with {@code db.validation.query}, and those idle for longer than
+ * {@code db.idle.evict.millisecond} are closed down to {@code db.minidle}.
+ * <p>
+ * Each connection keeps up to {@code db.statement.cache.size} prepared statements (0 disables this),
+ * keyed on their SQL, so that preparing the same statement again skips the round-trip. Closing a
+ * statement returns it to that cache; a connection must not hold more statements open at once.
+ * <p>
+ * Statements get query timeouts from the current {@code Deadline} (see {@link QueryTimeouts}).
+ *
+ * @author Gavin Bong
+ */
+@Singleton
+@ThreadSafe
+public class PooledDataSourceProvider implements Provider<DataSource>
+{
+    @Inject
+    public PooledDataSourceProvider( Configuration config, StageMapper mapper, ExecutorServiceProvider workers,
+        MatchMetrics metrics ) throws Exception
+    {
+        final String stage = mapper.toCanonicalStage();
+
+        this.fixedMaxActive = config.i( KEY_MAX_ACTIVE, -1 );
+        this.headroom = Math.max( 0, config.i( KEY_HEADROOM, 3 ) );
+        final int maxActive = ( fixedMaxActive > 0 ) ? fixedMaxActive : workers.threads() + headroom;
+        final int minIdle = Math.min( maxActive, Math.max( 0, config.i( KEY_MIN_IDLE, 3 ) ) );
+
+        Class.forName( config.s( KEY_DRIVER ) );
+        pool = new BasicDataSource();
+        pool.setDriverClassName( config.s( KEY_DRIVER ) );
+        pool.setUsername( config.s( KEY_DATABASE_USERID + stage ) );
+        pool.setPassword( config.s( KEY_DATABASE_PASSWD + stage ) );
+        pool.setUrl( config.s( KEY_URL ) );
+        pool.setInitialSize( minIdle );
+        pool.setMinIdle( minIdle );
+        pool.setMaxIdle( maxActive );
+        pool.setMaxActive( maxActive );
+        pool.setMaxWait( config.i( KEY_MAX_WAIT_MS, 10000 ) );
+
+        final String query = config.s( KEY_VALIDATION_QUERY );
+        pool.setValidationQuery( ( query == null || query.trim().length() == 0 ) ? "SELECT 1" : query.trim() );
+        pool.setTestOnBorrow( false );
+        pool.setTestOnReturn( false );
+        pool.setTestWhileIdle( true );
+        pool.setTimeBetweenEvictionRunsMillis( Math.max( 1000, config.i( KEY_IDLE_TEST_INTERVAL_MS, 60000 ) ) );
+        pool.setMinEvictableIdleTimeMillis( config.i( KEY_IDLE_EVICT_MS, 300000 ) );
+        pool.setNumTestsPerEvictionRun( maxActive );
+
+        final int statements = config.i( KEY_STATEMENT_CACHE_SIZE, 50 );
+        pool.setPoolPreparedStatements( statements > 0 );
+        if( statements > 0 )
+            pool.setMaxOpenPreparedStatements( statements );
+
+        waits = metrics.histogram( "match_db_wait_seconds", "Time taken to borrow a database connection", MatchMetrics.BUCKETS_MS );
+        failures = metrics.counter( "match_db_borrow_failures_total", "Database connections that could not be borrowed within db.maxwait.millisecond" );
+        metrics.gauge( "match_db_connections_active", "Database connections borrowed from the pool", new Gauge()
+        {
+            public long value()
+            {
+                return pool.getNumActive();
+            }
+        });
+        metrics.gauge( "match_db_connections_idle", "Open database connections waiting in the pool", new Gauge()
+        {
+            public long value()
+            {
+                return pool.getNumIdle();
+            }
+        });
+        metrics.gauge( "match_db_connections_max", "Cap on database connections", new Gauge()
+        {
+            public long value()
+            {
+                return pool.getMaxActive();
+            }
+        });
+
+        dataSource = QueryTimeouts.wrap( (DataSource)Proxy.newProxyInstance( PooledDataSourceProvider.class.getClassLoader(),
+            new Class<?>[] { DataSource.class }, new TimedBorrow() ) );
+
+        logger.info( "Database pool: " + maxActive + " connections" + ( fixedMaxActive > 0 ? "" : " (workers + " + headroom + ")" ) +
+            " | min idle: " + minIdle + " | max wait (ms): " + pool.getMaxWait() + " | idle test every (ms): " +
+            pool.getTimeBetweenEvictionRunsMillis() + " | statements cached per connection: " + Math.max( 0, statements ) );
+    }
+
+    public DataSource get()
+    {
+        return dataSource;
+    }
+
+    /**
+     * Follows a change in the number of match workers, unless {@code db.maxactive} is set.
+     * Surplus connections are closed as they are returned.
+     */
+    public void sizeFor( int workers )
+    {
+        if( fixedMaxActive > 0 )
+            return;
+
+        final int maxActive = workers + headroom;
+        synchronized( pool )
+        {
+            if( maxActive == pool.getMaxActive() )
+                return;
+
+            logger.info( "resizing database pool " + pool.getMaxActive() + " -> " + maxActive );
+            pool.setMaxActive( maxActive );
+            pool.setMaxIdle( maxActive );
+            pool.setNumTestsPerEvictionRun( maxActive );
+        }
+    }
+
+    public void close()
+    {
+        try
+        {
+            pool.close();
+            logger.info( "Closed database pool" );
+        }
+        catch( SQLException e )
+        {
+            logger.warn( "Could not close database pool", e );
+        }
+    }
+
+    /**
+     * Records how long {@code getConnection} took
+     */
+    private final class TimedBorrow implements InvocationHandler
+    {
+        public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+        {
+            final boolean borrow = method.getName().equals( "getConnection" );
+            final long since = System.nanoTime();
+            try
+            {
+                Object result = method.invoke( pool, args );
+                if( borrow )
+                    waits.record( System.nanoTime() - since );
+                return result;
+            }
+            catch( InvocationTargetException e )
+            {
+                if( borrow )
+                    failures.incrementAndGet();
+                throw e.getCause();
+            }
+        }
+    }
+
+    private final BasicDataSource pool;
+    private final DataSource dataSource;
+    private final int fixedMaxActive;
+    private final int headroom;
+    private final LatencyHistogram waits;
+    private final AtomicLong failures;
+
+    public final static String KEY_DATABASE_USERID = "db.userid.";
+    public final static String KEY_DATABASE_PASSWD = "db.password.";
+
+    public final static String KEY_URL        = "db.url";
+    public final static String KEY_DRIVER     = "db.driver";
+    public final static String KEY_MAX_ACTIVE = "db.maxactive";
+
+    private final static String KEY_HEADROOM = "db.pool.headroom";
+    private final static String KEY_MIN_IDLE = "db.minidle";
+    private final static String KEY_MAX_WAIT_MS = "db.maxwait.millisecond";
+    private final static String KEY_VALIDATION_QUERY = "db.validation.query";
+    private final static String KEY_IDLE_TEST_INTERVAL_MS = "db.idle.test.interval.millisecond";
+    private final static String KEY_IDLE_EVICT_MS = "db.idle.evict.millisecond";
+    private final static String KEY_STATEMENT_CACHE_SIZE = "db.statement.cache.size";
+
+    private static final Logger logger = Logger.getLogger( PooledDataSourceProvider.class );
+}
@@ -0,0 +1,126 @@
+package com.raverun.match.server.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import com.raverun.match.server.api.Deadline;
+
+/**
+ * Wraps JDBC objects so that every statement executed while a {@link Deadline} is current
+ * gets a query timeout of the time left (in whole seconds, rounded up), or fails straight
+ * away once it has passed. A timeout the caller set that is shorter is kept, and the
+ * statement's own timeout is restored when it is closed, since pools reuse statements.
+ * <p>
+ * Outside a match task there is no current {@code Deadline}, and the wrappers change nothing.
+ *
+ * @author Gavin Bong
+ */
+public final class QueryTimeouts
+{
+    private QueryTimeouts() {}
+
+    public static DataSource wrap( DataSource dataSource )
+    {
+        return (DataSource)proxy( DataSource.class, dataSource, null );
+    }
+
+    public static Connection wrap( Connection connection )
+    {
+        return (Connection)proxy( Connection.class, connection, null );
+    }
+
+    private static Object proxy( Class<?> type, Object target, Object parent )
+    {
+        return Proxy.newProxyInstance( QueryTimeouts.class.getClassLoader(), new Class<?>[] { type },
+            new Handler( target, parent ) );
+    }
+
+    /**
+     * Wraps every {@code Connection} and {@code Statement} (or subtype) returned by {@code target}
+     */
+    private static final class Handler implements InvocationHandler
+    {
+        Handler( Object target, Object parent )
+        {
+            this.target = target;
+            this.parent = parent;
+        }
+
+        public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+        {
+            final String name = method.getName();
+            if( name.equals( "equals" ) && args != null && args.length == 1 )
+                return Boolean.valueOf( proxy == args[ 0 ] );
+            if( name.equals( "hashCode" ) && args == null )
+                return Integer.valueOf( System.identityHashCode( proxy ) );
+            if( name.equals( "getConnection" ) && parent instanceof Connection )
+                return parent;
+
+            if( target instanceof Statement )
+            {
+                if( name.startsWith( "execute" ) )
+                    applyTimeout( (Statement)target );
+                else if( name.equals( "close" ) && original >= 0 )
+                    restoreTimeout( (Statement)target );
+            }
+
+            Object result;
+            try
+            {
+                result = method.invoke( target, args );
+            }
+            catch( InvocationTargetException e )
+            {
+                throw e.getCause();
+            }
+
+            final Class<?> type = method.getReturnType();
+            if( result != null && ( type == Connection.class || Statement.class.isAssignableFrom( type ) ) )
+                return proxy( type, result, ( type == Connection.class ) ? null : proxy );
+            return result;
+        }
+
+        private void applyTimeout( Statement statement ) throws SQLException
+        {
+            final Deadline deadline = Deadline.current();
+            if( deadline == null )
+                return;
+
+            final long left = deadline.remaining( TimeUnit.MILLISECONDS );
+            if( left <= 0 )
+                throw new SQLException( "deadline of the match request passed " + ( -left ) + " ms ago", SQLSTATE_TIMEOUT );
+
+            final int seconds = (int)Math.min( Integer.MAX_VALUE, ( left + 999 ) / 1000 );
+            final int current = statement.getQueryTimeout();
+            if( original < 0 )
+                original = current;
+            if( current == 0 || current > seconds )
+                statement.setQueryTimeout( seconds );
+        }
+
+        private void restoreTimeout( Statement statement )
+        {
+            try
+            {
+                statement.setQueryTimeout( original );
+            }
+            catch( SQLException ignored ) {} // closing anyway
+        }
+
+        private final Object target;
+        private final Object parent;
+
+        // used by the thread that owns the statement only
+        private int original = -1;
+    }
+
+    private static final String SQLSTATE_TIMEOUT = "HYT00";
+}
@@ -0,0 +1,318 @@
+package com.raverun.match.server.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.raverun.match.server.metrics.Gauge;
+import com.raverun.match.server.metrics.MatchMetrics;
+import com.raverun.shared.Configuration;
+import com.raverun.shared.services.DbLogger;
+import com.raverun.shared.services.IntegrationType;
+import com.raverun.shared.services.OperationType;
+import com.raverun.shared.services.impl.DbLoggerImpl;
+
+/**
+ * A {@code DbLogger} that returns immediately and leaves the database write to a
+ * background thread.
+ * <p>
+ * Entries wait in a buffer of {@code dblog.buffer.size}. When it is full they are dropped
+ * ({@code dblog.overflow=drop}) or the caller waits for room ({@code dblog.overflow=block}).
+ * The writer takes up to {@code dblog.batch.max} entries at a time. If {@code dblog.batch.sql}
+ * is set they are inserted with one JDBC batch; otherwise, or if the batch fails, each one
+ * goes through {@code DbLoggerImpl}.
+ * <p>
+ * {@code dblog.batch.sql} is bound positionally with the integration type, operation type,
+ * source, message and time of logging; it may use the first few of these only. For example
+ * <pre>
+ * INSERT INTO integrationlog (integration, operation, source, message, created) VALUES (?, ?, ?, ?, ?)
+ * </pre>
+ * Messages longer than {@code dblog.message.max} characters are truncated.
+ * <p>
+ * {@link #close(long, TimeUnit)} writes whatever is still buffered; anything logged after
+ * that is written synchronously.
+ *
+ * @author Gavin Bong
+ */
+@Singleton
+@ThreadSafe
+public class AsyncDbLogger implements DbLogger, Runnable
+{
+    @Inject
+    public AsyncDbLogger( DbLoggerImpl delegate, Provider<DataSource> dsProvider, Configuration config, MatchMetrics metrics )
+    {
+        this.delegate   = delegate;
+        this.dsProvider = dsProvider;
+        this.buffer     = new ArrayBlockingQueue<Entry>( Math.max( 1, config.i( KEY_BUFFER_SIZE, 1024 ) ) );
+        this.batchMax   = Math.max( 1, config.i( KEY_BATCH_MAX, 100 ) );
+        this.maxMessage = config.i( KEY_MESSAGE_MAX, -1 );
+        this.block      = "block".equalsIgnoreCase( trimmed( config.s( KEY_OVERFLOW ) ) );
+        this.batchSql   = trimmed( config.s( KEY_BATCH_SQL ) );
+        this.parameters = placeholders( batchSql );
+        this.dropped    = metrics.counter( "match_dblog_dropped_total", "DbLogger entries dropped because the buffer was full" );
+        this.written    = metrics.counter( "match_dblog_written_total", "DbLogger entries written to the database" );
+
+        metrics.gauge( "match_dblog_buffered", "DbLogger entries waiting to be written", new Gauge()
+        {
+            public long value()
+            {
+                return buffer.size();
+            }
+        });
+
+        logger.info( "DbLogger buffer: " + buffer.remainingCapacity() + " | overflow: " + ( block ? "block" : "drop" ) +
+            " | batch: " + batchMax + " | batch sql: " + ( batchSql == null ? "none" : batchSql ) );
+
+        writer = new Thread( this, "dblog writer" );
+        writer.setDaemon( true );
+        writer.start();
+    }
+
+    public void log( IntegrationType integrationType, OperationType operationType, String source, String message )
+    {
+        Entry entry = new Entry( integrationType, operationType, source, truncate( message ) );
+        if( closed )
+        {
+            write( entry );
+            return;
+        }
+
+        if( buffer.offer( entry ) )
+        {
+            if( closed )
+                writeRemaining(); // raced with close()
+            return;
+        }
+
+        if( block )
+        {
+            try
+            {
+                buffer.put( entry );
+                return;
+            }
+            catch( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if( dropped.incrementAndGet() % DROP_WARNING_INTERVAL == 1 )
+            logger.warn( "DbLogger buffer full, " + dropped.get() + " entries dropped so far. Last: " + message );
+    }
+
+    /**
+     * Stops the writer once it has written every buffered entry, waiting at most {@code timeout}
+     */
+    public void close( long timeout, TimeUnit unit ) throws InterruptedException
+    {
+        closed = true;
+        writer.interrupt();
+        writer.join( unit.toMillis( timeout ) );
+
+        // the writer timed out, or entries slipped in after its last drain
+        writeRemaining();
+    }
+
+    public void run()
+    {
+        List<Entry> batch = new ArrayList<Entry>( batchMax );
+        while( !closed )
+        {
+            try
+            {
+                batch.add( buffer.take() );
+            }
+            catch( InterruptedException ie )
+            {
+                continue; // close() was called
+            }
+
+            buffer.drainTo( batch, batchMax - 1 );
+            writeAll( batch );
+            batch.clear();
+        }
+
+        while( buffer.drainTo( batch, batchMax ) > 0 )
+        {
+            writeAll( batch );
+            batch.clear();
+        }
+    }
+
+    private void writeRemaining()
+    {
+        List<Entry> rest = new ArrayList<Entry>();
+        buffer.drainTo( rest );
+        for( Entry entry : rest )
+            write( entry );
+    }
+
+    private void writeAll( List<Entry> batch )
+    {
+        if( batchSql != null )
+        {
+            try
+            {
+                insert( batch );
+                written.addAndGet( batch.size() );
+                return;
+            }
+            catch( SQLException e )
+            {
+                logger.error( "batch insert of " + batch.size() + " log entries failed, writing them one at a time", e );
+            }
+        }
+
+        for( Entry entry : batch )
+            write( entry );
+    }
+
+    private void write( Entry entry )
+    {
+        try
+        {
+            delegate.log( entry.integrationType, entry.operationType, entry.source, entry.message );
+            written.incrementAndGet();
+        }
+        catch( RuntimeException e )
+        {
+            logger.error( "could not write log entry from " + entry.source + ": " + entry.message, e );
+        }
+    }
+
+    private void insert( List<Entry> batch ) throws SQLException
+    {
+        Connection conn = null;
+        PreparedStatement statement = null;
+        try
+        {
+            conn = dsProvider.get().getConnection();
+            statement = conn.prepareStatement( batchSql );
+            for( Entry entry : batch )
+            {
+                Object[] values = { String.valueOf( entry.integrationType ), String.valueOf( entry.operationType ),
+                    entry.source, entry.message, new Timestamp( entry.loggedAt ) };
+                for( int i = 0; i < parameters; i++ )
+                    statement.setObject( i + 1, values[ i ] );
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        finally
+        {
+            if( statement != null )
+            {
+                try
+                {
+                    statement.close();
+                }
+                catch( SQLException ignored ) {}
+            }
+            if( conn != null )
+            {
+                try
+                {
+                    conn.close();
+                }
+                catch( SQLException ignored ) {}
+            }
+        }
+    }
+
+    private String truncate( String message )
+    {
+        if( message == null || maxMessage < 0 || message.length() <= maxMessage )
+            return message;
+
+        return message.substring( 0, maxMessage );
+    }
+
+    private static String trimmed( String value )
+    {
+        if( value == null || value.trim().length() == 0 )
+            return null;
+
+        return value.trim();
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code sql} has more placeholders than there are values to bind
+     */
+    private static int placeholders( String sql )
+    {
+        if( sql == null )
+            return 0;
+
+        int count = 0;
+        for( int i = 0; i < sql.length(); i++ )
+        {
+            if( sql.charAt( i ) == '?' )
+                count++;
+        }
+
+        if( count > VALUES_PER_ENTRY )
+            throw new IllegalArgumentException( KEY_BATCH_SQL + " binds at most " + VALUES_PER_ENTRY + " parameters: " + sql );
+
+        return count;
+    }
+
+    private static final class Entry
+    {
+        Entry( IntegrationType integrationType, OperationType operationType, String source, String message )
+        {
+            this.integrationType = integrationType;
+            this.operationType = operationType;
+            this.source = source;
+            this.message = message;
+            this.loggedAt = System.currentTimeMillis();
+        }
+
+        final IntegrationType integrationType;
+        final OperationType operationType;
+        final String source;
+        final String message;
+        final long loggedAt;
+    }
+
+    private final DbLogger delegate;
+    private final Provider<DataSource> dsProvider;
+    private final BlockingQueue<Entry> buffer;
+    private final int batchMax;
+    private final int maxMessage;
+    private final boolean block;
+    private final String batchSql;
+    private final int parameters;
+    private final AtomicLong dropped;
+    private final AtomicLong written;
+    private final Thread writer;
+
+    private volatile boolean closed;
+
+    private static final int VALUES_PER_ENTRY = 5;
+    private static final int DROP_WARNING_INTERVAL = 100;
+
+    private final static String KEY_BUFFER_SIZE = "dblog.buffer.size";
+    private final static String KEY_BATCH_MAX = "dblog.batch.max";
+    private final static String KEY_BATCH_SQL = "dblog.batch.sql";
+    private final static String KEY_OVERFLOW = "dblog.overflow";
+    private final static String KEY_MESSAGE_MAX = "dblog.message.max";
+
+    private static final Logger logger = Logger.getLogger( AsyncDbLogger.class );
+}
@@ -0,0 +1,313 @@
+package com.raverun.match.server.impl;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.raverun.match.server.api.MatchDaemon;
+import com.raverun.match.server.db.PooledDataSourceProvider;
+import com.raverun.match.server.metrics.MatchMetrics;
+import com.raverun.queue.NullQueueConnection;
+import com.raverun.shared.Configuration;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Grows and shrinks the number of pollers (and with them the channels consuming the
+ * match queue) and of worker threads with the queue's backlog.
+ * <p>
+ * Every {@code daemon.autoscale.interval.millisecond} the depth of the queue (of every lane) is read with a
+ * passive {@code queue.declare} on a connection of its own, and the consume rate from
+ * {@code match_messages_consumed_total}. The backlog is how long the queue would take to drain
+ * at that rate. One poller is added once the backlog exceeded {@code daemon.autoscale.up.backlog.second}
+ * (with at least {@code daemon.autoscale.up.messages} waiting) for {@code daemon.autoscale.up.samples}
+ * samples in a row, and one removed once it stayed under {@code daemon.autoscale.down.backlog.second}
+ * for {@code daemon.autoscale.down.samples} samples; after either, nothing changes for
+ * {@code daemon.autoscale.cooldown.millisecond}. Shrinking closes a poller's connection, which
+ * makes the broker redeliver what it had not acknowledged, so it should be the slower of the two.
+ * <p>
+ * Pollers stay between {@code daemon.autoscale.pollers.min} and {@code daemon.autoscale.pollers.max};
+ * worker threads follow in proportion, from {@code daemon.autoscale.workers.min} to
+ * {@code daemon.autoscale.workers.max} (unless those are unset), and the database pool
+ * follows the workers, which bounds the connections held off-peak.
+ * Disabled unless {@code daemon.autoscale=true}.
+ *
+ * @author Gavin Bong
+ */
+@Singleton
+@ThreadSafe
+public class Autoscaler implements Runnable
+{
+    @Inject
+    public Autoscaler( MatchDaemon daemon, ExecutorServiceProvider workers, PooledDataSourceProvider dbPool,
+        Provider<Connection> connections, Configuration config, MatchMetrics metrics )
+    {
+        this.daemon = daemon;
+        this.workers = workers;
+        this.dbPool = dbPool;
+        this.connections = connections;
+        this.metrics = metrics;
+        this.lanes = Lane.from( config, config.s( DefaultPoller.KEY_QUEUENAME ), 1 );
+
+        final String enabled = config.s( KEY_ENABLED );
+        this.enabled = ( enabled != null && enabled.trim().equalsIgnoreCase( "true" ) );
+        this.interval = Math.max( 1000, config.i( KEY_INTERVAL_MS, 15000 ) );
+        this.cooldown = Math.max( 0, config.i( KEY_COOLDOWN_MS, 60000 ) );
+        this.upBacklog = config.i( KEY_UP_BACKLOG_S, 60 );
+        this.upMessages = config.i( KEY_UP_MESSAGES, 100 );
+        this.upSamples = Math.max( 1, config.i( KEY_UP_SAMPLES, 2 ) );
+        this.downBacklog = Math.min( upBacklog, config.i( KEY_DOWN_BACKLOG_S, 5 ) );
+        this.downSamples = Math.max( 1, config.i( KEY_DOWN_SAMPLES, 10 ) );
+
+        this.minPollers = Math.max( 1, config.i( KEY_POLLERS_MIN, 1 ) );
+        this.maxPollers = Math.max( minPollers, config.i( KEY_POLLERS_MAX, 4 ) );
+        final int minWorkers = config.i( KEY_WORKERS_MIN, -1 );
+        final int maxWorkers = config.i( KEY_WORKERS_MAX, -1 );
+        this.scaleWorkers = ( minWorkers > 0 && maxWorkers >= minWorkers );
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+
+        this.consumers = metrics.gauge( "match_queue_consumers", "Consumers of the match queues when last sampled" );
+        this.rate = metrics.gauge( "match_consume_rate", "Messages consumed per second over the last autoscaling interval" );
+    }
+
+    public synchronized void start()
+    {
+        if( !enabled || thread != null )
+            return;
+
+        logger.info( "Autoscaling every " + interval + " ms: pollers " + minPollers + ".." + maxPollers + " | workers " +
+            ( scaleWorkers ? minWorkers + ".." + maxWorkers : "fixed" ) + " | up above " + upBacklog + " s backlog (" + upSamples + " samples) | down below " +
+            downBacklog + " s (" + downSamples + " samples)" );
+
+        thread = new Thread( this, "match autoscaler" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    public synchronized void stop()
+    {
+        running = false;
+        if( thread != null )
+            thread.interrupt();
+    }
+
+    public void run()
+    {
+        long consumed = metrics.consumed().get();
+        long sampledAt = System.currentTimeMillis();
+        long changedAt = 0;
+        int over = 0;
+        int under = 0;
+
+        try
+        {
+            while( running )
+            {
+                Thread.sleep( interval );
+
+                final long depth = depth();
+                final long now = System.currentTimeMillis();
+                final long total = metrics.consumed().get();
+                final double perSecond = ( total - consumed ) * 1000.0 / Math.max( 1, now - sampledAt );
+                consumed = total;
+                sampledAt = now;
+                rate.set( Math.round( perSecond ) );
+
+                if( depth < 0 )
+                    continue;
+
+                final double backlog = ( depth == 0 ) ? 0 : ( perSecond > 0 ? depth / perSecond : Double.MAX_VALUE );
+                over = ( backlog > upBacklog && depth >= upMessages ) ? over + 1 : 0;
+                under = ( backlog < downBacklog ) ? under + 1 : 0;
+
+                if( logger.isDebugEnabled() )
+                    logger.debug( "queue depth " + depth + " | " + Math.round( perSecond ) + " msg/s | backlog " +
+                        ( backlog == Double.MAX_VALUE ? "unbounded" : Math.round( backlog ) + " s" ) );
+
+                if( now - changedAt < cooldown )
+                    continue;
+
+                final int pollers = daemon.pollers();
+                int wanted = pollers;
+                if( over >= upSamples && pollers < maxPollers )
+                    wanted = pollers + 1;
+                else if( under >= downSamples && pollers > minPollers )
+                    wanted = pollers - 1;
+                else if( pollers < minPollers || pollers > maxPollers )
+                    wanted = Math.max( minPollers, Math.min( maxPollers, pollers ) );
+
+                if( wanted != pollers )
+                {
+                    try
+                    {
+                        scaleTo( wanted, depth, perSecond );
+                    }
+                    catch( IllegalArgumentException e )
+                    {
+                        logger.warn( "cannot scale: " + e.getMessage() ); // e.g. pollers.max above daemon.poller.max
+                    }
+                    changedAt = now;
+                    over = 0;
+                    under = 0;
+                }
+            }
+        }
+        catch( InterruptedException ie )
+        {
+            logger.info( "autoscaler interrupted" );
+        }
+        catch( IllegalStateException ise )
+        {
+            logger.info( "autoscaler stopped: " + ise.getMessage() ); // the daemon is stopping
+        }
+        finally
+        {
+            closeQuietly();
+        }
+    }
+
+    private void scaleTo( int pollers, long depth, double perSecond )
+    {
+        logger.info( "scaling to " + pollers + " poller(s): queue depth " + depth + ", consuming " + Math.round( perSecond ) + " msg/s" );
+        if( !scaleWorkers )
+        {
+            daemon.resize( pollers );
+            return;
+        }
+
+        final int threads = minWorkers + ( maxWorkers - minWorkers ) * ( pollers - minPollers ) / Math.max( 1, maxPollers - minPollers );
+        logger.info( "scaling to " + threads + " worker(s)" );
+
+        // add threads (and their connections) before the consumers that need them, and remove them after
+        if( threads > workers.threads() )
+        {
+            dbPool.sizeFor( threads );
+            workers.resize( threads );
+        }
+        daemon.resize( pollers );
+        if( threads < workers.threads() )
+        {
+            workers.resize( threads );
+            dbPool.sizeFor( threads );
+        }
+    }
+
+    /**
+     * @return the number of messages ready in the queues of all lanes, or -1 if the broker could not be asked
+     */
+    private long depth()
+    {
+        try
+        {
+            if( channel == null || !channel.isOpen() )
+            {
+                closeQuietly();
+                connection = connections.get();
+                if( connection == null || connection instanceof NullQueueConnection )
+                {
+                    connection = null;
+                    return -1;
+                }
+                channel = connection.createChannel();
+                if( channel == null )
+                    throw new IOException( "No more channels" );
+            }
+
+            final boolean PASSIVE = true; // only reads the queue's counts, never creates it
+            long messages = 0;
+            long consumerCount = 0;
+            for( Lane lane : lanes )
+            {
+                AMQP.Queue.DeclareOk ok = channel.queueDeclare( lane.queue(), PASSIVE, true, false, false, new HashMap<String, Object>() );
+                messages += ok.getMessageCount();
+                consumerCount += ok.getConsumerCount();
+            }
+
+            metrics.queueMessages().set( messages );
+            consumers.set( consumerCount );
+            return messages;
+        }
+        catch( IOException e )
+        {
+            logger.warn( "could not sample the queue depth: " + e.getMessage() );
+        }
+        catch( ShutdownSignalException e )
+        {
+            logger.warn( "could not sample the queue depth: " + e.getMessage() );
+        }
+        closeQuietly();
+        return -1;
+    }
+
+    private void closeQuietly()
+    {
+        channel = null;
+        if( connection == null )
+            return;
+
+        try
+        {
+            connection.close( 500 );
+        }
+        catch( IOException ignored ) {}
+        catch( ShutdownSignalException ignored ) {}
+        connection = null;
+    }
+
+    private final MatchDaemon daemon;
+    private final ExecutorServiceProvider workers;
+    private final PooledDataSourceProvider dbPool;
+    private final Provider<Connection> connections;
+    private final MatchMetrics metrics;
+    private final List<Lane> lanes;
+
+    private final boolean enabled;
+    private final int interval;
+    private final int cooldown;
+    private final int upBacklog;
+    private final int upMessages;
+    private final int upSamples;
+    private final int downBacklog;
+    private final int downSamples;
+    private final int minPollers;
+    private final int maxPollers;
+    private final boolean scaleWorkers;
+    private final int minWorkers;
+    private final int maxWorkers;
+
+    private final AtomicLong consumers;
+    private final AtomicLong rate;
+
+    // used by the autoscaler thread only
+    private Connection connection;
+    private Channel channel;
+
+    private volatile boolean running = true;
+    private Thread thread;
+
+    private final static String KEY_ENABLED = "daemon.autoscale";
+    private final static String KEY_INTERVAL_MS = "daemon.autoscale.interval.millisecond";
+    private final static String KEY_COOLDOWN_MS = "daemon.autoscale.cooldown.millisecond";
+    private final static String KEY_UP_BACKLOG_S = "daemon.autoscale.up.backlog.second";
+    private final static String KEY_UP_MESSAGES = "daemon.autoscale.up.messages";
+    private final static String KEY_UP_SAMPLES = "daemon.autoscale.up.samples";
+    private final static String KEY_DOWN_BACKLOG_S = "daemon.autoscale.down.backlog.second";
+    private final static String KEY_DOWN_SAMPLES = "daemon.autoscale.down.samples";
+    private final static String KEY_POLLERS_MIN = "daemon.autoscale.pollers.min";
+    private final static String KEY_POLLERS_MAX = "daemon.autoscale.pollers.max";
+    private final static String KEY_WORKERS_MIN = "daemon.autoscale.workers.min";
+    private final static String KEY_WORKERS_MAX = "daemon.autoscale.workers.max";
+
+    private static final Logger logger = Logger.getLogger( Autoscaler.class );
+}
@@ -0,0 +1,87 @@
+package com.raverun.match.server.impl;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.raverun.match.api.MatchParam;
+import com.raverun.match.server.api.BatchMatchHandler;
+import com.raverun.match.server.api.MatcherRunnableFactory;
+import com.raverun.match.server.api.PartialBatchFailureException;
+
+/**
+ * The batch counterpart of {@code MatcherRunnable}.
+ * <p>
+ * If the batch fails, its requests are matched again one at a time, so that one bad request
+ * does not fail those batched with it; unless the {@code BatchMatchHandler} already said which
+ * ones failed. Either way {@link #failureOf(int)} tells the outcome of each request.
+ */
+public class BatchMatcherRunnable implements Runnable
+{
+    public BatchMatcherRunnable( BatchMatchHandler batchHandler, MatcherRunnableFactory runnableFactory,
+        List<MatchParam> params, List<Object> keys )
+    {
+        this.batchHandler = batchHandler;
+        this.runnableFactory = runnableFactory;
+        this.params = params;
+        this.keys = keys;
+        this.failures = new RuntimeException[ params.size() ];
+    }
+
+    public void run()
+    {
+        logger.info( toLogPrefix() + "start process" );
+        try
+        {
+            batchHandler.process( params, keys );
+        }
+        catch( PartialBatchFailureException e )
+        {
+            for( int i = 0; i < failures.length; i++ )
+                failures[ i ] = e.failureOf( i );
+        }
+        catch( RuntimeException e )
+        {
+            logger.warn( toLogPrefix() + "failed, matching them one at a time: " + e );
+            for( int i = 0; i < failures.length; i++ )
+            {
+                try
+                {
+                    runnableFactory.create( params.get( i ), keys.get( i ) ).run();
+                }
+                catch( RuntimeException f )
+                {
+                    logger.error( "match failed for " + params.get( i ), f );
+                    failures[ i ] = f;
+                }
+            }
+        }
+        logger.info( toLogPrefix() + "finished" );
+    }
+
+    /**
+     * @return what the {@code index}th request failed with once this has run; null if it succeeded
+     */
+    public RuntimeException failureOf( int index )
+    {
+        return failures[ index ];
+    }
+
+    private final String toLogPrefix()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append( this.getClass().getSimpleName() ).append( " => " );
+        builder.append( params.size() ).append( " requests... " );
+
+        return builder.toString();
+    }
+
+    private final List<MatchParam> params;
+    private final List<Object> keys;
+    private final BatchMatchHandler batchHandler;
+    private final MatcherRunnableFactory runnableFactory;
+    /** written by the worker before the dispatcher reports the outcome */
+    private final RuntimeException[] failures;
+
+    private static final Logger logger = Logger.getLogger( BatchMatcherRunnable.class );
+}
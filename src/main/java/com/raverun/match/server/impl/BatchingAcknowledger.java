@@ -0,0 +1,123 @@
+package com.raverun.match.server.impl;
+
+import java.io.IOException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.raverun.match.server.api.Acknowledger;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Acknowledges deliveries on a non-transactional {@code Channel} in batches.
+ * <p>
+ * Acked delivery tags are held back until {@code batchSize} acks have accumulated or the
+ * oldest held ack is {@code window} old, whichever comes first. The tags that precede the
+ * oldest delivery still registered and unsettled then go out as a single
+ * {@code basic.ack(multiple=true)}; those that follow it are acked one by one, so that a slow
+ * delivery does not hold back the acks of later ones and keep the prefetch window full.
+ * The window is only checked when this class is called, so an idle consumer should call
+ * {@link #flushIfDue()} periodically.
+ *
+ * @author Gavin Bong
+ */
+@ThreadSafe
+public class BatchingAcknowledger implements Acknowledger
+{
+    public BatchingAcknowledger( Channel channel, int batchSize, long window, TimeUnit unit )
+    {
+        this.channel     = channel;
+        this.batchSize   = Math.max( 1, batchSize );
+        this.windowNanos = unit.toNanos( window );
+    }
+
+    public synchronized void register( long deliveryTag )
+    {
+        pending.add( deliveryTag );
+    }
+
+    public synchronized void ack( long deliveryTag ) throws IOException
+    {
+        if( !pending.remove( deliveryTag ) )
+            return;
+
+        if( completed.isEmpty() )
+            oldestHeldAt = System.nanoTime();
+
+        completed.add( deliveryTag );
+        if( completed.size() >= batchSize )
+            flush();
+        else
+            flushIfDue();
+    }
+
+    /**
+     * The copy is published straight away; the ack of the original joins the current batch
+     */
+    public synchronized void requeue( String queue, Envelope envelope, AMQP.BasicProperties props, byte[] body ) throws IOException
+    {
+        if( !pending.contains( envelope.getDeliveryTag() ) )
+            return;
+
+        synchronized( channel )
+        {
+            channel.basicPublish( DEFAULT_EXCHANGE, queue, props, body );
+        }
+        ack( envelope.getDeliveryTag() );
+    }
+
+    public synchronized void flushIfDue() throws IOException
+    {
+        if( !completed.isEmpty() && System.nanoTime() - oldestHeldAt >= windowNanos )
+            flush();
+    }
+
+    /**
+     * Acknowledges every held tag: in one go up to the oldest unsettled delivery, singly after it
+     */
+    public synchronized void flush() throws IOException
+    {
+        if( completed.isEmpty() )
+            return;
+
+        final SortedSet<Long> contiguous = pending.isEmpty() ? completed : completed.headSet( pending.first() );
+        final int count = completed.size();
+        final int singly = count - contiguous.size();
+        final long upTo = completed.last();
+        synchronized( channel )
+        {
+            if( !contiguous.isEmpty() )
+                channel.basicAck( contiguous.last(), MULTIPLE );
+            if( singly > 0 )
+            {
+                for( Long tag : completed.tailSet( pending.first() ) )
+                    channel.basicAck( tag, SINGLE );
+            }
+        }
+        completed.clear();
+
+        if( logger.isDebugEnabled() )
+            logger.debug( "acked " + count + " deliveries up to deliveryTag:" + upTo + ( singly > 0 ? ", " + singly + " of them singly" : "" ) );
+    }
+
+    private final Channel channel;
+    private final int batchSize;
+    private final long windowNanos;
+
+    @GuardedBy("this") private final SortedSet<Long> pending = new TreeSet<Long>();
+    @GuardedBy("this") private final SortedSet<Long> completed = new TreeSet<Long>();
+    @GuardedBy("this") private long oldestHeldAt;
+
+    private static final boolean MULTIPLE = true;
+    private static final boolean SINGLE = false;
+    private static final String DEFAULT_EXCHANGE = "";
+
+    private static final Logger logger = Logger.getLogger( BatchingAcknowledger.class );
+}
@@ -0,0 +1,48 @@
+package com.raverun.match.server.impl;
+
+import java.util.Arrays;
+
+import com.raverun.match.api.MatchParam;
+import com.raverun.match.server.api.MatchKeyExtractor;
+
+/**
+ * Identifies a request by its serialized form, so requests are only equal if
+ * producers sent byte-for-byte identical messages.
+ */
+public class BodyMatchKeyExtractor implements MatchKeyExtractor
+{
+    public Object keyOf( MatchParam param, byte[] body )
+    {
+        return new BodyKey( body );
+    }
+
+    private static final class BodyKey
+    {
+        BodyKey( byte[] body )
+        {
+            this.body = body;
+            this.hash = Arrays.hashCode( body );
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if( this == o )
+                return true;
+            if( !( o instanceof BodyKey ) )
+                return false;
+
+            BodyKey other = (BodyKey)o;
+            return hash == other.hash && Arrays.equals( body, other.body );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        private final byte[] body;
+        private final int hash;
+    }
+}
@@ -0,0 +1,195 @@
+package com.raverun.match.server.impl;
+
+import java.io.IOException;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.raverun.queue.NullQueueConnection;
+import com.raverun.shared.Configuration;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.QueueingConsumer;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Drives the invalidation of the {@code CachingMatchHandler} from the broker.
+ * <p>
+ * Each server binds a queue of its own (exclusive, named by the broker) to
+ * {@code rabbitmq.exchange.match} with the routing key {@code match.cache.invalidation.key},
+ * so that every server sees every invalidation. A message whose body is empty or {@code *}
+ * invalidates the whole cache; any other is decoded like a match request (by its
+ * {@code content-type}) and invalidates that request, which must have been sent with the
+ * same body.
+ * <p>
+ * Invalidations published while the connection is down are lost with the queue, so the whole
+ * cache is invalidated whenever the queue is bound again. Disabled unless the routing key is set.
+ *
+ * @author Gavin Bong
+ */
+@Singleton
+@ThreadSafe
+public class CacheInvalidator implements Runnable
+{
+    @Inject
+    public CacheInvalidator( CachingMatchHandler cache, MatchParamCodecs codecs, Provider<Connection> connections,
+        Configuration config )
+    {
+        this.cache = cache;
+        this.codecs = codecs;
+        this.connections = connections;
+        this.exchange = config.s( DefaultPoller.KEY_EXCHANGE );
+        this.routingKey = trimmed( config.s( KEY_ROUTING_KEY ) );
+        this.retryInterval = Math.max( 1, config.i( DefaultPoller.KEY_RECOVERY_INTERVAL_MS, 1000 ) );
+    }
+
+    public synchronized void start()
+    {
+        if( routingKey == null || thread != null )
+            return;
+
+        logger.info( "Listening for match cache invalidations on " + exchange + " with routing key " + routingKey );
+
+        thread = new Thread( this, "match cache invalidator" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    public synchronized void stop()
+    {
+        running = false;
+        if( thread != null )
+            thread.interrupt();
+    }
+
+    public void run()
+    {
+        try
+        {
+            while( running )
+            {
+                try
+                {
+                    consume();
+                }
+                catch( IOException e )
+                {
+                    logger.warn( "invalidation queue lost: " + e.getMessage() );
+                }
+                catch( ShutdownSignalException e )
+                {
+                    logger.warn( "invalidation queue lost: " + e.getMessage() );
+                }
+                finally
+                {
+                    closeQuietly();
+                }
+
+                if( running )
+                    Thread.sleep( retryInterval );
+            }
+        }
+        catch( InterruptedException ie )
+        {
+            logger.info( "cache invalidator interrupted" );
+        }
+    }
+
+    private void consume() throws IOException, InterruptedException
+    {
+        connection = connections.get();
+        if( connection == null || connection instanceof NullQueueConnection )
+        {
+            connection = null;
+            throw new IOException( "no broker connection" );
+        }
+
+        Channel channel = connection.createChannel();
+        if( channel == null )
+            throw new IOException( "No more channels" );
+
+        final boolean DURABLE = true;
+        channel.exchangeDeclare( exchange, DefaultPoller.EXCHANGE_TYPE, DURABLE );
+        final String queue = channel.queueDeclare().getQueue(); // exclusive, deleted with the connection
+        channel.queueBind( queue, exchange, routingKey );
+
+        QueueingConsumer consumer = new QueueingConsumer( channel );
+        final boolean NO_ACK = true;
+        channel.basicConsume( queue, NO_ACK, consumer );
+
+        cache.invalidateAll(); // whatever was published while nobody listened
+
+        while( running )
+        {
+            QueueingConsumer.Delivery delivery = consumer.nextDelivery( POLL_MS );
+            if( delivery != null )
+                handle( delivery );
+        }
+    }
+
+    private void handle( QueueingConsumer.Delivery delivery )
+    {
+        final byte[] body = delivery.getBody();
+        if( body == null || body.length == 0 || ( body.length == 1 && body[ 0 ] == '*' ) )
+        {
+            logger.info( "invalidating the match cache" );
+            cache.invalidateAll();
+            return;
+        }
+
+        try
+        {
+            final String contentType = ( delivery.getProperties() == null ) ? null : delivery.getProperties().getContentType();
+            cache.invalidate( codecs.decode( contentType, body ), body );
+        }
+        catch( IllegalArgumentException e )
+        {
+            logger.warn( "ignoring an invalidation that could not be decoded: " + e.getMessage() );
+        }
+    }
+
+    private void closeQuietly()
+    {
+        if( connection == null )
+            return;
+
+        try
+        {
+            connection.close( 500 );
+        }
+        catch( IOException ignored ) {}
+        catch( ShutdownSignalException ignored ) {}
+        connection = null;
+    }
+
+    private static String trimmed( String value )
+    {
+        if( value == null || value.trim().length() == 0 )
+            return null;
+
+        return value.trim();
+    }
+
+    private final CachingMatchHandler cache;
+    private final MatchParamCodecs codecs;
+    private final Provider<Connection> connections;
+    private final String exchange;
+    private final String routingKey;
+    private final int retryInterval;
+
+    // used by the invalidator thread only
+    private Connection connection;
+
+    private volatile boolean running = true;
+    private Thread thread;
+
+    private static final long POLL_MS = 1000;
+
+    private final static String KEY_ROUTING_KEY = "match.cache.invalidation.key";
+
+    private static final Logger logger = Logger.getLogger( CacheInvalidator.class );
+}
@@ -0,0 +1,193 @@
+package com.raverun.match.server.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.raverun.match.api.MatchHandler;
+import com.raverun.match.api.MatchParam;
+import com.raverun.match.logic.MatchHandlerImpl;
+import com.raverun.match.server.api.KeyedMatchHandler;
+import com.raverun.match.server.api.MatchKeyExtractor;
+import com.raverun.match.server.metrics.Gauge;
+import com.raverun.match.server.metrics.MatchMetrics;
+import com.raverun.shared.Configuration;
+
+/**
+ * Remembers which requests were matched recently, so that a request seen again is not
+ * matched again: the match stored its results the first time.
+ * <p>
+ * A request is remembered once its match has completed without throwing, for
+ * {@code match.cache.ttl.millisecond}, and at most {@code match.cache.size} of them
+ * are, the least recently asked for going first. Requests are identified by the
+ * {@code MatchKeyExtractor}: the poller passes on the key it made of the message body, and
+ * only callers that do not know it have the {@code MatchParam} serialized to make one.
+ * <p>
+ * When the data matches are computed from changes, {@link #invalidate(MatchParam, byte[])} or
+ * {@link #invalidateAll()} (see {@code CacheInvalidator}) make the affected requests
+ * be matched again. A match that was running during an invalidation is not remembered.
+ * <p>
+ * Disabled unless {@code match.cache.size} is positive; it is 0 by default.
+ *
+ * @author Gavin Bong
+ */
+@Singleton
+@ThreadSafe
+public class CachingMatchHandler implements KeyedMatchHandler
+{
+    @Inject
+    public CachingMatchHandler( MatchHandlerImpl delegate, MatchKeyExtractor keyExtractor, Configuration config,
+        MatchMetrics metrics )
+    {
+        this( (MatchHandler)delegate, keyExtractor, config, metrics );
+    }
+
+    public CachingMatchHandler( MatchHandler delegate, MatchKeyExtractor keyExtractor, Configuration config,
+        MatchMetrics metrics )
+    {
+        this.delegate = delegate;
+        this.keyExtractor = keyExtractor;
+        this.maxEntries = config.i( KEY_SIZE, 0 );
+        this.ttl = Math.max( 0, config.i( KEY_TTL_MS, 300000 ) ) * 1000000L;
+        this.hits = metrics.counter( "match_cache_hits_total", "Requests not matched because they were matched recently" );
+        this.misses = metrics.counter( "match_cache_misses_total", "Requests matched because they were not in the cache" );
+        this.evictions = metrics.counter( "match_cache_evictions_total", "Cached requests evicted to make room" );
+        this.invalidated = metrics.counter( "match_cache_invalidations_total", "Invalidations received" );
+
+        metrics.gauge( "match_cache_entries", "Requests remembered as matched", new Gauge()
+        {
+            public long value()
+            {
+                synchronized( CachingMatchHandler.this )
+                {
+                    return entries.size();
+                }
+            }
+        });
+
+        logger.info( "Match cache: " + ( maxEntries > 0 ? maxEntries + " requests for " + ttl / 1000000L + " ms" : "disabled" ) );
+    }
+
+    public void process( MatchParam param )
+    {
+        process( param, ( maxEntries > 0 ) ? keyOf( param ) : null );
+    }
+
+    public void process( MatchParam param, Object key )
+    {
+        if( maxEntries <= 0 || key == null )
+        {
+            delegate.process( param );
+            return;
+        }
+
+        final long generation;
+        synchronized( this )
+        {
+            Long matchedAt = entries.get( key );
+            if( matchedAt != null && System.nanoTime() - matchedAt.longValue() < ttl )
+            {
+                hits.incrementAndGet();
+                return;
+            }
+            if( matchedAt != null )
+                entries.remove( key );
+            generation = invalidations;
+        }
+
+        misses.incrementAndGet();
+        delegate.process( param );
+
+        synchronized( this )
+        {
+            if( generation == invalidations )
+                entries.put( key, Long.valueOf( System.nanoTime() ) );
+        }
+    }
+
+    /**
+     * @param body the message {@code param} was decoded from; its requests are keyed the 
+     *   same way as those the pollers receive
+     */
+    public void invalidate( MatchParam param, byte[] body )
+    {
+        final Object key = keyExtractor.keyOf( param, body );
+        invalidated.incrementAndGet();
+        synchronized( this )
+        {
+            invalidations++;
+            if( key != null )
+                entries.remove( key );
+            else
+                entries.clear();
+        }
+    }
+
+    public synchronized void invalidateAll()
+    {
+        invalidated.incrementAndGet();
+        invalidations++;
+        entries.clear();
+    }
+
+    /**
+     * @return null if {@code param} cannot be serialized
+     */
+    private Object keyOf( MatchParam param )
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream( 256 );
+            ObjectOutputStream out = new ObjectOutputStream( bytes );
+            out.writeObject( param );
+            out.close();
+            return keyExtractor.keyOf( param, bytes.toByteArray() );
+        }
+        catch( IOException e )
+        {
+            logger.warn( "not caching a request that cannot be serialized: " + e );
+            return null;
+        }
+    }
+
+    private final MatchHandler delegate;
+    private final MatchKeyExtractor keyExtractor;
+    private final int maxEntries;
+    private final long ttl;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+    private final AtomicLong invalidated;
+
+    /** key -> when its match completed, least recently asked for first */
+    @GuardedBy("this") private final Map<Object, Long> entries = new LinkedHashMap<Object, Long>( 16, 0.75f, true )
+    {
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<Object, Long> eldest )
+        {
+            if( size() <= maxEntries )
+                return false;
+
+            evictions.incrementAndGet();
+            return true;
+        }
+
+        private static final long serialVersionUID = 1L;
+    };
+    @GuardedBy("this") private long invalidations;
+
+    private final static String KEY_SIZE = "match.cache.size";
+    private final static String KEY_TTL_MS = "match.cache.ttl.millisecond";
+
+    private static final Logger logger = Logger.getLogger( CachingMatchHandler.class );
+}
@@ -0,0 +1,298 @@
+package com.raverun.match.server.impl;
+
+import java.util.Arrays;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * An open-addressing hash table from {@code long} keys to sorted {@code long[]} candidate sets,
+ * without boxing. A table is filled (or copied and changed) by one thread and then published;
+ * after that it is only read. Copies share the candidate arrays of the keys they do not change.
+ * <p>
+ * A key whose last candidate was removed keeps its slot, with an empty set, until the table grows.
+ *
+ * @author Gavin Bong
+ */
+@NotThreadSafe
+final class CandidateTable
+{
+    CandidateTable( int expectedKeys )
+    {
+        int capacity = MIN_CAPACITY;
+        while( capacity < expectedKeys * 2 && capacity < MAX_CAPACITY )
+            capacity <<= 1;
+
+        this.keys = new long[ capacity ];
+        this.values = new long[ capacity ][];
+    }
+
+    private CandidateTable( CandidateTable other )
+    {
+        this.keys = other.keys.clone();
+        this.values = other.values.clone();
+        this.size = other.size;
+        this.candidates = other.candidates;
+    }
+
+    CandidateTable copy()
+    {
+        return new CandidateTable( this );
+    }
+
+    long[] get( long key )
+    {
+        final int slot = find( key );
+        return ( slot < 0 ) ? EMPTY : values[ slot ];
+    }
+
+    /**
+     * @return whether the set of {@code key} changed
+     */
+    boolean add( long key, long candidate )
+    {
+        int slot = find( key );
+        if( slot < 0 )
+        {
+            slot = insert( key, new long[] { candidate } );
+            candidates++;
+            return true;
+        }
+
+        final long[] set = values[ slot ];
+        final int at = Arrays.binarySearch( set, candidate );
+        if( at >= 0 )
+            return false;
+
+        final int insertAt = -at - 1;
+        long[] grown = new long[ set.length + 1 ];
+        System.arraycopy( set, 0, grown, 0, insertAt );
+        grown[ insertAt ] = candidate;
+        System.arraycopy( set, insertAt, grown, insertAt + 1, set.length - insertAt );
+        values[ slot ] = grown;
+        candidates++;
+        return true;
+    }
+
+    /**
+     * @return whether the set of {@code key} changed
+     */
+    boolean remove( long key, long candidate )
+    {
+        final int slot = find( key );
+        if( slot < 0 )
+            return false;
+
+        final long[] set = values[ slot ];
+        final int at = Arrays.binarySearch( set, candidate );
+        if( at < 0 )
+            return false;
+
+        long[] shrunk = ( set.length == 1 ) ? EMPTY : new long[ set.length - 1 ];
+        System.arraycopy( set, 0, shrunk, 0, at );
+        System.arraycopy( set, at + 1, shrunk, at, set.length - at - 1 );
+        values[ slot ] = shrunk;
+        candidates--;
+        return true;
+    }
+
+    /**
+     * Replaces the set of {@code key}, which the table takes over
+     *
+     * @param sorted ascending and without duplicates
+     */
+    void put( long key, long[] sorted )
+    {
+        final int slot = find( key );
+        if( slot < 0 )
+            insert( key, sorted );
+        else
+        {
+            candidates -= values[ slot ].length;
+            values[ slot ] = sorted;
+        }
+        candidates += sorted.length;
+    }
+
+    /**
+     * @return keys with at least one candidate
+     */
+    int keys()
+    {
+        int count = 0;
+        for( long[] set : values )
+        {
+            if( set != null && set.length > 0 )
+                count++;
+        }
+        return count;
+    }
+
+    long candidates()
+    {
+        return candidates;
+    }
+
+    private int find( long key )
+    {
+        final int mask = keys.length - 1;
+        for( int slot = hash( key ) & mask; values[ slot ] != null; slot = ( slot + 1 ) & mask )
+        {
+            if( keys[ slot ] == key )
+                return slot;
+        }
+        return -1;
+    }
+
+    private int insert( long key, long[] set )
+    {
+        if( ( size + 1 ) * 2 > keys.length )
+            grow();
+
+        final int mask = keys.length - 1;
+        int slot = hash( key ) & mask;
+        while( values[ slot ] != null )
+            slot = ( slot + 1 ) & mask;
+
+        keys[ slot ] = key;
+        values[ slot ] = set;
+        size++;
+        return slot;
+    }
+
+    /**
+     * Drops keys without candidates and, unless that freed enough slots, doubles the capacity
+     */
+    private void grow()
+    {
+        final long[] oldKeys = keys;
+        final long[][] oldValues = values;
+        final int capacity = ( ( keys() + 1 ) * 4 > oldKeys.length ) ? oldKeys.length << 1 : oldKeys.length;
+        if( capacity > MAX_CAPACITY || capacity <= 0 )
+            throw new IllegalStateException( "candidate index is full" );
+
+        keys = new long[ capacity ];
+        values = new long[ capacity ][];
+        size = 0;
+
+        final int mask = capacity - 1;
+        for( int i = 0; i < oldKeys.length; i++ )
+        {
+            if( oldValues[ i ] == null || oldValues[ i ].length == 0 )
+                continue;
+
+            int slot = hash( oldKeys[ i ] ) & mask;
+            while( values[ slot ] != null )
+                slot = ( slot + 1 ) & mask;
+            keys[ slot ] = oldKeys[ i ];
+            values[ slot ] = oldValues[ i ];
+            size++;
+        }
+    }
+
+    /**
+     * Spreads sequential ids over the table (the finalizer of MurmurHash3)
+     */
+    private static int hash( long key )
+    {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int)key;
+    }
+
+    /**
+     * Collects (key, candidate) rows in any order and turns them into a table
+     */
+    static final class Builder
+    {
+        void add( long key, long candidate )
+        {
+            if( rows == keyColumn.length )
+            {
+                keyColumn = resized( keyColumn, rows * 2 );
+                candidateColumn = resized( candidateColumn, rows * 2 );
+            }
+            keyColumn[ rows ] = key;
+            candidateColumn[ rows ] = candidate;
+            rows++;
+        }
+
+        int rows()
+        {
+            return rows;
+        }
+
+        CandidateTable build()
+        {
+            // first count the candidates of each key, then fill exactly sized arrays
+            CandidateTable counts = new CandidateTable( MIN_CAPACITY );
+            for( int i = 0; i < rows; i++ )
+            {
+                long[] count = counts.get( keyColumn[ i ] );
+                if( count == EMPTY )
+                    counts.put( keyColumn[ i ], new long[] { 1 } );
+                else
+                    count[ 0 ]++;
+            }
+
+            final CandidateTable table = new CandidateTable( counts.size );
+            for( int i = 0; i < counts.keys.length; i++ )
+            {
+                if( counts.values[ i ] != null )
+                    table.insert( counts.keys[ i ], new long[ (int)counts.values[ i ][ 0 ] ] );
+            }
+            counts = null;
+
+            final int[] filled = new int[ table.keys.length ];
+            for( int i = 0; i < rows; i++ )
+            {
+                final int slot = table.find( keyColumn[ i ] );
+                table.values[ slot ][ filled[ slot ]++ ] = candidateColumn[ i ];
+            }
+
+            for( int i = 0; i < table.keys.length; i++ )
+            {
+                if( table.values[ i ] == null )
+                    continue;
+                table.values[ i ] = distinct( table.values[ i ] );
+                table.candidates += table.values[ i ].length;
+            }
+            return table;
+        }
+
+        private static long[] distinct( long[] set )
+        {
+            Arrays.sort( set );
+            int unique = 0;
+            for( int i = 0; i < set.length; i++ )
+            {
+                if( i == 0 || set[ i ] != set[ i - 1 ] )
+                    set[ unique++ ] = set[ i ];
+            }
+            return ( unique == set.length ) ? set : resized( set, unique );
+        }
+
+        private static long[] resized( long[] array, int length )
+        {
+            long[] copy = new long[ length ];
+            System.arraycopy( array, 0, copy, 0, Math.min( length, array.length ) );
+            return copy;
+        }
+
+        private long[] keyColumn = new long[ 1024 ];
+        private long[] candidateColumn = new long[ 1024 ];
+        private int rows;
+    }
+
+    private long[] keys;
+    private long[][] values; // null marks a free slot
+    private int size;        // used slots
+    private long candidates;
+
+    static final long[] EMPTY = new long[ 0 ];
+
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+}
@@ -0,0 +1,248 @@
+package com.raverun.match.server.impl;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.raverun.match.server.api.Acknowledger;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.QueueingConsumer;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Consumes one queue on one {@code Channel} using {@code basic.consume} and passes
+ * every delivery to a (shared) {@code DeliveryHandler}.
+ * <p>
+ * The consumer callbacks run on the connection thread, so we only enqueue there
+ * (via {@code QueueingConsumer}) and do the decoding and submission on the thread
+ * that runs this {@code Runnable}. {@code exited} is counted down when the loop ends
+ * for whatever reason.
+ * <p>
+ * The {@code basic.qos} prefetch count is re-read after every delivery (or idle wait)
+ * and sent to the broker when it has changed, so it can follow an adaptive limit.
+ * <p>
+ * If the channel alone fails while the connection stays open, a new channel is opened
+ * on the same connection and the consumer registered again, up to {@code maxRecoveries}
+ * times in a row; a delivery on the new channel resets that count. Deliveries that were
+ * unacknowledged on the failed channel are redelivered by the broker. A failure of the
+ * connection ends the loop and is left to the {@code Poller}; {@link #failure()} then tells why.
+ *
+ * @author Gavin Bong
+ */
+public class ChannelConsumer implements Runnable
+{
+    /**
+     * @param prefetch {@code basic.qos} prefetch count; 0 leaves the channel unlimited
+     * @param idleMillis how long to wait for a delivery before flushing held acks
+     * @param recoveries counts the channels re-opened
+     */
+    public ChannelConsumer( Connection connection, Channel channel, String queue, Acknowledgers ackers,
+        DeliveryHandler handler, Prefetch prefetch, long idleMillis, int maxRecoveries, long recoveryIntervalMillis,
+        AtomicLong recoveries, CountDownLatch exited )
+    {
+        this.connection = connection;
+        this.channel = channel;
+        this.queue = queue;
+        this.ackers = ackers;
+        this.handler = handler;
+        this.prefetch = prefetch;
+        this.idleMillis = idleMillis;
+        this.maxRecoveries = maxRecoveries;
+        this.recoveryIntervalMillis = recoveryIntervalMillis;
+        this.recoveries = recoveries;
+        this.exited = exited;
+    }
+
+    public void run()
+    {
+        final String name = Thread.currentThread().getName();
+        Acknowledger acker = null;
+
+        try
+        {
+            while( running )
+            {
+                try
+                {
+                    acker = ackers.newAcknowledger( channel );
+                    consume( acker );
+                }
+                catch( ShutdownSignalException sse )
+                {
+                    failure = sse;
+                    if( sse.isHardError() || !connection.isOpen() )
+                    {
+                        logger.warn( name + " connection shut down: " + sse.getMessage() );
+                        return;
+                    }
+                    logger.warn( name + " channel shut down: " + sse.getMessage() );
+                }
+                catch( IOException ioe )
+                {
+                    failure = ioe;
+                    if( !connection.isOpen() )
+                    {
+                        logger.warn( name + " connection lost: " + ioe.getMessage() );
+                        return;
+                    }
+                    logger.warn( name + " channel failed: " + ioe.getMessage() );
+                }
+
+                if( !running )
+                    return;
+
+                flushQuietly( acker );
+                acker = null;
+
+                if( ++failures > maxRecoveries )
+                {
+                    logger.error( name + " gave up after " + maxRecoveries + " channel recoveries" );
+                    return;
+                }
+
+                Thread.sleep( recoveryIntervalMillis );
+                channel = connection.createChannel();
+                if( channel == null )
+                    throw new IOException( "No more channels" );
+
+                recoveries.incrementAndGet();
+                logger.info( name + " re-opened channel " + channel.getChannelNumber() + " (attempt " + failures + ")" );
+            }
+        }
+        catch( InterruptedException ie )
+        {
+            logger.info( name + " interrupted" );
+        }
+        catch( ShutdownSignalException sse )
+        {
+            failure = sse;
+            logger.warn( name + " connection shut down: " + sse.getMessage() );
+        }
+        catch( Throwable t )
+        {
+            failure = t;
+            logger.error( name + " failed", t );
+        }
+        finally
+        {
+            flushQuietly( acker );
+            exited.countDown();
+        }
+    }
+
+    public void stop()
+    {
+        running = false;
+    }
+
+    /**
+     * @return the last error on this consumer's channel, or null
+     */
+    public Throwable failure()
+    {
+        return failure;
+    }
+
+    /**
+     * Registers a consumer on {@code channel} and hands its deliveries to the handler until stopped
+     */
+    private void consume( Acknowledger acker ) throws IOException, InterruptedException
+    {
+        final boolean NO_ACK = false;
+
+        int window = prefetch.count();
+        if( window > 0 )
+            channel.basicQos( 0, window, false );
+
+        QueueingConsumer consumer = new QueueingConsumer( channel );
+        channel.basicConsume( queue, NO_ACK, consumer );
+
+        while( running )
+        {
+            QueueingConsumer.Delivery delivery = consumer.nextDelivery( idleMillis );
+            if( delivery != null )
+            {
+                handler.handle( acker, delivery.getEnvelope(), delivery.getProperties(), delivery.getBody() );
+                failures = 0;
+            }
+
+            acker.flushIfDue();
+
+            final int wanted = prefetch.count();
+            if( wanted != window && window > 0 && wanted > 0 )
+            {
+                synchronized( channel )
+                {
+                    channel.basicQos( 0, wanted, false );
+                }
+                if( logger.isDebugEnabled() )
+                    logger.debug( Thread.currentThread().getName() + " prefetch " + window + " -> " + wanted );
+                window = wanted;
+            }
+        }
+    }
+
+    private void flushQuietly( Acknowledger acker )
+    {
+        if( acker == null )
+            return;
+
+        try
+        {
+            acker.flush();
+        }
+        catch( IOException ignored ) {}
+        catch( ShutdownSignalException ignored ) {}
+    }
+
+    /**
+     * Source of the {@code basic.qos} prefetch count
+     */
+    public static interface Prefetch
+    {
+        int count();
+    }
+
+    /**
+     * @param count 0 for an unlimited channel
+     */
+    public static Prefetch fixed( final int count )
+    {
+        return new Prefetch()
+        {
+            public int count()
+            {
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Creates the {@code Acknowledger} for a (re-opened) channel
+     */
+    public static interface Acknowledgers
+    {
+        Acknowledger newAcknowledger( Channel channel ) throws IOException;
+    }
+
+    private final Connection connection;
+    private final String queue;
+    private final Acknowledgers ackers;
+    private final DeliveryHandler handler;
+    private final Prefetch prefetch;
+    private final long idleMillis;
+    private final int maxRecoveries;
+    private final long recoveryIntervalMillis;
+    private final AtomicLong recoveries;
+    private final CountDownLatch exited;
+
+    private Channel channel;
+    private int failures; // consecutive channel failures without a delivery in between
+    private volatile boolean running = true;
+    private volatile Throwable failure;
+
+    private static final Logger logger = Logger.getLogger( ChannelConsumer.class );
+}
@@ -0,0 +1,493 @@
+package com.raverun.match.server.impl;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import net.jcip.annotations.Immutable;
+
+import com.raverun.match.api.MatchParam;
+import com.raverun.match.server.api.MatchParamCodec;
+
+/**
+ * A compact binary format for {@code MatchParam}, sent with the content-type
+ * {@code application/x-match-param}.
+ * <p>
+ * A body is a version byte and the {@link #fingerprint()} of the properties it carries,
+ * followed by their values: every property of {@code MatchParam} with a public getter and
+ * setter, in the order of their names, without names or type tags. Integers are zig-zag
+ * varints, floating point numbers their IEEE 754 bits, strings and enum names a varint length
+ * and UTF-8, dates their epoch milliseconds. A property of an object type is preceded by a
+ * byte that is 0 when it is null.
+ * <p>
+ * The properties are looked up once, when the codec is created; a {@code MatchParam} without
+ * a public no-argument constructor, or with a property of another type, cannot be encoded in
+ * this format. A body written against a {@code MatchParam} with other properties is refused.
+ * Decoding reads straight from the buffer; only the decoded values are allocated.
+ *
+ * @author Gavin Bong
+ */
+@Immutable
+public class CompactMatchParamCodec implements MatchParamCodec
+{
+    /**
+     * @throws IllegalArgumentException if {@code MatchParam} cannot be written in this format
+     */
+    public CompactMatchParamCodec()
+    {
+        this( MatchParam.class );
+    }
+
+    /**
+     * Writes the properties of {@code type}, and creates one when decoding
+     */
+    CompactMatchParamCodec( Class<? extends MatchParam> type )
+    {
+        try
+        {
+            constructor = type.getConstructor();
+        }
+        catch( NoSuchMethodException e )
+        {
+            throw new IllegalArgumentException( type.getName() + " has no public no-argument constructor" );
+        }
+
+        properties = propertiesOf( type );
+        if( properties.length == 0 )
+            throw new IllegalArgumentException( type.getName() + " has no properties with a public getter and setter" );
+
+        StringBuilder signature = new StringBuilder();
+        for( Property property : properties )
+            signature.append( property.name ).append( ':' ).append( property.type.getName() ).append( ';' );
+        fingerprint = signature.toString().hashCode();
+    }
+
+    public String contentType()
+    {
+        return CONTENT_TYPE;
+    }
+
+    /**
+     * Identifies the properties, and their types, that a body carries
+     */
+    public int fingerprint()
+    {
+        return fingerprint;
+    }
+
+    public MatchParam decode( byte[] buffer, int offset, int length )
+    {
+        if( offset < 0 || length < 0 || offset + length > buffer.length )
+            throw new IllegalArgumentException( "region " + offset + "+" + length + " outside a buffer of " + buffer.length );
+
+        final Reader in = new Reader( buffer, offset, offset + length );
+        final int version = in.readByte();
+        if( version != VERSION )
+            throw new IllegalArgumentException( "unknown version " + version );
+        if( in.readInt() != fingerprint )
+            throw new IllegalArgumentException( "written against a MatchParam with other properties" );
+
+        final MatchParam param = newParam();
+        for( Property property : properties )
+            property.set( param, property.read( in ) );
+
+        if( in.remaining() != 0 )
+            throw new IllegalArgumentException( in.remaining() + " bytes after the last property" );
+        return param;
+    }
+
+    /**
+     * The producers' side
+     */
+    public byte[] encode( MatchParam param )
+    {
+        final Writer out = new Writer( 64 );
+        out.writeByte( VERSION );
+        out.writeInt( fingerprint );
+        for( Property property : properties )
+            property.write( out, property.get( param ) );
+        return out.toByteArray();
+    }
+
+    private MatchParam newParam()
+    {
+        try
+        {
+            return constructor.newInstance();
+        }
+        catch( InstantiationException e )
+        {
+            throw new IllegalStateException( "cannot create a MatchParam", e );
+        }
+        catch( IllegalAccessException e )
+        {
+            throw new IllegalStateException( "cannot create a MatchParam", e );
+        }
+        catch( InvocationTargetException e )
+        {
+            throw new IllegalStateException( "cannot create a MatchParam", e.getCause() );
+        }
+    }
+
+    private static Property[] propertiesOf( Class<?> type )
+    {
+        final BeanInfo info;
+        try
+        {
+            info = Introspector.getBeanInfo( type, Object.class );
+        }
+        catch( IntrospectionException e )
+        {
+            throw new IllegalArgumentException( "cannot inspect " + type.getName() + ": " + e.getMessage() );
+        }
+
+        final List<Property> properties = new ArrayList<Property>();
+        for( PropertyDescriptor descriptor : info.getPropertyDescriptors() )
+        {
+            if( descriptor.getReadMethod() == null || descriptor.getWriteMethod() == null )
+                continue;
+
+            final Kind kind = Kind.of( descriptor.getPropertyType() );
+            if( kind == null )
+                throw new IllegalArgumentException( "property " + descriptor.getName() + " of " + type.getName() +
+                    " has a type the compact format cannot hold: " + descriptor.getPropertyType().getName() );
+
+            properties.add( new Property( descriptor, kind ) );
+        }
+
+        final Property[] sorted = properties.toArray( new Property[ properties.size() ] );
+        Arrays.sort( sorted, new Comparator<Property>()
+        {
+            public int compare( Property a, Property b )
+            {
+                return a.name.compareTo( b.name );
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * The types a property may have, and how each is written
+     */
+    private static enum Kind
+    {
+        BOOLEAN, BYTE, SHORT, CHAR, INT, LONG, FLOAT, DOUBLE, STRING, DATE, ENUM;
+
+        /**
+         * @return null if {@code type} is not supported
+         */
+        static Kind of( Class<?> type )
+        {
+            if( type == boolean.class || type == Boolean.class )
+                return BOOLEAN;
+            if( type == byte.class || type == Byte.class )
+                return BYTE;
+            if( type == short.class || type == Short.class )
+                return SHORT;
+            if( type == char.class || type == Character.class )
+                return CHAR;
+            if( type == int.class || type == Integer.class )
+                return INT;
+            if( type == long.class || type == Long.class )
+                return LONG;
+            if( type == float.class || type == Float.class )
+                return FLOAT;
+            if( type == double.class || type == Double.class )
+                return DOUBLE;
+            if( type == String.class )
+                return STRING;
+            if( type == Date.class )
+                return DATE;
+            if( type.isEnum() )
+                return ENUM;
+            return null;
+        }
+    }
+
+    /**
+     * One property: its accessors and how it is written
+     */
+    private static final class Property
+    {
+        Property( PropertyDescriptor descriptor, Kind kind )
+        {
+            this.name = descriptor.getName();
+            this.type = descriptor.getPropertyType();
+            this.getter = descriptor.getReadMethod();
+            this.setter = descriptor.getWriteMethod();
+            this.kind = kind;
+            this.nullable = !type.isPrimitive();
+        }
+
+        Object get( MatchParam param )
+        {
+            try
+            {
+                return getter.invoke( param );
+            }
+            catch( IllegalAccessException e )
+            {
+                throw new IllegalStateException( "cannot read " + name, e );
+            }
+            catch( InvocationTargetException e )
+            {
+                throw new IllegalStateException( "cannot read " + name, e.getCause() );
+            }
+        }
+
+        void set( MatchParam param, Object value )
+        {
+            try
+            {
+                setter.invoke( param, value );
+            }
+            catch( IllegalAccessException e )
+            {
+                throw new IllegalStateException( "cannot set " + name, e );
+            }
+            catch( InvocationTargetException e )
+            {
+                throw new IllegalArgumentException( "MatchParam refused " + name + "=" + value + ": " + e.getCause() );
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        Object read( Reader in )
+        {
+            if( nullable && in.readByte() == 0 )
+                return null;
+
+            switch( kind )
+            {
+            case BOOLEAN: return Boolean.valueOf( in.readByte() != 0 );
+            case BYTE:    return Byte.valueOf( (byte)in.readByte() );
+            case SHORT:   return Short.valueOf( (short)in.readVarLong() );
+            case CHAR:    return Character.valueOf( (char)in.readVarLong() );
+            case INT:     return Integer.valueOf( (int)in.readVarLong() );
+            case LONG:    return Long.valueOf( in.readVarLong() );
+            case FLOAT:   return Float.valueOf( Float.intBitsToFloat( in.readInt() ) );
+            case DOUBLE:  return Double.valueOf( Double.longBitsToDouble( ((long)in.readInt() << 32) | ( in.readInt() & 0xffffffffL ) ) );
+            case STRING:  return in.readString();
+            case DATE:    return new Date( in.readVarLong() );
+            case ENUM:
+                final String constant = in.readString();
+                try
+                {
+                    return Enum.valueOf( (Class<Enum>)type, constant );
+                }
+                catch( IllegalArgumentException e )
+                {
+                    throw new IllegalArgumentException( "no " + constant + " in " + type.getName() );
+                }
+            default:
+                throw new AssertionError( kind );
+            }
+        }
+
+        void write( Writer out, Object value )
+        {
+            if( nullable )
+            {
+                out.writeByte( value == null ? 0 : 1 );
+                if( value == null )
+                    return;
+            }
+
+            switch( kind )
+            {
+            case BOOLEAN: out.writeByte( ((Boolean)value).booleanValue() ? 1 : 0 ); break;
+            case BYTE:    out.writeByte( ((Byte)value).byteValue() ); break;
+            case SHORT:   out.writeVarLong( ((Short)value).shortValue() ); break;
+            case CHAR:    out.writeVarLong( ((Character)value).charValue() ); break;
+            case INT:     out.writeVarLong( ((Integer)value).intValue() ); break;
+            case LONG:    out.writeVarLong( ((Long)value).longValue() ); break;
+            case FLOAT:   out.writeInt( Float.floatToIntBits( ((Float)value).floatValue() ) ); break;
+            case DOUBLE:
+                final long bits = Double.doubleToLongBits( ((Double)value).doubleValue() );
+                out.writeInt( (int)( bits >>> 32 ) );
+                out.writeInt( (int)bits );
+                break;
+            case STRING:  out.writeString( (String)value ); break;
+            case DATE:    out.writeVarLong( ((Date)value).getTime() ); break;
+            case ENUM:    out.writeString( ((Enum<?>)value).name() ); break;
+            default:
+                throw new AssertionError( kind );
+            }
+        }
+
+        final String name;
+        final Class<?> type;
+        final Method getter;
+        final Method setter;
+        final Kind kind;
+        final boolean nullable;
+    }
+
+    /**
+     * Reads a region of a buffer in place
+     */
+    private static final class Reader
+    {
+        Reader( byte[] buffer, int position, int end )
+        {
+            this.buffer = buffer;
+            this.position = position;
+            this.end = end;
+        }
+
+        int readByte()
+        {
+            if( position >= end )
+                throw new IllegalArgumentException( "truncated" );
+            return buffer[ position++ ];
+        }
+
+        int readInt()
+        {
+            return ( readByte() << 24 ) | ( ( readByte() & 0xff ) << 16 ) | ( ( readByte() & 0xff ) << 8 ) | ( readByte() & 0xff );
+        }
+
+        long readVarLong()
+        {
+            long raw = 0;
+            for( int shift = 0; shift < 64; shift += 7 )
+            {
+                final int b = readByte();
+                raw |= (long)( b & 0x7f ) << shift;
+                if( ( b & 0x80 ) == 0 )
+                    return ( raw >>> 1 ) ^ -( raw & 1 );
+            }
+            throw new IllegalArgumentException( "varint longer than 64 bits" );
+        }
+
+        String readString()
+        {
+            final long length = readVarLong();
+            if( length < 0 || length > remaining() )
+                throw new IllegalArgumentException( "string of " + length + " bytes with " + remaining() + " left" );
+
+            final String value = utf8( buffer, position, (int)length );
+            position += (int)length;
+            return value;
+        }
+
+        int remaining()
+        {
+            return end - position;
+        }
+
+        private final byte[] buffer;
+        private final int end;
+        private int position;
+    }
+
+    /**
+     * A growable buffer
+     */
+    private static final class Writer
+    {
+        Writer( int capacity )
+        {
+            buffer = new byte[ capacity ];
+        }
+
+        void writeByte( int b )
+        {
+            ensure( 1 );
+            buffer[ size++ ] = (byte)b;
+        }
+
+        void writeInt( int value )
+        {
+            ensure( 4 );
+            buffer[ size++ ] = (byte)( value >>> 24 );
+            buffer[ size++ ] = (byte)( value >>> 16 );
+            buffer[ size++ ] = (byte)( value >>> 8 );
+            buffer[ size++ ] = (byte)value;
+        }
+
+        void writeVarLong( long value )
+        {
+            long raw = ( value << 1 ) ^ ( value >> 63 );
+            ensure( 10 );
+            while( ( raw & ~0x7fL ) != 0 )
+            {
+                buffer[ size++ ] = (byte)( ( raw & 0x7f ) | 0x80 );
+                raw >>>= 7;
+            }
+            buffer[ size++ ] = (byte)raw;
+        }
+
+        void writeString( String value )
+        {
+            final byte[] bytes = utf8( value );
+            writeVarLong( bytes.length );
+            ensure( bytes.length );
+            System.arraycopy( bytes, 0, buffer, size, bytes.length );
+            size += bytes.length;
+        }
+
+        byte[] toByteArray()
+        {
+            final byte[] copy = new byte[ size ];
+            System.arraycopy( buffer, 0, copy, 0, size );
+            return copy;
+        }
+
+        private void ensure( int more )
+        {
+            if( size + more <= buffer.length )
+                return;
+
+            final byte[] larger = new byte[ Math.max( buffer.length * 2, size + more ) ];
+            System.arraycopy( buffer, 0, larger, 0, size );
+            buffer = larger;
+        }
+
+        private byte[] buffer;
+        private int size;
+    }
+
+    private static String utf8( byte[] buffer, int offset, int length )
+    {
+        try
+        {
+            return new String( buffer, offset, length, UTF8 );
+        }
+        catch( UnsupportedEncodingException e )
+        {
+            throw new AssertionError( e ); // every JVM supports UTF-8
+        }
+    }
+
+    private static byte[] utf8( String value )
+    {
+        try
+        {
+            return value.getBytes( UTF8 );
+        }
+        catch( UnsupportedEncodingException e )
+        {
+            throw new AssertionError( e );
+        }
+    }
+
+    private final Constructor<? extends MatchParam> constructor;
+    private final Property[] properties;
+    private final int fingerprint;
+
+    private static final int VERSION = 1;
+    private static final String UTF8 = "UTF-8";
+
+    public final static String CONTENT_TYPE = "application/x-match-param";
+}
@@ -0,0 +1,185 @@
+package com.raverun.match.server.impl;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Caps the number of match tasks in flight. The cap is either fixed or adjusted with
+ * AIMD (additive increase, multiplicative decrease) from the observed task latency.
+ * <p>
+ * In adaptive mode every completed task reports its run time. While the smoothed
+ * latency stays within the target, the limit grows by one for each {@code limit} tasks
+ * completed, but only if tasks were actually being held back by it. Once the smoothed
+ * latency exceeds the target, or a task times out or is refused, the limit is cut by
+ * 10%, at most once per target interval. The target is either configured or twice the
+ * lowest smoothed latency seen, which approximates how fast the database answers when
+ * it is not queueing; to learn that, an adaptive limit should start low.
+ *
+ * @author Gavin Bong
+ */
+@ThreadSafe
+public class ConcurrencyLimiter
+{
+    public static ConcurrencyLimiter fixed( int limit )
+    {
+        return new ConcurrencyLimiter( limit, limit, limit, 0, false );
+    }
+
+    /**
+     * @param targetNanos latency above which the limit is reduced, or 0 to derive it from the lowest latency seen
+     */
+    public static ConcurrencyLimiter aimd( int min, int max, int initial, long targetNanos )
+    {
+        return new ConcurrencyLimiter( min, max, initial, targetNanos, true );
+    }
+
+    private ConcurrencyLimiter( int min, int max, int initial, long targetNanos, boolean adaptive )
+    {
+        if( min < 1 || max < min )
+            throw new IllegalArgumentException( "need 1 <= min <= max but min=" + min + " max=" + max );
+
+        this.min = min;
+        this.max = max;
+        this.limit = Math.max( min, Math.min( max, initial ) );
+        this.configuredTarget = targetNanos;
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Waits until fewer than {@code limit} tasks are in flight and takes a slot
+     */
+    public synchronized void acquire() throws InterruptedException
+    {
+        while( inFlight >= limit )
+        {
+            saturated = true;
+            wait();
+        }
+        inFlight++;
+        if( inFlight >= limit )
+            saturated = true;
+    }
+
+    /**
+     * Returns a slot without reporting on the task
+     */
+    public synchronized void release()
+    {
+        inFlight--;
+        notify();
+    }
+
+    /**
+     * Reports the run time of a completed task
+     */
+    public synchronized void sample( long latencyNanos )
+    {
+        if( !adaptive )
+            return;
+
+        smoothed = ( smoothed == 0 ) ? latencyNanos : smoothed + ( latencyNanos - smoothed ) / SMOOTHING;
+
+        if( lowest == 0 || smoothed < lowest )
+            lowest = smoothed;
+        else if( limit == min && ++samples % FLOOR_DRIFT_SAMPLES == 0 )
+            lowest += lowest / 100; // pinned at the minimum: the database has become slower, not busier
+
+        if( smoothed > target() )
+        {
+            decrease( "latency " + smoothed / 1000000 + " ms over target " + target() / 1000000 + " ms" );
+            return;
+        }
+
+        if( ++successes >= limit )
+        {
+            successes = 0;
+            if( saturated && limit < max )
+            {
+                limit++;
+                notify();
+            }
+            saturated = inFlight >= limit;
+        }
+    }
+
+    /**
+     * Reports a task that timed out or could not be run
+     */
+    public synchronized void overloaded()
+    {
+        if( adaptive )
+            decrease( "task timed out or was refused" );
+    }
+
+    public synchronized int limit()
+    {
+        return limit;
+    }
+
+    public synchronized int inFlight()
+    {
+        return inFlight;
+    }
+
+    public boolean adaptive()
+    {
+        return adaptive;
+    }
+
+    /**
+     * @return the {@code basic.qos} prefetch count that lets {@code channels} channels together hold {@code limit} messages
+     */
+    public int prefetchFor( int channels )
+    {
+        return ( limit() + channels - 1 ) / channels;
+    }
+
+    @GuardedBy("this")
+    private long target()
+    {
+        return ( configuredTarget > 0 ) ? configuredTarget : lowest * TOLERANCE;
+    }
+
+    @GuardedBy("this")
+    private void decrease( String reason )
+    {
+        final long now = System.nanoTime();
+        if( lastDecrease != 0 && now - lastDecrease < Math.max( target(), MIN_COOLDOWN_NANOS ) )
+            return;
+
+        lastDecrease = now;
+        successes = 0;
+        saturated = false;
+
+        final int reduced = Math.max( min, Math.min( limit - 1, (int)( limit * BACKOFF ) ) );
+        if( reduced != limit )
+        {
+            logger.info( "concurrency limit " + limit + " -> " + reduced + ": " + reason );
+            limit = reduced;
+        }
+    }
+
+    private final int min;
+    private final int max;
+    private final long configuredTarget;
+    private final boolean adaptive;
+
+    @GuardedBy("this") private int limit;
+    @GuardedBy("this") private int inFlight;
+    @GuardedBy("this") private int successes;
+    @GuardedBy("this") private boolean saturated;
+    @GuardedBy("this") private long smoothed;
+    @GuardedBy("this") private long lowest;
+    @GuardedBy("this") private long samples;
+    @GuardedBy("this") private long lastDecrease;
+
+    private static final int SMOOTHING = 10;
+    private static final int TOLERANCE = 2;
+    private static final int FLOOR_DRIFT_SAMPLES = 100;
+    private static final double BACKOFF = 0.9;
+    private static final long MIN_COOLDOWN_NANOS = 100000000L; // 100 ms
+
+    private static final Logger logger = Logger.getLogger( ConcurrencyLimiter.class );
+}
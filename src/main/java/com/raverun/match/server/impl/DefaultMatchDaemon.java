@@ -1,25 +1,56 @@
 package com.raverun.match.server.impl;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
 import org.apache.log4j.Logger;
 
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.raverun.match.server.api.MatchDaemon;
 import com.raverun.match.server.api.Poller;
 import com.raverun.match.server.api.PollerFactory;
 import com.raverun.match.server.api.RetryPolicy;
+import com.raverun.match.server.metrics.Control;
+import com.raverun.match.server.metrics.Gauge;
+import com.raverun.match.server.metrics.MatchMetrics;
+import com.raverun.match.server.metrics.MetricsEndpoint;
+import com.raverun.shared.Configuration;
 import com.raverun.shared.services.DbLogger;
 import com.raverun.shared.services.IntegrationType;
 import com.raverun.shared.services.OperationType;
 
-
+/**
+ * Supervises {@code daemon.poller.count} pollers, each in its own slot with its own
+ * broker connection, {@code RetryPolicy} and backoff, so that one bad connection does not
+ * stop consumption. A slot whose policy gives up is removed; the daemon dies once none is left.
+ * <p>
+ * The number of slots can be changed at runtime with {@link #resize(int)}, which is also
+ * served as {@code /pollers} by the {@code MetricsEndpoint}.
+ *
+ * @author Gavin Bong
+ */
+@ThreadSafe
 public class DefaultMatchDaemon implements MatchDaemon
 {
     @Inject
-    public DefaultMatchDaemon( PollerFactory factory, RetryPolicy retryPolicy, DbLogger dbLog )
+    public DefaultMatchDaemon( PollerFactory factory, Provider<RetryPolicy> retryPolicies, DbLogger dbLog,
+        MatchMetrics metrics, MetricsEndpoint metricsEndpoint, ExecutorServiceProvider workers, Configuration config )
     {
-        this.retryPolicy = retryPolicy;
+        this.workers     = workers;
+        this.metrics     = metrics;
+        this.metricsEndpoint = metricsEndpoint;
+        this.retryPolicies = retryPolicies;
         this.factory     = factory;
         this.dbLog       = dbLog;
+        this.maxPollers  = Math.max( 1, config.i( KEY_POLLER_MAX, 16 ) );
+        this.initialPollers = Math.max( 1, Math.min( maxPollers, config.i( KEY_POLLER_COUNT, 1 ) ) );
     }
 
     public void join() throws InterruptedException
@@ -27,8 +58,42 @@ public class DefaultMatchDaemon implements MatchDaemon
         thread.join();
     }
 
+    public boolean join( long timeout, TimeUnit unit ) throws InterruptedException
+    {
+        thread.join( Math.max( 1, unit.toMillis( timeout ) ) );
+        return !thread.isAlive();
+    }
+
     public void start()
     {
+        metrics.gauge( "match_pollers", "Pollers the daemon supervises", new Gauge()
+        {
+            public long value()
+            {
+                return pollers();
+            }
+        });
+
+        metricsEndpoint.register( "/pollers", new Control()
+        {
+            public String handle( String query )
+            {
+                if( query != null )
+                    resize( parseCount( query ) );
+
+                return String.valueOf( pollers() );
+            }
+        });
+
+        try
+        {
+            metricsEndpoint.start();
+        }
+        catch( IOException e )
+        {
+            logger.error( "metrics endpoint not started", e );
+        }
+
         thread = new Thread( this );
         thread.setName( "matching daemon" );
         thread.start();
@@ -38,59 +103,255 @@ public class DefaultMatchDaemon implements MatchDaemon
     {
         running = false;
         thread.interrupt();
+        metricsEndpoint.stop();
+    }
+
+    public synchronized int pollers()
+    {
+        return slots.size();
+    }
+
+    /**
+     * Starts or stops slots until there are {@code count}. Stopped pollers close their
+     * connection; the broker redelivers whatever they had not acknowledged.
+     *
+     * @throws IllegalArgumentException unless {@code 0 <= count <= daemon.poller.max}
+     * @throws IllegalStateException if the daemon is stopping
+     */
+    public synchronized void resize( int count )
+    {
+        if( count < 0 || count > maxPollers )
+            throw new IllegalArgumentException( "poller count must be between 0 and " + maxPollers + ": " + count );
+        if( !running )
+            throw new IllegalStateException( "daemon is stopping" );
+
+        if( count != slots.size() )
+            logger.info( "resizing pollers " + slots.size() + " -> " + count );
+
+        while( slots.size() < count )
+        {
+            Slot slot = new Slot( nextSlot++ );
+            slots.add( slot );
+            slot.start();
+        }
+        while( slots.size() > count )
+            slots.remove( slots.size() - 1 ).stop();
     }
 
     public void run()
     {
-        long pollerCount = 1;
-        int backoff = 500; // milliseconds
+        try
+        {
+            resize( initialPollers );
 
-        while( running )
+            synchronized( this )
+            {
+                while( running && !abandoned )
+                    wait();
+            }
+        }
+        catch( InterruptedException ie )
+        {
+            logger.info( "daemon interrupted" );
+        }
+        catch( IllegalStateException ise )
+        {
+            // stopped before it started
+        }
+
+        List<Slot> remaining;
+        synchronized( this )
+        {
+            running = false;
+            remaining = new ArrayList<Slot>( slots );
+            slots.clear();
+        }
+        for( Slot slot : remaining )
+            slot.stop();
+        for( Slot slot : remaining )
         {
-            Poller poller = null;
-            
             try
             {
-                Thread.sleep( backoff );
-                poller = factory.create( pollerCount );
-                poller.start();
-                poller.join();
+                slot.join();
             }
-            catch( Throwable t )
+            catch( InterruptedException ie )
             {
-                logger.error( t );
+                logger.warn( "interrupted while stopping pollers" );
+                break;
             }
-            finally
+        }
+
+        try
+        {
+            workers.drain();
+        }
+        catch( InterruptedException ie )
+        {
+            logger.warn( "interrupted while draining match tasks" );
+        }
+
+        dbLog.log( IntegrationType.RABBITMQ, OperationType.MATCH_DAEMON, "matcher-server", "Superdaemon for the matching process has died." );
+    }
+
+    private synchronized void gaveUp( Slot slot )
+    {
+        if( slots.remove( slot ) && slots.isEmpty() )
+        {
+            abandoned = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Logged at {@code FATAL}, which {@code log4j.properties} can route to mail
+     */
+    private void alert( long slot, Throwable cause )
+    {
+        final String message = "ALERT: poller slot " + slot + " gave up reconnecting to the broker (" + pollers() +
+            " poller(s) left). Last failure: " + cause;
+        logger.fatal( message, cause );
+        dbLog.log( IntegrationType.RABBITMQ, OperationType.MATCH_DAEMON, "matcher-server", message );
+    }
+
+    private static int parseCount( String query )
+    {
+        for( String pair : query.split( "&" ) )
+        {
+            if( pair.startsWith( "count=" ) )
+            {
+                try
+                {
+                    return Integer.parseInt( pair.substring( "count=".length() ).trim() );
+                }
+                catch( NumberFormatException e )
+                {
+                    throw new IllegalArgumentException( "count is not a number: " + pair );
+                }
+            }
+        }
+        throw new IllegalArgumentException( "expected ?count=<pollers>" );
+    }
+
+    /**
+     * Keeps one poller running: (re)creates it after the backoff its own {@code RetryPolicy}
+     * prescribes, until stopped or the policy gives up.
+     */
+    private final class Slot implements Runnable
+    {
+        Slot( long number )
+        {
+            this.number = number;
+            this.retryPolicy = retryPolicies.get();
+        }
+
+        void start()
+        {
+            thread = new Thread( this );
+            thread.setName( "matching daemon slot " + number );
+            thread.start();
+        }
+
+        void stop()
+        {
+            stopped = true;
+            thread.interrupt();
+
+            Poller current = poller;
+            if( current != null )
+                current.stop();
+        }
+
+        void join() throws InterruptedException
+        {
+            thread.join();
+        }
+
+        public void run()
+        {
+            long executions = 1;
+            int backoff = retryPolicy.initialBackoff(); // milliseconds
+
+            while( !stopped )
             {
+                long startedAt = 0;
+                Throwable cause = null;
+
                 try
                 {
-                    if( poller != null )
+                    Thread.sleep( backoff );
+                    poller = factory.create( pollerIds.getAndIncrement() );
+                    if( stopped )
+                        continue; // stop() may have missed it
+                    startedAt = System.currentTimeMillis();
+                    poller.start();
+                    poller.join();
+                    cause = poller.failure();
+                }
+                catch( Throwable t )
+                {
+                    if( !stopped )
+                        logger.error( t );
+                    cause = t;
+                }
+                finally
+                {
+                    try
                     {
-                        poller.stop();
+                        if( poller != null )
+                        {
+                            poller.stop();
+                        }
                     }
+                    catch( Throwable ignored ) {}
+                    poller = null;
                 }
-                catch( Throwable ignored ) {}
-            }
 
-            if( !retryPolicy.retry( ++pollerCount ) )
-                break;
+                if( stopped )
+                    break;
+
+                final long uptime = ( startedAt == 0 ) ? 0 : System.currentTimeMillis() - startedAt;
+                if( !retryPolicy.retry( ++executions, cause, uptime ) )
+                {
+                    gaveUp( this );
+                    if( retryPolicy.mustAlert() )
+                        alert( number, cause );
+                    break;
+                }
+
+                metrics.reconnects().incrementAndGet();
 
-            backoff = retryPolicy.newBackoff( backoff );
-            logger.info( "new backoff: " + backoff );
+                backoff = retryPolicy.newBackoff( backoff, uptime );
+                logger.info( "slot " + number + " new backoff: " + backoff );
+            }
         }
 
-        if( retryPolicy.mustAlert() )
-            ; // TODO alert via email
+        private final long number;
+        private final RetryPolicy retryPolicy;
 
-        dbLog.log( IntegrationType.RABBITMQ, OperationType.MATCH_DAEMON, "matcher-server", "Superdaemon for the matching process has died." );
+        private volatile Thread thread;
+        private volatile Poller poller;
+        private volatile boolean stopped;
     }
-    
+
     private final PollerFactory factory;
-    private final RetryPolicy retryPolicy;
+    private final Provider<RetryPolicy> retryPolicies;
     private final DbLogger dbLog;
-    
+    private final MatchMetrics metrics;
+    private final MetricsEndpoint metricsEndpoint;
+    private final ExecutorServiceProvider workers;
+    private final int maxPollers;
+    private final int initialPollers;
+    private final AtomicLong pollerIds = new AtomicLong( 1 );
+
+    @GuardedBy("this") private final List<Slot> slots = new ArrayList<Slot>();
+    @GuardedBy("this") private long nextSlot = 1;
+    @GuardedBy("this") private boolean abandoned;
+
     private volatile boolean running = true;
     private volatile Thread thread;
 
+    private final static String KEY_POLLER_COUNT = "daemon.poller.count";
+    private final static String KEY_POLLER_MAX = "daemon.poller.max";
+
     private static final Logger logger = Logger.getLogger( DefaultMatchDaemon.class );
 }
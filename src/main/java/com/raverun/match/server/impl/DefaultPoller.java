@@ -1,21 +1,25 @@
 package com.raverun.match.server.impl;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.concurrent.ExecutionException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
 import com.google.inject.Provider;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
-import com.raverun.match.api.MatchParam;
+import com.raverun.match.server.api.Acknowledger;
+import com.raverun.match.server.api.BatchMatchHandler;
+import com.raverun.match.server.api.MatchKeyExtractor;
 import com.raverun.match.server.api.MatcherRunnableFactory;
 import com.raverun.match.server.api.Poller;
+import com.raverun.match.server.metrics.MatchMetrics;
 import com.raverun.queue.NullQueueConnection;
 import com.raverun.shared.Common;
 import com.raverun.shared.Configuration;
@@ -26,6 +30,7 @@ import com.raverun.shared.services.OperationType;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.QueueingConsumer;
 import com.rabbitmq.client.ShutdownSignalException;
 
 /**
@@ -36,9 +41,18 @@ public class DefaultPoller implements Poller
     @AssistedInject
     public DefaultPoller( Provider<Connection> queueConnectionProvider,
         Configuration config, StageMapper mapper, DbLogger dbLog, Provider<ExecutorService> executorProvider,
-        MatcherRunnableFactory runnableFactory, @Assisted long id )
+        MatcherRunnableFactory runnableFactory, BatchMatchHandler batchHandler, RedeliveryTracker redeliveries, 
+        RequestCoalescer coalescer, MatchKeyExtractor keyExtractor, MatchParamCodecs codecs, InFlightLimits limits, 
+        MatchMetrics metrics, @Assisted long id )
     {
+        this.metrics = metrics;
+        this.limits = limits;
+        this.codecs = codecs;
+        this.coalescer = coalescer;
+        this.keyExtractor = keyExtractor;
         this.runnableFactory = runnableFactory;
+        this.batchHandler = batchHandler;
+        this.redeliveries = redeliveries;
         this.queueConnectionProvider = queueConnectionProvider;
         this.config = config;
         this.mapper = mapper;
@@ -47,7 +61,43 @@ public class DefaultPoller implements Poller
         this.id = id;
 
         pollFrequency = config.i( DefaultPoller.KEY_POLL_FREQUENCY_MS, 2000 );
-        logger.info( "Polling frequency (ms): " + pollFrequency );
+        consumeMode = ConsumeMode.from( config.s( DefaultPoller.KEY_CONSUME_MODE ) );
+        taskTimeout = config.i( DefaultPoller.KEY_TASK_TIMEOUT_MS, 20000 );
+        deadlines = new RequestDeadlines( config.i( DefaultPoller.KEY_REQUEST_MAX_AGE_MS, -1 ) );
+        ackMode = AckMode.from( config.s( DefaultPoller.KEY_ACK_MODE ) );
+        lanes = Lane.from( config, config.s( DefaultPoller.KEY_QUEUENAME ), Math.max( 1, config.i( DefaultPoller.KEY_CHANNELS, 1 ) ) );
+        int channels = 0;
+        for( Lane lane : lanes )
+            channels += lane.channels();
+        channelCount = ( consumeMode == ConsumeMode.PUSH ) ? channels : 1;
+        // without an explicit prefetch, the channels of all pollers share out the process-wide limit
+        final int channelsOfAllPollers = channelCount * Math.max( 1, config.i( DefaultPoller.KEY_POLLER_COUNT, 1 ) );
+        fixedPrefetch = !limits.adaptive() && config.s( DefaultPoller.KEY_PREFETCH ) != null;
+        prefetch = fixedPrefetch ? config.i( DefaultPoller.KEY_PREFETCH, 1 )
+            : ( limits.minInFlight() + channelsOfAllPollers - 1 ) / channelsOfAllPollers;
+        ackStrategy = AckStrategy.from( config.s( DefaultPoller.KEY_ACK_STRATEGY ) );
+        ackBatchSize = Math.min( config.i( DefaultPoller.KEY_ACK_BATCH_SIZE, 10 ), Math.max( 1, prefetch / 2 ) );
+        ackBatchWindow = Math.max( 1, config.i( DefaultPoller.KEY_ACK_BATCH_WINDOW_MS, 200 ) );
+        // a batch has no stripe key, so its requests would not run in order on their own lanes
+        final boolean striped = ExecutorServiceProvider.Mode.from( config.s( DefaultPoller.KEY_EXECUTOR_MODE ) ) == 
+            ExecutorServiceProvider.Mode.STRIPED;
+        if( striped && config.i( DefaultPoller.KEY_MATCH_BATCH_SIZE, 1 ) > 1 )
+            logger.warn( "daemon.batch.size is ignored with daemon.executor.mode=striped, not batching" );
+        matchBatchSize = striped ? 1 : config.i( DefaultPoller.KEY_MATCH_BATCH_SIZE, 1 );
+        matchBatchWindow = Math.max( 1, config.i( DefaultPoller.KEY_MATCH_BATCH_WINDOW_MS, 50 ) );
+        maxRecoveries = Math.max( 0, config.i( DefaultPoller.KEY_RECOVERY_ATTEMPTS, 3 ) );
+        recoveryInterval = Math.max( 1, config.i( DefaultPoller.KEY_RECOVERY_INTERVAL_MS, 1000 ) );
+        stablePeriod = config.i( DefaultPoller.KEY_STABLE_PERIOD_MS, 60000 );
+        connectionRecoveries = metrics.counter( "match_connection_recoveries_total", "Broker connections re-established by a poller" );
+        channelRecoveries = metrics.counter( "match_channel_recoveries_total", "Channels re-opened on a healthy connection" );
+        logger.info( "Consume mode: " + consumeMode + " | Polling frequency (ms): " + pollFrequency +
+            " | channels: " + channelCount + " | max in-flight (all pollers): " + limits.maxInFlight() + " | task timeout (ms): " + taskTimeout );
+        logger.info( "Ack mode: " + ackMode + " | ack strategy: " + ackStrategy + " | prefetch: " + prefetch + ( fixedPrefetch ? "" : " (follows the limit)" ) + 
+            " | ack batch: " + ackBatchSize + " within (ms): " + ackBatchWindow + " | max deliveries: " + redeliveries.maxDeliveries() );
+        if( lanes.size() > 1 )
+            logger.info( "Lanes: " + lanes );
+        logger.info( "Match batch: " + matchBatchSize + " within (ms): " + matchBatchWindow );
+        logger.info( "Recovery attempts: " + maxRecoveries + " | interval (ms): " + recoveryInterval + " | stable after (ms): " + stablePeriod );
     }
 
 
@@ -76,12 +126,103 @@ public class DefaultPoller implements Poller
         }
     }
 
+    public Throwable failure()
+    {
+        return failure;
+    }
+
     public void run()
+    {
+        // the executor, limiter and lane scheduler are shared by every poller of this process
+        ExecutorService executor = executorProvider.get();
+        final LaneScheduler scheduler = limits.scheduler();
+        final MatchDispatcher dispatcher = new MatchDispatcher( executor, limits.limiter(), scheduler,
+            taskTimeout, TimeUnit.MILLISECONDS, "Match Poller( " + id + " )", metrics );
+
+        final List<MatchBatcher> batchers = new ArrayList<MatchBatcher>( lanes.size() );
+        final List<DeliveryHandler> handlers = new ArrayList<DeliveryHandler>( lanes.size() );
+        for( int i = 0; i < lanes.size(); i++ )
+        {
+            final String name = "Match Poller( " + id + " )" + ( scheduler == null ? "" : " " + lanes.get( i ).name() );
+            MatchBatcher batcher = ( matchBatchSize > 1 ) ? new MatchBatcher( dispatcher, i, batchHandler, runnableFactory, 
+                matchBatchSize, matchBatchWindow, TimeUnit.MILLISECONDS, name ) : null;
+            if( batcher != null )
+                batchers.add( batcher );
+            handlers.add( new DeliveryHandler( dispatcher, i, lanes.get( i ).queue(), batcher, runnableFactory, redeliveries, 
+                coalescer, keyExtractor, codecs, metrics, dbLog, ackMode, DAEMON + id + ")", deadlines ) );
+        }
+
+        limits.attach();
+        try
+        {
+            int attempts = 0;
+            while( running )
+            {
+                final long connectedAt = System.currentTimeMillis();
+                if( !session( handlers ) || !running )
+                    break;
+
+                if( Failures.isFatal( failure ) )
+                {
+                    logger.error( "not reconnecting after a fatal failure: " + failure );
+                    break;
+                }
+
+                if( System.currentTimeMillis() - connectedAt >= stablePeriod )
+                    attempts = 0;
+
+                if( ++attempts > maxRecoveries )
+                {
+                    logger.error( "connection lost " + attempts + " times within " + stablePeriod + " ms, giving up" );
+                    break;
+                }
+
+                connectionRecoveries.incrementAndGet();
+                logger.info( "recovering connection (attempt " + attempts + " of " + maxRecoveries + ")" );
+                Thread.sleep( recoveryInterval * attempts );
+            }
+        }
+        catch( InterruptedException ie )
+        {
+            logger.info( "interrupted while recovering connection" );
+        }
+        finally
+        {
+            for( MatchBatcher batcher : batchers )
+            {
+                try
+                {
+                    batcher.shutdown();
+                }
+                catch( InterruptedException ignored ) {}
+            }
+
+            // the executor is shared and outlives this poller; tasks already dispatched run to completion
+            dispatcher.shutdown();
+            limits.detach();
+
+            StringBuilder builder = new StringBuilder();
+            builder.append( DAEMON ).append( id ).append( ")" );
+
+            logger.info( builder.toString() );
+
+            dbLog.log( IntegrationType.MATCH, OperationType.CONNECT_TO_Q, builder.toString(), "dead" );
+
+        }
+    }
+
+    /**
+     * Connects, declares the exchange, queues and bindings, and consumes until the connection
+     * fails or this poller is stopped. The dispatcher, batchers and {@code handlers} (one per lane)
+     * carry over from one session to the next; only the connection and its channels are new.
+     *
+     * @return false if no connection could be made
+     */
+    private boolean session( List<DeliveryHandler> handlers )
     {
         Connection connection = null;
         Channel channel = null;
-
-        ExecutorService executor = executorProvider.get();
+        failure = null;
 
         try
         {
@@ -90,66 +231,44 @@ public class DefaultPoller implements Poller
             connection = queueConnectionProvider.get();
             if( connection == null || connection instanceof NullQueueConnection )
             {
-                dbLog.log( IntegrationType.MATCH, OperationType.CONNECT_TO_Q, DAEMON + id + ")" , "Cannot connect to queue on host " + config.s( Configuration.KEY_RABBITMQ_SERVER + stagePostfix ) +
-                    " at port " + config.i( Configuration.KEY_RABBITMQ_PORT + stagePostfix, DEFAULT_PORT )  );
+                final String message = "Cannot connect to queue on host " + config.s( Configuration.KEY_RABBITMQ_SERVER + stagePostfix ) +
+                    " at port " + config.i( Configuration.KEY_RABBITMQ_PORT + stagePostfix, DEFAULT_PORT );
+                dbLog.log( IntegrationType.MATCH, OperationType.CONNECT_TO_Q, DAEMON + id + ")" , message );
                 logger.error( "Cannot connect to queue" );
-                return;
+                failure = new IOException( message );
+                return false;
             }
 
             final String EXCHANGE = config.s( KEY_EXCHANGE );
-            final String QUEUE = config.s( KEY_QUEUENAME );
+            StringBuilder queues = new StringBuilder();
+            for( Lane lane : lanes )
+                queues.append( queues.length() == 0 ? "'" : ", '" ).append( lane.queue() ).append( "'" );
 
-            ChannelWrapper tuple = getChannelFor( connection, EXCHANGE, QUEUE );
+            ChannelWrapper tuple = getChannelFor( connection, EXCHANGE, lanes );
             channel = tuple.channel;
 
             logger.info( "Subscriber connected to " + config.s( Configuration.KEY_RABBITMQ_SERVER + stagePostfix ) +
                 " at port " + config.i( Configuration.KEY_RABBITMQ_PORT + stagePostfix, DEFAULT_PORT ) );
 
 
-            dbLog.log( IntegrationType.MATCH, OperationType.CONNECT_TO_Q, DAEMON + id + ")", "successfully connected to queue '" + QUEUE + "' on host " + config.s( Configuration.KEY_RABBITMQ_SERVER + stagePostfix ) +
+            dbLog.log( IntegrationType.MATCH, OperationType.CONNECT_TO_Q, DAEMON + id + ")", "successfully connected to queue " + queues + " on host " + config.s( Configuration.KEY_RABBITMQ_SERVER + stagePostfix ) +
                 " at port " + config.i( Configuration.KEY_RABBITMQ_PORT + stagePostfix, DEFAULT_PORT )  );
 
 
             logger.info( "Please look into table [integrationlog] to track the status of the match-server" );
-            while( running )
+            switch( consumeMode )
             {
-                channel.txSelect();
-                GetResponse response = channel.basicGet( QUEUE, false );
-                if( response != null )
-                {
-                    logger.debug( "msgcount = " + response.getMessageCount() );
-
-                    MatchParam matchParam = null;
-                    try
-                    {
-                        matchParam = MatchParam.deserialize( response.getBody() );
-                        logger.info( "received // " + matchParam.toString() + " // with deliveryTag:" + response.getEnvelope().getDeliveryTag() );
-                        channel.basicAck( response.getEnvelope().getDeliveryTag(), false );
-                        channel.txCommit();
-
-                        timedRun( executor, runnableFactory.create( matchParam ), 20, TimeUnit.SECONDS );
-                    }
-                    catch( IllegalArgumentException e )
-                    {
-
-                        dbLog.log( IntegrationType.MATCH, OperationType.DESERIALIZING, DAEMON + id + ")", "Error deserializing body of queue message" );
-
-                    }
-                    catch( InterruptedException ie )
-                    {
-                        ie.printStackTrace(); // TODO what to do ?
-                    }
-                    catch( ExecutionException ee )
-                    {
-                        ee.printStackTrace(); // TODO what to do ?
-                    }
-                }
-                Thread.sleep( pollFrequency );
+            case PUSH:
+                consume( connection, channel, handlers );
+                break;
+            case POLL:
+                poll( channel, handlers );
+                break;
             }
-
         }
         catch( Throwable t )
         {
+            failure = t;
             logger.error( t );
             dbLog.log( IntegrationType.MATCH, OperationType.READ_FROM_Q, DAEMON + id + ")", Common.makeStackTrace( t ) );
 
@@ -167,59 +286,174 @@ public class DefaultPoller implements Poller
             }
             catch( IOException ioe ) {}
             catch( ShutdownSignalException sse ) {}
+        }
+        return true;
+    }
 
-            logger.info( "Attempting to shutdown executor" );
-            try
+    /**
+     * Fetches messages using {@code basic.get} and hands each one to the handler of its lane.
+     * Lanes are polled in rounds of up to {@code weight} messages each. A lane whose in-flight 
+     * slots are all taken is skipped until the next round rather than fetched from, since its
+     * task would block this thread in the {@code LaneScheduler} and hold up every other lane.
+     * Sleeps {@code daemon.poll.frequency.millisecond} only when every queue is empty.
+     */
+    private void poll( Channel channel, List<DeliveryHandler> handlers ) 
+        throws IOException, InterruptedException
+    {
+        final LaneScheduler scheduler = limits.scheduler();
+        final Acknowledger acker = newAcknowledger( channel );
+        final int[] depths = new int[ lanes.size() ];
+        try
+        {
+            while( running )
             {
-                executor.shutdown();
-                executor.awaitTermination( 5, TimeUnit.SECONDS );
-                logger.info( "executor is fully terminated" );
+                int fetched = 0;
+                boolean full = false;
+                for( int i = 0; i < lanes.size() && running; i++ )
+                {
+                    final Lane lane = lanes.get( i );
+                    for( int n = 0; n < lane.weight(); n++ )
+                    {
+                        if( scheduler != null && !scheduler.hasRoom( i ) )
+                        {
+                            full = true;
+                            break;
+                        }
+
+                        GetResponse response = channel.basicGet( lane.queue(), false );
+                        if( response == null )
+                        {
+                            depths[ i ] = 0;
+                            break;
+                        }
+
+                        depths[ i ] = response.getMessageCount();
+                        logger.debug( "msgcount = " + response.getMessageCount() );
+
+                        handlers.get( i ).handle( acker, response.getEnvelope(), response.getProps(), response.getBody() );
+                        acker.flushIfDue();
+                        fetched++;
+                    }
+                }
+
+                long depth = 0;
+                for( int d : depths )
+                    depth += d;
+                metrics.queueMessages().set( depth );
+
+                if( fetched == 0 )
+                {
+                    acker.flush();
+                    Thread.sleep( full ? Math.min( pollFrequency, FULL_LANE_RECHECK_MS ) : pollFrequency );
+                }
             }
-            catch( InterruptedException ignored ) 
+        }
+        finally
+        {
+            try
             {
-                logger.error( "oops", ignored );
+                acker.flush();
             }
-
-            StringBuilder builder = new StringBuilder();
-            builder.append( DAEMON ).append( id ).append( ")" );
-
-            logger.info( builder.toString() );
-
-            dbLog.log( IntegrationType.MATCH, OperationType.CONNECT_TO_Q, builder.toString(), "dead" );
-
+            catch( IOException ignored ) {}
+            catch( ShutdownSignalException ignored ) {}
         }
     }
 
     /**
-     * Adapted from code in ch7 of Java Concurrency in practice
-     *
-     * @throws InterruptedException
-     * @throws ExecutionException
+     * Opens the channels of every lane on {@code connection} (the first one being {@code channel}),
+     * each with its own consumer, prefetch window and acknowledger, feeding the handler of its 
+     * lane. A consumer whose channel fails re-opens it by itself;
+     * this returns as soon as any of the consumers stops, since that means the connection is gone.
+     * <p>
+     * Unless {@code rabbitmq.prefetch.count} is set, the prefetch windows of the channels of every
+     * running poller together follow the shared in-flight limit, so that messages we cannot run 
+     * yet stay on the broker. A window never drops below one ack batch, which would otherwise 
+     * wait for the batch window on every batch. This holds in either ack mode: acking on
+     * receipt only frees a slot once the consumer has taken the delivery off its channel.
      */
-    private final void timedRun( ExecutorService executor, Runnable runnable, long timeout, TimeUnit unit )
-        throws InterruptedException, ExecutionException
+    private void consume( Connection connection, Channel channel, List<DeliveryHandler> handlers ) 
+        throws IOException, InterruptedException
     {
-        Future<?> task = executor.submit( runnable );
-        try
+        final ChannelConsumer.Prefetch channelPrefetch = fixedPrefetch ? ChannelConsumer.fixed( prefetch ) : new ChannelConsumer.Prefetch()
         {
-            task.get( timeout, unit );
-        }
-        catch( TimeoutException toe )
+            public int count()
+            {
+                return Math.max( ackBatchSize, limits.prefetchFor( channelCount ) );
+            }
+        };
+
+        final ChannelConsumer.Acknowledgers ackers = new ChannelConsumer.Acknowledgers()
         {
-            // noop
-        }
-        catch( ExecutionException ee )
+            public Acknowledger newAcknowledger( Channel ch ) throws IOException
+            {
+                return DefaultPoller.this.newAcknowledger( ch );
+            }
+        };
+
+        final CountDownLatch exited = new CountDownLatch( 1 );
+        final List<ChannelConsumer> consumers = new ArrayList<ChannelConsumer>( channelCount );
+        final List<Thread> threads = new ArrayList<Thread>( channelCount );
+        try
         {
-            throw ee;
+            int i = 0;
+            for( int l = 0; l < lanes.size(); l++ )
+            {
+                final Lane lane = lanes.get( l );
+                for( int c = 0; c < lane.channels(); c++, i++ )
+                {
+                    Channel ch = ( i == 0 ) ? channel : connection.createChannel();
+                    if( ch == null )
+                        throw new IOException( "No more channels" );
+
+                    ChannelConsumer consumer = new ChannelConsumer( connection, ch, lane.queue(), ackers, handlers.get( l ), 
+                        channelPrefetch, ackBatchWindow, maxRecoveries, recoveryInterval, channelRecoveries, exited );
+                    consumers.add( consumer );
+
+                    Thread t = new Thread( consumer );
+                    t.setName( "Match Poller( " + id + " ) channel " + i );
+                    threads.add( t );
+                    t.start();
+                }
+                logger.info( "consuming '" + lane.queue() + "' on " + lane.channels() + " channel(s)" );
+            }
+
+            exited.await();
+
+            for( ChannelConsumer consumer : consumers )
+            {
+                if( consumer.failure() != null )
+                {
+                    failure = consumer.failure();
+                    if( Failures.isFatal( failure ) )
+                        break;
+                }
+            }
         }
         finally
         {
-            task.cancel( true );
+            for( ChannelConsumer consumer : consumers )
+                consumer.stop();
+            for( Thread t : threads )
+                t.interrupt();
+        }
+    }
+
+    private Acknowledger newAcknowledger( Channel channel ) throws IOException
+    {
+        switch( ackStrategy )
+        {
+        case TX:
+            return new TxAcknowledger( channel );
+        default:
+            return new BatchingAcknowledger( channel, ackBatchSize, ackBatchWindow, TimeUnit.MILLISECONDS );
         }
     }
 
+    /**
+     * Declares the exchange, and the queue of each lane bound to it under its own name
+     */
     private ChannelWrapper getChannelFor( Connection conn,
-        String exchange, String q ) throws IOException
+        String exchange, List<Lane> lanes ) throws IOException
     {
         Channel channel = conn.createChannel();
         if( channel == null )
@@ -232,10 +466,14 @@ public class DefaultPoller implements Poller
 
         channel.exchangeDeclare( exchange, EXCHANGE_TYPE, DURABLE );
 
-        channel.queueDeclare( q, PASSIVE, DURABLE, EXCLUSIVE,
-            AUTODELETE, new HashMap<String, Object>() );
+        for( Lane lane : lanes )
+        {
+            final String q = lane.queue();
+            channel.queueDeclare( q, PASSIVE, DURABLE, EXCLUSIVE,
+                AUTODELETE, new HashMap<String, Object>() );
 
-        channel.queueBind( q, exchange, q );
+            channel.queueBind( q, exchange, q );
+        }
 
         ChannelWrapper result = new ChannelWrapper();
         result.channel = channel;
@@ -244,6 +482,13 @@ public class DefaultPoller implements Poller
     }
 
     private final MatcherRunnableFactory runnableFactory;
+    private final BatchMatchHandler batchHandler;
+    private final RedeliveryTracker redeliveries;
+    private final RequestCoalescer coalescer;
+    private final MatchKeyExtractor keyExtractor;
+    private final MatchParamCodecs codecs;
+    private final InFlightLimits limits;
+    private final MatchMetrics metrics;
     private final Configuration config;
     private final Provider<Connection> queueConnectionProvider;
     private final DbLogger dbLog;
@@ -252,21 +497,153 @@ public class DefaultPoller implements Poller
 
     private final long id;
     private final int pollFrequency;
+    private final ConsumeMode consumeMode;
+    private final int channelCount;
+    private final List<Lane> lanes;
+    private final int taskTimeout;
+    private final RequestDeadlines deadlines;
+    private final AckMode ackMode;
+    private final int prefetch;
+    private final boolean fixedPrefetch;
+    private final AckStrategy ackStrategy;
+    private final int ackBatchSize;
+    private final int ackBatchWindow;
+    private final int matchBatchSize;
+    private final int matchBatchWindow;
+    private final int maxRecoveries;
+    private final int recoveryInterval;
+    private final int stablePeriod;
+    private final AtomicLong connectionRecoveries;
+    private final AtomicLong channelRecoveries;
 
     private volatile Thread thread;
+    private volatile Throwable failure;
     private volatile boolean running = true;
 
-    private final static String EXCHANGE_TYPE = "direct";
+    final static String EXCHANGE_TYPE = "direct";
     private final static String DAEMON = "(matcher-server ";
+    private final static long FULL_LANE_RECHECK_MS = 10;
 
     private final static String KEY_POLL_FREQUENCY_MS = "daemon.poll.frequency.millisecond";
+    private final static String KEY_CONSUME_MODE = "daemon.consume.mode";
+    private final static String KEY_TASK_TIMEOUT_MS = "daemon.task.timeout.millisecond";
+    private final static String KEY_REQUEST_MAX_AGE_MS = "daemon.request.max.age.millisecond";
+    private final static String KEY_ACK_MODE = "daemon.ack.mode";
+    private final static String KEY_POLLER_COUNT = "daemon.poller.count";
+    private final static String KEY_EXECUTOR_MODE = "daemon.executor.mode";
+    private final static String KEY_PREFETCH = "rabbitmq.prefetch.count";
+    private final static String KEY_CHANNELS = "rabbitmq.channel.per.connection";
+    private final static String KEY_ACK_STRATEGY = "rabbitmq.ack.strategy";
+    private final static String KEY_ACK_BATCH_SIZE = "rabbitmq.ack.batch.size";
+    private final static String KEY_ACK_BATCH_WINDOW_MS = "rabbitmq.ack.batch.window.millisecond";
+    private final static String KEY_MATCH_BATCH_SIZE = "daemon.batch.size";
+    private final static String KEY_MATCH_BATCH_WINDOW_MS = "daemon.batch.window.millisecond";
+    private final static String KEY_RECOVERY_ATTEMPTS = "rabbitmq.recovery.attempts";
+    final static String KEY_RECOVERY_INTERVAL_MS = "rabbitmq.recovery.interval.millisecond";
+    final static String KEY_STABLE_PERIOD_MS = "daemon.stable.period.millisecond";
     private final static int DEFAULT_PORT = 5672;    
     private static final Logger logger = Logger.getLogger( DefaultPoller.class );
 
-    private final static String KEY_QUEUENAME = "rabbitmq.queuename.match";
+    final static String KEY_QUEUENAME = "rabbitmq.queuename.match";
 
-    private final static String KEY_EXCHANGE = "rabbitmq.exchange.match";
+    final static String KEY_EXCHANGE = "rabbitmq.exchange.match";
     
+    /**
+     * How messages are taken off the queue. Configured with {@code daemon.consume.mode}
+     */
+    public static enum ConsumeMode
+    {
+        /**
+         * {@code basic.get} followed by a sleep of {@code daemon.poll.frequency.millisecond}
+         */
+        POLL, 
+
+        /**
+         * {@code basic.consume}; the broker pushes messages as they arrive
+         */
+        PUSH;
+
+        /**
+         * Defaults to {@code POLL} if {@code value} is unrecognizable
+         */
+        public static ConsumeMode from( String value )
+        {
+            if( value != null )
+            {
+                for( ConsumeMode mode : values() )
+                {
+                    if( mode.name().equalsIgnoreCase( value.trim() ) )
+                        return mode;
+                }
+            }
+            return POLL;
+        }
+    }
+
+    /**
+     * When a message is acknowledged. Configured with {@code daemon.ack.mode}
+     */
+    public static enum AckMode
+    {
+        /**
+         * ack as soon as the message is received; a crash loses the match
+         */
+        BEFORE,
+
+        /**
+         * ack once the match has finished (at-least-once delivery)
+         */
+        AFTER;
+
+        /**
+         * Defaults to {@code BEFORE} if {@code value} is unrecognizable
+         */
+        public static AckMode from( String value )
+        {
+            if( value != null )
+            {
+                for( AckMode mode : values() )
+                {
+                    if( mode.name().equalsIgnoreCase( value.trim() ) )
+                        return mode;
+                }
+            }
+            return BEFORE;
+        }
+    }
+
+    /**
+     * How acknowledgements reach the broker. Configured with {@code rabbitmq.ack.strategy}
+     */
+    public static enum AckStrategy
+    {
+        /**
+         * {@code basic.ack} + {@code tx.commit} per message
+         */
+        TX,
+
+        /**
+         * {@code basic.ack(multiple=true)} per batch, without transactions
+         */
+        BATCHED;
+
+        /**
+         * Defaults to {@code BATCHED} if {@code value} is unrecognizable
+         */
+        public static AckStrategy from( String value )
+        {
+            if( value != null )
+            {
+                for( AckStrategy strategy : values() )
+                {
+                    if( strategy.name().equalsIgnoreCase( value.trim() ) )
+                        return strategy;
+                }
+            }
+            return BATCHED;
+        }
+    }
+
     private class ChannelWrapper
     {
         public Channel channel;
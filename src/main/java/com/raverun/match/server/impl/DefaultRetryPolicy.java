@@ -10,7 +10,9 @@ import com.raverun.shared.Configuration;
  * <li>retries forever
  * <li>does not alert (for now)
  * <li>uses {@code daemon.backoff.max.millisecond} and {@code daemon.backoff.multiplier} from {@code daemon.properties}
+ * <li>starts over from {@code daemon.backoff.base.millisecond} once a poller ran for {@code daemon.stable.period.millisecond}
  * </ul>
+ * See {@link JitteredRetryPolicy} for one that spreads reconnects and gives up on fatal errors.
  * 
  * @author Gavin Bong
  */
@@ -21,6 +23,8 @@ public class DefaultRetryPolicy implements RetryPolicy
     {
         BACKOFF_MULTIPLIER = config.i( DefaultRetryPolicy.KEY_BACKOFF_MULTIPLIER, 2 );
         BACKOFF_MAX = config.i( DefaultRetryPolicy.KEY_BACKOFF_MAX, 20000 );
+        BACKOFF_BASE = config.i( DefaultRetryPolicy.KEY_BACKOFF_BASE, 500 );
+        STABLE_PERIOD = config.i( DefaultPoller.KEY_STABLE_PERIOD_MS, 60000 );
     }
 
     public boolean mustAlert()
@@ -28,12 +32,20 @@ public class DefaultRetryPolicy implements RetryPolicy
         return true;
     }
 
-    public int newBackoff( int currentBackoff )
+    public int initialBackoff()
     {
+        return BACKOFF_BASE;
+    }
+
+    public int newBackoff( int currentBackoff, long uptime )
+    {
+        if( uptime >= STABLE_PERIOD )
+            return BACKOFF_BASE;
+
         return min( BACKOFF_MAX, currentBackoff * BACKOFF_MULTIPLIER );
     }
 
-    public boolean retry( long numberOfExecutions )
+    public boolean retry( long numberOfExecutions, Throwable cause, long uptime )
     {
         return true;
     }
@@ -48,8 +60,11 @@ public class DefaultRetryPolicy implements RetryPolicy
     
     private final int BACKOFF_MULTIPLIER;
     private final int BACKOFF_MAX;
+    private final int BACKOFF_BASE;
+    private final int STABLE_PERIOD;
 
     private static final String KEY_BACKOFF_MULTIPLIER = "daemon.backoff.multiplier";
-    private static final String KEY_BACKOFF_MAX        = "daemon.backoff.max.millisecond";
+    static final String KEY_BACKOFF_MAX        = "daemon.backoff.max.millisecond";
+    static final String KEY_BACKOFF_BASE       = "daemon.backoff.base.millisecond";
 }
 
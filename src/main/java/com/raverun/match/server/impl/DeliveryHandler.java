@@ -0,0 +1,266 @@
+package com.raverun.match.server.impl;
+
+import java.io.IOException;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.raverun.match.api.MatchParam;
+import com.raverun.match.server.api.Acknowledger;
+import com.raverun.match.server.api.Deadline;
+import com.raverun.match.server.api.DeadlineExceededException;
+import com.raverun.match.server.api.MatchKeyExtractor;
+import com.raverun.match.server.api.MatcherRunnableFactory;
+import com.raverun.match.server.impl.DefaultPoller.AckMode;
+import com.raverun.match.server.metrics.MatchMetrics;
+import com.raverun.shared.services.DbLogger;
+import com.raverun.shared.services.IntegrationType;
+import com.raverun.shared.services.OperationType;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Turns a queue message into a match task: decodes the body, hands the task to the
+ * {@code MatchDispatcher} (through the {@code MatchBatcher} when batching is enabled)
+ * and acknowledges the message according to {@code AckMode}.
+ * <p>
+ * One instance is shared by every channel of a {@code Poller} that consumes the same lane.
+ *
+ * @author Gavin Bong
+ */
+@ThreadSafe
+public class DeliveryHandler
+{
+    /**
+     * @param batcher null unless requests are to be processed in batches
+     */
+    public DeliveryHandler( MatchDispatcher dispatcher, String queue, MatchBatcher batcher, MatcherRunnableFactory runnableFactory, 
+        RedeliveryTracker redeliveries, RequestCoalescer coalescer, MatchKeyExtractor keyExtractor, 
+        MatchParamCodecs codecs, MatchMetrics metrics, DbLogger dbLog, AckMode ackMode, String source )
+    {
+        this( dispatcher, 0, queue, batcher, runnableFactory, redeliveries, coalescer, keyExtractor, codecs, metrics, dbLog, ackMode, source,
+            new RequestDeadlines( -1 ) );
+    }
+
+    /**
+     * @param lane the lane its tasks are dispatched to
+     * @param queue the queue of that lane, where failed requests are put back
+     * @param batcher null unless requests are to be processed in batches; must dispatch to {@code lane}
+     */
+    public DeliveryHandler( MatchDispatcher dispatcher, int lane, String queue, MatchBatcher batcher, MatcherRunnableFactory runnableFactory, 
+        RedeliveryTracker redeliveries, RequestCoalescer coalescer, MatchKeyExtractor keyExtractor, 
+        MatchParamCodecs codecs, MatchMetrics metrics, DbLogger dbLog, AckMode ackMode, String source, RequestDeadlines deadlines )
+    {
+        this.lane = lane;
+        this.queue = queue;
+        this.deadlines = deadlines;
+        this.metrics = metrics;
+        this.codecs = codecs;
+        this.dispatcher = dispatcher;
+        this.batcher = batcher;
+        this.coalescer = coalescer;
+        this.keyExtractor = keyExtractor;
+        this.runnableFactory = runnableFactory;
+        this.redeliveries = redeliveries;
+        this.dbLog = dbLog;
+        this.ackMode = ackMode;
+        this.source = source;
+    }
+
+    /**
+     * With {@code daemon.ack.mode=before} the delivery is acked as soon as it has been read.
+     * <p>
+     * With {@code daemon.ack.mode=after} the delivery stays unacknowledged until its match has 
+     * finished. A failed match is requeued until it has failed {@code daemon.redelivery.max}
+     * times, after which it is dropped. A body that cannot be decoded is dropped in either mode.
+     * <p>
+     * In either mode, a duplicate of a request that the {@code RequestCoalescer} considers in flight
+     * is acked straight away and not processed, and so is a request whose deadline (see
+     * {@code RequestDeadlines}) has already passed. Otherwise the deadline travels with the task;
+     * a task that outlives it is dropped, not requeued. Batched requests are only checked here.
+     * <p>
+     * A task that cannot be dispatched counts as a failed match.
+     * 
+     * @param props its {@code content-type} selects the codec
+     * @throws InterruptedException if interrupted while waiting for an in-flight slot
+     */
+    public void handle( Acknowledger acker, Envelope envelope, AMQP.BasicProperties props, byte[] body ) 
+        throws IOException, InterruptedException
+    {
+        final long deliveryTag = envelope.getDeliveryTag();
+
+        acker.register( deliveryTag );
+        metrics.consumed().incrementAndGet();
+
+        MatchParam matchParam = null;
+        try
+        {
+            matchParam = codecs.decode( props == null ? null : props.getContentType(), body );
+        }
+        catch( IllegalArgumentException e )
+        {
+            metrics.deserializationFailures().incrementAndGet();
+            dbLog.log( IntegrationType.MATCH, OperationType.DESERIALIZING, source, "Error deserializing body of queue message" );
+            acker.ack( deliveryTag );
+            return;
+        }
+
+        if( logger.isDebugEnabled() )
+            logger.debug( "received // " + matchParam.toString() + " // with deliveryTag:" + deliveryTag );
+
+        final Deadline deadline = deadlines.of( props );
+        if( deadline != null && deadline.expired() )
+        {
+            if( logger.isDebugEnabled() )
+                logger.debug( "dropped expired request with deliveryTag:" + deliveryTag );
+
+            metrics.expired().incrementAndGet();
+            acker.ack( deliveryTag );
+            return;
+        }
+
+        // also identifies the request to the match cache, which would otherwise have to re-serialize it
+        final Object key = keyExtractor.keyOf( matchParam, body );
+        if( coalescer.enabled() )
+        {
+            if( !coalescer.admit( key ) )
+            {
+                if( logger.isDebugEnabled() )
+                    logger.debug( "coalesced duplicate with deliveryTag:" + deliveryTag );
+
+                metrics.coalesced().incrementAndGet();
+
+                acker.ack( deliveryTag );
+                return;
+            }
+        }
+
+        MatchDispatcher.Completion completion = null;
+        switch( ackMode )
+        {
+        case BEFORE:
+            acker.ack( deliveryTag );
+            break;
+        case AFTER:
+            completion = new SettleOnCompletion( acker, envelope, props, body );
+            break;
+        }
+
+        if( coalescer.enabled() )
+            completion = coalescer.releasing( key, completion );
+
+        try
+        {
+            if( batcher != null )
+                batcher.add( matchParam, key, completion );
+            else
+                dispatcher.dispatch( lane, runnableFactory.create( matchParam, key ), completion, deadline );
+        }
+        catch( InterruptedException ie )
+        {
+            if( coalescer.enabled() )
+                coalescer.failed( key );
+            throw ie;
+        }
+        catch( RuntimeException e )
+        {
+            logger.error( "Could not dispatch deliveryTag:" + deliveryTag, e );
+            if( completion != null )
+                completion.failed( e ); // releases the key, and requeues or drops the delivery
+        }
+    }
+
+    /**
+     * Acks or requeues a delivery once its match task is done
+     */
+    private final class SettleOnCompletion implements MatchDispatcher.Completion
+    {
+        SettleOnCompletion( Acknowledger acker, Envelope envelope, AMQP.BasicProperties props, byte[] body )
+        {
+            this.acker = acker;
+            this.envelope = envelope;
+            this.props = props;
+            this.body = body;
+        }
+
+        public void succeeded()
+        {
+            try
+            {
+                acker.ack( envelope.getDeliveryTag() );
+            }
+            catch( IOException e )
+            {
+                logger.error( "Could not ack deliveryTag:" + envelope.getDeliveryTag(), e );
+            }
+            catch( ShutdownSignalException e )
+            {
+                closed();
+            }
+        }
+
+        public void failed( Throwable cause )
+        {
+            try
+            {
+                if( cause instanceof DeadlineExceededException )
+                {
+                    acker.ack( envelope.getDeliveryTag() ); // nothing left to retry
+                    return;
+                }
+
+                if( redeliveries.mayRequeue( props ) )
+                {
+                    metrics.requeued().incrementAndGet();
+                    acker.requeue( queue, envelope, redeliveries.requeued( props ), body );
+                    return;
+                }
+
+                metrics.dropped().incrementAndGet();
+                dbLog.log( IntegrationType.MATCH, OperationType.READ_FROM_Q, source, 
+                    "Dropping message after " + redeliveries.maxDeliveries() + " failed attempts: " + cause );
+                acker.ack( envelope.getDeliveryTag() );
+            }
+            catch( IOException e )
+            {
+                logger.error( "Could not settle deliveryTag:" + envelope.getDeliveryTag(), e );
+            }
+            catch( ShutdownSignalException e )
+            {
+                closed();
+            }
+        }
+
+        /**
+         * The channel this arrived on is gone; the broker redelivers the message on another one
+         */
+        private void closed()
+        {
+            logger.info( "channel closed before deliveryTag:" + envelope.getDeliveryTag() + " was settled" );
+        }
+
+        private final Acknowledger acker;
+        private final Envelope envelope;
+        private final AMQP.BasicProperties props;
+        private final byte[] body;
+    }
+
+    private final MatchDispatcher dispatcher;
+    private final int lane;
+    private final String queue;
+    private final MatchBatcher batcher;
+    private final RequestCoalescer coalescer;
+    private final MatchKeyExtractor keyExtractor;
+    private final MatchParamCodecs codecs;
+    private final MatchMetrics metrics;
+    private final MatcherRunnableFactory runnableFactory;
+    private final RedeliveryTracker redeliveries;
+    private final DbLogger dbLog;
+    private final AckMode ackMode;
+    private final String source;
+    private final RequestDeadlines deadlines;
+
+    private static final Logger logger = Logger.getLogger( DeliveryHandler.class );
+}
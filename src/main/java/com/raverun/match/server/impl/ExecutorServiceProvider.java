@@ -1,28 +1,304 @@
 package com.raverun.match.server.impl;
 
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
+import com.raverun.match.server.db.PooledDataSourceProvider;
+import com.raverun.match.server.metrics.Gauge;
+import com.raverun.match.server.metrics.MatchMetrics;
 import com.raverun.shared.Configuration;
 
+/**
+ * Owns the one worker pool that runs match tasks for every {@code Poller}, so that
+ * a poller restart neither re-creates threads nor kills the tasks it dispatched.
+ * <p>
+ * {@code daemon.threadpool.size} threads named {@code "match worker-<n>"} take tasks from
+ * a queue of {@code daemon.threadpool.queue.size}. When that is full, {@code daemon.threadpool.rejection}
+ * decides: {@code abort} throws {@code RejectedExecutionException} to the dispatcher, {@code caller}
+ * runs the task on the consuming thread (which also stops it consuming). Policies that discard
+ * tasks silently are not offered, because the dispatcher accounts for every task it submits.
+ * <p>
+ * With {@code daemon.executor.mode=virtual} every task gets its own virtual thread instead,
+ * and at most {@code db.maxactive} of them run at once. On a JVM without virtual threads
+ * this falls back to platform threads, with the same limit.
+ * <p>
+ * With {@code daemon.executor.mode=striped} there are {@code daemon.threadpool.size} lanes of one
+ * thread, each with a queue of {@code daemon.threadpool.queue.size}. A match task runs on the lane
+ * its stripe key ({@code daemon.stripe.key}) hashes to, so the tasks of one key never run at once and
+ * run in order. {@code caller} then makes the consuming thread wait for room on the lane instead of
+ * running the task. The number of lanes is fixed: {@link #resize(int)} leaves it as it is.
+ * <p>
+ * The pool lives until {@link #drain()}.
+ *
+ * @author Gavin Bong
+ */
 @Singleton
+@ThreadSafe
 public class ExecutorServiceProvider implements Provider<ExecutorService>
 {
     @Inject
-    public ExecutorServiceProvider( Configuration config )
+    public ExecutorServiceProvider( Configuration config, MatchMetrics metrics )
     {
         this.config = config;
+        this.metrics = metrics;
+    }
+
+    public synchronized ExecutorService get()
+    {
+        if( pool == null )
+        {
+            switch( Mode.from( config.s( KEY_MODE ) ) )
+            {
+                case VIRTUAL:
+                    pool = newThreadPerTask();
+                    break;
+                case STRIPED:
+                    pool = newStriped();
+                    break;
+                default:
+                    pool = newPool();
+            }
+        }
+
+        return pool;
     }
-    
-    public ExecutorService get()
+
+    /**
+     * @return how many match tasks may run at once: the pool size, or the concurrency of a thread per task
+     */
+    public synchronized int threads()
     {
-        return Executors.newFixedThreadPool( config.i( KEY_SIGNUP_POOLSIZE, 10 ) );
+        ExecutorService executor = get();
+        if( executor instanceof ThreadPoolExecutor )
+            return ((ThreadPoolExecutor)executor).getMaximumPoolSize();
+        if( executor instanceof StripedExecutor )
+            return ((StripedExecutor)executor).lanes();
+
+        return ((ThreadPerTaskExecutor)executor).maxConcurrent();
+    }
+
+    /**
+     * Changes how many match tasks may run at once. Surplus threads end once their current task is done.
+     */
+    public synchronized void resize( int threads )
+    {
+        if( threads < 1 )
+            throw new IllegalArgumentException( "need at least one worker: " + threads );
+
+        ExecutorService executor = get();
+        if( executor instanceof StripedExecutor )
+        {
+            logger.warn( "striped lanes are fixed, not resizing to " + threads );
+            return;
+        }
+        if( executor instanceof ThreadPerTaskExecutor )
+        {
+            ((ThreadPerTaskExecutor)executor).setMaxConcurrent( threads );
+            return;
+        }
+
+        ThreadPoolExecutor pool = (ThreadPoolExecutor)executor;
+        if( threads > pool.getMaximumPoolSize() )
+        {
+            pool.setMaximumPoolSize( threads );
+            pool.setCorePoolSize( threads );
+            pool.prestartAllCoreThreads();
+        }
+        else
+        {
+            pool.setCorePoolSize( threads );
+            pool.setMaximumPoolSize( threads );
+        }
+    }
+
+    /**
+     * Lets queued and running tasks finish for up to {@code daemon.threadpool.drain.millisecond},
+     * then interrupts whatever is left.
+     */
+    public void drain() throws InterruptedException
+    {
+        final ExecutorService draining;
+        synchronized( this )
+        {
+            draining = pool;
+        }
+        if( draining == null )
+            return;
+
+        final int timeout = config.i( KEY_DRAIN_MS, 10000 );
+        logger.info( "draining match tasks" );
+        draining.shutdown();
+        if( !draining.awaitTermination( timeout, TimeUnit.MILLISECONDS ) )
+        {
+            logger.warn( "match tasks still running after " + timeout + " ms, interrupting them" );
+            draining.shutdownNow();
+        }
+    }
+
+    @GuardedBy("this")
+    private ThreadPoolExecutor newPool()
+    {
+        final int size = Math.max( 1, config.i( KEY_POOLSIZE, 10 ) );
+        final int queueSize = Math.max( 1, config.i( KEY_QUEUE_SIZE, 100 ) );
+        final String rejection = config.s( KEY_REJECTION );
+
+        RejectedExecutionHandler handler = ( rejection != null && rejection.trim().equalsIgnoreCase( "caller" ) )
+            ? new ThreadPoolExecutor.CallerRunsPolicy() : new ThreadPoolExecutor.AbortPolicy();
+
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor( size, size, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>( queueSize ), new NamedThreadFactory( "match worker", true, false ), handler );
+        executor.prestartAllCoreThreads();
+
+        metrics.gauge( "match_executor_queue_depth", "Match tasks waiting for a worker thread", new Gauge()
+        {
+            public long value()
+            {
+                return executor.getQueue().size();
+            }
+        });
+        metrics.gauge( "match_executor_active", "Worker threads running a match task", new Gauge()
+        {
+            public long value()
+            {
+                return executor.getActiveCount();
+            }
+        });
+
+        logger.info( "Worker pool: " + size + " threads | queue: " + queueSize + " | rejection: " +
+            handler.getClass().getSimpleName() );
+        return executor;
+    }
+
+    @GuardedBy("this")
+    private StripedExecutor newStriped()
+    {
+        final int lanes = Math.max( 1, config.i( KEY_POOLSIZE, 10 ) );
+        final int queueSize = Math.max( 1, config.i( KEY_QUEUE_SIZE, 100 ) );
+        final String rejection = config.s( KEY_REJECTION );
+        final boolean block = ( rejection != null && rejection.trim().equalsIgnoreCase( "caller" ) );
+
+        final StripedExecutor executor = new StripedExecutor( lanes, queueSize, block,
+            new NamedThreadFactory( "match worker", true, false ) );
+
+        metrics.gauge( "match_executor_queue_depth", "Match tasks waiting for a worker thread", new Gauge()
+        {
+            public long value()
+            {
+                return executor.waiting();
+            }
+        });
+        metrics.gauge( "match_executor_lane_depth_max", "Match tasks waiting on the busiest lane", new Gauge()
+        {
+            public long value()
+            {
+                return executor.mostWaiting();
+            }
+        });
+        metrics.gauge( "match_executor_active", "Worker threads running a match task", new Gauge()
+        {
+            public long value()
+            {
+                return executor.running();
+            }
+        });
+
+        logger.info( "Worker pool: " + lanes + " striped lanes | queue per lane: " + queueSize + " | when full: " +
+            ( block ? "wait" : "abort" ) );
+        return executor;
+    }
+
+    @GuardedBy("this")
+    private ThreadPerTaskExecutor newThreadPerTask()
+    {
+        final int concurrency = Math.max( 1, config.i( PooledDataSourceProvider.KEY_MAX_ACTIVE, 10 ) );
+
+        ThreadFactory factory = ThreadPerTaskExecutor.virtualThreadFactory( "match worker" );
+        if( factory == null )
+        {
+            logger.warn( "this JVM has no virtual threads, falling back to a platform thread per match task" );
+            factory = new NamedThreadFactory( "match worker", true, false );
+        }
+
+        final ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor( factory, concurrency );
+
+        metrics.gauge( "match_executor_queue_depth", "Match tasks waiting for a worker thread", new Gauge()
+        {
+            public long value()
+            {
+                return executor.waiting();
+            }
+        });
+        metrics.gauge( "match_executor_active", "Worker threads running a match task", new Gauge()
+        {
+            public long value()
+            {
+                return executor.running();
+            }
+        });
+
+        logger.info( "Worker pool: a thread per task | concurrency: " + concurrency );
+        return executor;
+    }
+
+    /**
+     * How match tasks get a thread. Configured with {@code daemon.executor.mode}
+     */
+    public static enum Mode
+    {
+        /**
+         * a fixed pool of {@code daemon.threadpool.size} platform threads
+         */
+        POOL,
+
+        /**
+         * a virtual thread per task, {@code db.maxactive} running at once
+         */
+        VIRTUAL,
+
+        /**
+         * {@code daemon.threadpool.size} single-threaded lanes, chosen by the stripe key of each task
+         */
+        STRIPED;
+
+        /**
+         * Defaults to {@code POOL} if {@code value} is unrecognizable
+         */
+        public static Mode from( String value )
+        {
+            if( value != null )
+            {
+                for( Mode mode : values() )
+                {
+                    if( mode.name().equalsIgnoreCase( value.trim() ) )
+                        return mode;
+                }
+            }
+            return POOL;
+        }
     }
 
     private final Configuration config;
+    private final MatchMetrics metrics;
+
+    @GuardedBy("this") private ExecutorService pool;
+
+    private final static String KEY_MODE = "daemon.executor.mode";
+    private final static String KEY_POOLSIZE = "daemon.threadpool.size";
+    private final static String KEY_QUEUE_SIZE = "daemon.threadpool.queue.size";
+    private final static String KEY_REJECTION = "daemon.threadpool.rejection";
+    private final static String KEY_DRAIN_MS = "daemon.threadpool.drain.millisecond";
 
-    private final static String KEY_SIGNUP_POOLSIZE = "daemon.threadpool.size";
+    private static final Logger logger = Logger.getLogger( ExecutorServiceProvider.class );
 }
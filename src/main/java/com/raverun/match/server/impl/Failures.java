@@ -0,0 +1,65 @@
+package com.raverun.match.server.impl;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Tells failures that retrying cannot fix from those it usually does.
+ * <p>
+ * Fatal are the broker refusing us on purpose - bad credentials or permissions
+ * ({@code 403 ACCESS_REFUSED}, {@code 530 NOT_ALLOWED}), an unknown virtual host
+ * ({@code 402 INVALID_PATH}), or the queue or exchange existing with other arguments
+ * ({@code 406 PRECONDITION_FAILED}) - and a {@code LinkageError}, i.e. a broken deployment.
+ * Everything else, in particular a refused or dropped connection, a missed heartbeat or
+ * a broker restart ({@code 320 CONNECTION_FORCED}), is transient.
+ *
+ * @author Gavin Bong
+ */
+public final class Failures
+{
+    private Failures() {}
+
+    /**
+     * @param cause may be null (i.e. unknown), which is transient
+     */
+    public static boolean isFatal( Throwable cause )
+    {
+        for( Throwable t = cause; t != null; t = ( t.getCause() == t ) ? null : t.getCause() )
+        {
+            if( t instanceof LinkageError )
+                return true;
+
+            if( t instanceof ShutdownSignalException && isFatal( replyCode( (ShutdownSignalException)t ) ) )
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isFatal( int replyCode )
+    {
+        switch( replyCode )
+        {
+        case AMQP.ACCESS_REFUSED:
+        case AMQP.NOT_ALLOWED:
+        case AMQP.INVALID_PATH:
+        case AMQP.PRECONDITION_FAILED:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return the reply code of the {@code connection.close} or {@code channel.close} behind {@code sse}, or 0
+     */
+    private static int replyCode( ShutdownSignalException sse )
+    {
+        Object reason = sse.getReason();
+        if( reason instanceof AMQP.Connection.Close )
+            return ((AMQP.Connection.Close)reason).getReplyCode();
+        if( reason instanceof AMQP.Channel.Close )
+            return ((AMQP.Channel.Close)reason).getReplyCode();
+
+        return 0;
+    }
+}
@@ -0,0 +1,145 @@
+package com.raverun.match.server.impl;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.raverun.match.server.metrics.Gauge;
+import com.raverun.match.server.metrics.MatchMetrics;
+import com.raverun.shared.Configuration;
+
+/**
+ * Owns the {@code ConcurrencyLimiter} and, with more than one lane, the {@code LaneScheduler}
+ * that every {@code Poller} dispatches through, so that {@code daemon.inflight.max} caps the
+ * match tasks of the whole process however many pollers run. Like the worker pool of
+ * {@code ExecutorServiceProvider}, they outlive poller restarts.
+ * <p>
+ * Pollers {@link #attach() attach} while they run, so that the prefetch windows of all their
+ * channels together can follow the limit.
+ *
+ * @author Gavin Bong
+ */
+@Singleton
+@ThreadSafe
+public class InFlightLimits
+{
+    @Inject
+    public InFlightLimits( Configuration config, MatchMetrics metrics )
+    {
+        maxInFlight = config.i( KEY_MAX_INFLIGHT, config.i( KEY_POOLSIZE, 10 ) );
+        adaptive = "aimd".equalsIgnoreCase( String.valueOf( config.s( KEY_LIMIT_MODE ) ).trim() );
+        limitMin = Math.min( maxInFlight, Math.max( 1, config.i( KEY_LIMIT_MIN, Math.max( 1, maxInFlight / 4 ) ) ) );
+        final int target = config.i( KEY_LIMIT_TARGET_MS, -1 );
+
+        limiter = adaptive ? ConcurrencyLimiter.aimd( limitMin, maxInFlight, limitMin, target * 1000000L )
+            : ConcurrencyLimiter.fixed( maxInFlight );
+
+        final List<Lane> lanes = Lane.from( config, config.s( DefaultPoller.KEY_QUEUENAME ), 1 );
+        scheduler = ( lanes.size() > 1 ) ? new LaneScheduler( lanes, limiter, metrics ) : null;
+
+        metrics.gauge( "match_tasks_inflight", "Match tasks running or waiting for a worker", new Gauge()
+        {
+            public long value()
+            {
+                return limiter.inFlight();
+            }
+        });
+        metrics.gauge( "match_tasks_inflight_limit", "Current cap on match tasks in flight", new Gauge()
+        {
+            public long value()
+            {
+                return limiter.limit();
+            }
+        });
+        for( int i = 0; i < lanes.size() && scheduler != null; i++ )
+        {
+            final int lane = i;
+            metrics.gauge( "match_lane_inflight{lane=\"" + lanes.get( i ).name() + "\"}", "Match tasks in flight per lane", new Gauge()
+            {
+                public long value()
+                {
+                    return scheduler.inFlight( lane );
+                }
+            });
+        }
+
+        if( adaptive )
+            logger.info( "Adaptive in-flight limit: " + limitMin + ".." + maxInFlight + " | latency target (ms): " +
+                ( target > 0 ? String.valueOf( target ) : "auto" ) );
+        else
+            logger.info( "In-flight limit: " + maxInFlight );
+    }
+
+    public ConcurrencyLimiter limiter()
+    {
+        return limiter;
+    }
+
+    /**
+     * @return null unless there is more than one lane
+     */
+    public LaneScheduler scheduler()
+    {
+        return scheduler;
+    }
+
+    public boolean adaptive()
+    {
+        return adaptive;
+    }
+
+    public int maxInFlight()
+    {
+        return maxInFlight;
+    }
+
+    /**
+     * @return the lowest the limit goes; {@code daemon.inflight.max} unless adaptive
+     */
+    public int minInFlight()
+    {
+        return adaptive ? limitMin : maxInFlight;
+    }
+
+    /**
+     * Counts a running poller
+     */
+    public void attach()
+    {
+        pollers.incrementAndGet();
+    }
+
+    public void detach()
+    {
+        pollers.decrementAndGet();
+    }
+
+    /**
+     * @return the {@code basic.qos} prefetch count that lets every running poller, each
+     *   consuming on {@code channels} channels, together hold the current limit
+     */
+    public int prefetchFor( int channels )
+    {
+        return limiter.prefetchFor( channels * Math.max( 1, pollers.get() ) );
+    }
+
+    private final ConcurrencyLimiter limiter;
+    private final LaneScheduler scheduler;
+    private final boolean adaptive;
+    private final int maxInFlight;
+    private final int limitMin;
+    private final AtomicInteger pollers = new AtomicInteger();
+
+    private final static String KEY_MAX_INFLIGHT = "daemon.inflight.max";
+    private final static String KEY_POOLSIZE = "daemon.threadpool.size";
+    private final static String KEY_LIMIT_MODE = "daemon.inflight.limit";
+    private final static String KEY_LIMIT_MIN = "daemon.inflight.min";
+    private final static String KEY_LIMIT_TARGET_MS = "daemon.inflight.latency.target.millisecond";
+
+    private static final Logger logger = Logger.getLogger( InFlightLimits.class );
+}
@@ -0,0 +1,121 @@
+package com.raverun.match.server.impl;
+
+import java.util.Random;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.google.inject.Inject;
+import com.raverun.match.server.api.RetryPolicy;
+import com.raverun.shared.Configuration;
+
+/**
+ * A {@code RetryPolicy} for several match servers sharing one broker:
+ * <ul>
+ * <li>backs off with decorrelated jitter - a random value between {@code daemon.backoff.base.millisecond}
+ * and three times the previous backoff, capped at {@code daemon.backoff.max.millisecond} - so that
+ * servers which lost the broker together do not all come back at the same moment
+ * <li>lets the backoff decay while pollers stay up: it halves for every quarter of
+ * {@code daemon.stable.period.millisecond} the last poller ran, and a poller that ran the
+ * whole period starts a fresh count of failures from the base backoff
+ * <li>retries transient failures up to {@code daemon.retry.max} pollers in a row (-1 forever)
+ * <li>retries fatal failures (see {@link Failures}) only {@code daemon.retry.fatal.max} times in a row,
+ * each after the maximum backoff, since they need someone to fix the broker or the configuration
+ * <li>alerts once it has given up
+ * </ul>
+ * Each instance serves a single poller slot of the daemon.
+ *
+ * @author Gavin Bong
+ */
+@NotThreadSafe
+public class JitteredRetryPolicy implements RetryPolicy
+{
+    @Inject
+    public JitteredRetryPolicy( Configuration config )
+    {
+        this( config, new Random() );
+    }
+
+    JitteredRetryPolicy( Configuration config, Random random )
+    {
+        this.random = random;
+        this.base = Math.max( 1, config.i( DefaultRetryPolicy.KEY_BACKOFF_BASE, 500 ) );
+        this.cap = Math.max( base, config.i( DefaultRetryPolicy.KEY_BACKOFF_MAX, 20000 ) );
+        this.stablePeriod = Math.max( 1, config.i( DefaultPoller.KEY_STABLE_PERIOD_MS, 60000 ) );
+        this.maxRetries = config.i( KEY_RETRY_MAX, -1 );
+        this.maxFatalRetries = Math.max( 0, config.i( KEY_RETRY_FATAL_MAX, 2 ) );
+    }
+
+    public boolean retry( long numberOfExecutions, Throwable cause, long uptime )
+    {
+        if( uptime >= stablePeriod )
+        {
+            failures = 0;
+            fatalFailures = 0;
+        }
+
+        failures++;
+        lastFatal = Failures.isFatal( cause );
+        fatalFailures = lastFatal ? fatalFailures + 1 : 0;
+
+        if( lastFatal && fatalFailures > maxFatalRetries )
+        {
+            logger.fatal( "giving up after " + fatalFailures + " fatal failure(s) in a row: " + cause );
+            givenUp = true;
+        }
+        else if( maxRetries >= 0 && failures > maxRetries )
+        {
+            logger.fatal( "giving up after " + failures + " failed poller(s) in a row: " + cause );
+            givenUp = true;
+        }
+        else if( lastFatal )
+        {
+            logger.error( "fatal failure " + fatalFailures + " of " + maxFatalRetries + " tolerated: " + cause );
+        }
+
+        return !givenUp;
+    }
+
+    public boolean mustAlert()
+    {
+        return givenUp;
+    }
+
+    public int initialBackoff()
+    {
+        return base;
+    }
+
+    public int newBackoff( int currentBackoff, long uptime )
+    {
+        if( lastFatal )
+            return cap;
+
+        long previous = currentBackoff;
+        if( uptime >= stablePeriod )
+            previous = base;
+        else
+            previous >>= Math.min( 30, uptime / Math.max( 1, stablePeriod / 4 ) );
+
+        final long upper = Math.min( cap, Math.max( base, previous ) * 3L );
+        return (int)( base + (long)( random.nextDouble() * ( upper - base + 1 ) ) );
+    }
+
+    private final Random random;
+    private final int base;
+    private final int cap;
+    private final int stablePeriod;
+    private final int maxRetries;
+    private final int maxFatalRetries;
+
+    private int failures;
+    private int fatalFailures;
+    private boolean lastFatal;
+    private boolean givenUp;
+
+    private static final String KEY_RETRY_MAX = "daemon.retry.max";
+    private static final String KEY_RETRY_FATAL_MAX = "daemon.retry.fatal.max";
+
+    private static final Logger logger = Logger.getLogger( JitteredRetryPolicy.class );
+}
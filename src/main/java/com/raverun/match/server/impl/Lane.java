@@ -0,0 +1,101 @@
+package com.raverun.match.server.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.jcip.annotations.Immutable;
+
+import com.raverun.shared.Configuration;
+
+/**
+ * A priority lane: a queue of match requests with its share of the worker slots.
+ * <p>
+ * Lanes are listed, highest priority first, in {@code rabbitmq.lanes}; each named lane
+ * reads {@code rabbitmq.lane.<name>.queue}, {@code .weight} (its share of the slots that
+ * are contended for, default 1), {@code .reserved} (slots no other lane may take, default 0)
+ * and {@code .channels} (consumers on its queue, default 1). Without {@code rabbitmq.lanes}
+ * there is a single lane on {@code rabbitmq.queuename.match}.
+ *
+ * @author Gavin Bong
+ */
+@Immutable
+public final class Lane
+{
+    public Lane( String name, String queue, int weight, int reserved, int channels )
+    {
+        if( queue == null || queue.trim().length() == 0 )
+            throw new IllegalArgumentException( "lane " + name + " has no queue" );
+
+        this.name = name;
+        this.queue = queue.trim();
+        this.weight = Math.max( 1, weight );
+        this.reserved = Math.max( 0, reserved );
+        this.channels = Math.max( 1, channels );
+    }
+
+    /**
+     * @param defaultQueue the queue of the single lane if no lanes are configured
+     * @param defaultChannels its number of channels
+     */
+    public static List<Lane> from( Configuration config, String defaultQueue, int defaultChannels )
+    {
+        final String names = config.s( KEY_LANES );
+        if( names == null || names.trim().length() == 0 )
+            return Collections.singletonList( new Lane( DEFAULT, defaultQueue, 1, 0, defaultChannels ) );
+
+        List<Lane> lanes = new ArrayList<Lane>();
+        for( String name : names.split( "," ) )
+        {
+            name = name.trim();
+            if( name.length() == 0 )
+                continue;
+
+            final String prefix = KEY_LANE_PREFIX + name;
+            lanes.add( new Lane( name, config.s( prefix + ".queue" ), config.i( prefix + ".weight", 1 ),
+                config.i( prefix + ".reserved", 0 ), config.i( prefix + ".channels", 1 ) ) );
+        }
+        return Collections.unmodifiableList( lanes );
+    }
+
+    public String name()
+    {
+        return name;
+    }
+
+    public String queue()
+    {
+        return queue;
+    }
+
+    public int weight()
+    {
+        return weight;
+    }
+
+    public int reserved()
+    {
+        return reserved;
+    }
+
+    public int channels()
+    {
+        return channels;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + "(queue=" + queue + ", weight=" + weight + ", reserved=" + reserved + ", channels=" + channels + ")";
+    }
+
+    private final String name;
+    private final String queue;
+    private final int weight;
+    private final int reserved;
+    private final int channels;
+
+    private static final String DEFAULT = "default";
+    private final static String KEY_LANES = "rabbitmq.lanes";
+    private final static String KEY_LANE_PREFIX = "rabbitmq.lane.";
+}
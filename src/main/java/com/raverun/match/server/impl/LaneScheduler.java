@@ -0,0 +1,172 @@
+package com.raverun.match.server.impl;
+
+import java.util.List;
+import java.util.TreeSet;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import com.raverun.match.server.metrics.LatencyHistogram;
+import com.raverun.match.server.metrics.MatchMetrics;
+
+/**
+ * Decides which lane's match task gets the next in-flight slot, using weighted fair queueing
+ * with reserved slots.
+ * <p>
+ * Each waiting task gets a virtual finish time of {@code max(now, lane's last finish) + 1/weight},
+ * and among the tasks that may run, the one that finishes first goes next. So while every lane
+ * is busy, they share the slots in proportion to their weights, and a lane that was idle does not
+ * save up credit. On top of that, a lane's {@code reserved} slots are never taken by another lane:
+ * the others together only get {@code limit - reserved of all lanes} (but at least one).
+ * <p>
+ * The total is bounded by the {@code ConcurrencyLimiter}'s current limit, which is re-read
+ * while waiting since an adaptive limit can grow without anyone releasing a slot.
+ *
+ * @author Gavin Bong
+ */
+@ThreadSafe
+public class LaneScheduler
+{
+    public LaneScheduler( List<Lane> lanes, ConcurrencyLimiter limiter, MatchMetrics metrics )
+    {
+        this.limiter = limiter;
+        final int n = lanes.size();
+        this.weights = new double[ n ];
+        this.reserved = new int[ n ];
+        this.inFlight = new int[ n ];
+        this.lastFinish = new double[ n ];
+        this.waits = new LatencyHistogram[ n ];
+
+        int sum = 0;
+        for( int i = 0; i < n; i++ )
+        {
+            Lane lane = lanes.get( i );
+            weights[ i ] = lane.weight();
+            reserved[ i ] = lane.reserved();
+            sum += lane.reserved();
+            waits[ i ] = metrics.histogram( "match_lane_wait_seconds{lane=\"" + lane.name() + "\"}",
+                "Time a match request waited for an in-flight slot in its lane", MatchMetrics.BUCKETS_MS );
+        }
+        this.reservedTotal = sum;
+    }
+
+    /**
+     * Waits until {@code lane} may start another task and takes a slot for it
+     */
+    public synchronized void acquire( int lane ) throws InterruptedException
+    {
+        final long since = System.nanoTime();
+        final Ticket ticket = new Ticket( lane, Math.max( virtualTime, lastFinish[ lane ] ) + 1.0 / weights[ lane ], sequence++ );
+        lastFinish[ lane ] = ticket.finish;
+        waiting.add( ticket );
+
+        try
+        {
+            while( next() != ticket )
+                wait( RECHECK_MS );
+        }
+        catch( InterruptedException ie )
+        {
+            waiting.remove( ticket );
+            notifyAll();
+            throw ie;
+        }
+
+        waiting.remove( ticket );
+        virtualTime = ticket.finish;
+        inFlight[ lane ]++;
+        total++;
+        notifyAll(); // the next ticket may be admissible too
+
+        waits[ lane ].record( System.nanoTime() - since );
+    }
+
+    public synchronized void release( int lane )
+    {
+        inFlight[ lane ]--;
+        total--;
+        notifyAll();
+    }
+
+    public synchronized int inFlight( int lane )
+    {
+        return inFlight[ lane ];
+    }
+
+    /**
+     * @return true if a task of {@code lane} could take a slot right now; nothing is reserved,
+     *   so a task of another lane or poller may still get there first
+     */
+    public synchronized boolean hasRoom( int lane )
+    {
+        return admits( lane, limiter.limit() );
+    }
+
+    /**
+     * @return the waiting ticket with the earliest finish whose lane may start a task now, or null
+     */
+    @GuardedBy("this")
+    private Ticket next()
+    {
+        final int limit = limiter.limit();
+        for( Ticket ticket : waiting )
+        {
+            if( admits( ticket.lane, limit ) )
+                return ticket;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if {@code lane} may start a task while {@code limit} tasks may be in flight
+     */
+    @GuardedBy("this")
+    private boolean admits( int lane, int limit )
+    {
+        if( total >= limit )
+            return false;
+        if( inFlight[ lane ] < reserved[ lane ] )
+            return true;
+
+        int shared = 0;
+        for( int i = 0; i < inFlight.length; i++ )
+            shared += Math.max( 0, inFlight[ i ] - reserved[ i ] );
+        return shared < Math.max( 1, limit - reservedTotal );
+    }
+
+    private static final class Ticket implements Comparable<Ticket>
+    {
+        Ticket( int lane, double finish, long sequence )
+        {
+            this.lane = lane;
+            this.finish = finish;
+            this.sequence = sequence;
+        }
+
+        public int compareTo( Ticket other )
+        {
+            if( finish != other.finish )
+                return finish < other.finish ? -1 : 1;
+            return sequence < other.sequence ? -1 : ( sequence == other.sequence ? 0 : 1 );
+        }
+
+        final int lane;
+        final double finish;
+        final long sequence;
+    }
+
+    private final ConcurrencyLimiter limiter;
+    private final double[] weights;
+    private final int[] reserved;
+    private final int reservedTotal;
+    private final LatencyHistogram[] waits;
+
+    @GuardedBy("this") private final int[] inFlight;
+    @GuardedBy("this") private final double[] lastFinish;
+    @GuardedBy("this") private final TreeSet<Ticket> waiting = new TreeSet<Ticket>();
+    @GuardedBy("this") private double virtualTime;
+    @GuardedBy("this") private long sequence;
+    @GuardedBy("this") private int total;
+
+    private static final long RECHECK_MS = 50;
+}
@@ -0,0 +1,64 @@
+package com.raverun.match.server.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.google.inject.Inject;
+import com.raverun.match.api.MatchHandler;
+import com.raverun.match.api.MatchParam;
+import com.raverun.match.server.api.BatchMatchHandler;
+import com.raverun.match.server.api.KeyedMatchHandler;
+import com.raverun.match.server.api.PartialBatchFailureException;
+
+/**
+ * Adapts a {@code MatchHandler} that can only handle one request at a time.
+ * <p>
+ * Every request in the batch is attempted even if an earlier one fails; once the batch
+ * has been worked through, a {@code PartialBatchFailureException} tells which ones failed.
+ *
+ * @author Gavin Bong
+ */
+public class LoopingBatchMatchHandler implements BatchMatchHandler
+{
+    @Inject
+    public LoopingBatchMatchHandler( MatchHandler matchHandler )
+    {
+        this.matchHandler = matchHandler;
+    }
+
+    public void process( List<MatchParam> params, List<Object> keys )
+    {
+        final List<RuntimeException> failures = new ArrayList<RuntimeException>( params.size() );
+        RuntimeException failure = null;
+
+        for( int i = 0; i < params.size(); i++ )
+        {
+            final MatchParam param = params.get( i );
+            final Object key = keys.get( i );
+            try
+            {
+                if( key != null && matchHandler instanceof KeyedMatchHandler )
+                    ( (KeyedMatchHandler)matchHandler ).process( param, key );
+                else
+                    matchHandler.process( param );
+                failures.add( null );
+            }
+            catch( RuntimeException e )
+            {
+                logger.error( "match failed for " + param, e );
+                failures.add( e );
+                if( failure == null )
+                    failure = e;
+            }
+        }
+
+        if( failure != null )
+            throw new PartialBatchFailureException( failures, failure );
+    }
+
+    private final MatchHandler matchHandler;
+
+    private static final Logger logger = Logger.getLogger( LoopingBatchMatchHandler.class );
+}
@@ -0,0 +1,223 @@
+package com.raverun.match.server.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.raverun.match.api.MatchParam;
+import com.raverun.match.server.api.BatchMatchHandler;
+import com.raverun.match.server.api.MatcherRunnableFactory;
+
+/**
+ * Collects match requests and dispatches them as one {@code BatchMatcherRunnable} once
+ * {@code batchSize} requests have been collected or the oldest one has waited {@code window},
+ * whichever comes first.
+ * <p>
+ * A batch occupies a single slot of the {@code MatchDispatcher}. Once it has run, the 
+ * {@code Completion} of each request in it learns the outcome of that request, since a 
+ * failed batch is matched again one request at a time (see {@code BatchMatcherRunnable}).
+ * If the batch could not run at all, e.g. it timed out, every request in it failed.
+ *
+ * @author Gavin Bong
+ */
+@ThreadSafe
+public class MatchBatcher
+{
+    public MatchBatcher( MatchDispatcher dispatcher, BatchMatchHandler batchHandler, MatcherRunnableFactory runnableFactory,
+        int batchSize, long window, TimeUnit unit, String name )
+    {
+        this( dispatcher, 0, batchHandler, runnableFactory, batchSize, window, unit, name );
+    }
+
+    /**
+     * @param lane the lane its batches are dispatched to
+     * @param runnableFactory matches the requests of a failed batch one at a time
+     */
+    public MatchBatcher( MatchDispatcher dispatcher, int lane, BatchMatchHandler batchHandler, 
+        MatcherRunnableFactory runnableFactory, int batchSize, long window, TimeUnit unit, String name )
+    {
+        this.dispatcher   = dispatcher;
+        this.lane         = lane;
+        this.batchHandler = batchHandler;
+        this.runnableFactory = runnableFactory;
+        this.batchSize    = Math.max( 1, batchSize );
+        this.windowNanos  = unit.toNanos( window );
+        this.timer        = Executors.newSingleThreadScheduledExecutor( new NamedThreadFactory( name + " batcher", false, true ) );
+        this.current      = new Batch( this.batchSize );
+
+        timer.scheduleWithFixedDelay( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    flushIfDue();
+                }
+                catch( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                catch( RuntimeException e )
+                {
+                    logger.error( "could not dispatch batch", e );
+                }
+            }
+        }, window, window, unit );
+    }
+
+    /**
+     * @param key the identity of {@code param}; null if unknown
+     * @param completion may be null
+     * @throws InterruptedException if interrupted while waiting for an in-flight slot
+     */
+    public void add( MatchParam param, Object key, MatchDispatcher.Completion completion ) throws InterruptedException
+    {
+        Batch full = null;
+        synchronized( this )
+        {
+            if( current.params.isEmpty() )
+                current.startedAt = System.nanoTime();
+
+            current.add( param, key, completion );
+            if( current.params.size() >= batchSize )
+                full = takeCurrent();
+        }
+
+        if( full != null )
+            dispatch( full );
+    }
+
+    public void flushIfDue() throws InterruptedException
+    {
+        Batch due = null;
+        synchronized( this )
+        {
+            if( !current.params.isEmpty() && System.nanoTime() - current.startedAt >= windowNanos )
+                due = takeCurrent();
+        }
+
+        if( due != null )
+            dispatch( due );
+    }
+
+    public void flush() throws InterruptedException
+    {
+        Batch pending = null;
+        synchronized( this )
+        {
+            if( !current.params.isEmpty() )
+                pending = takeCurrent();
+        }
+
+        if( pending != null )
+            dispatch( pending );
+    }
+
+    /**
+     * Dispatches whatever has been collected and stops the timer
+     */
+    public void shutdown() throws InterruptedException
+    {
+        timer.shutdownNow();
+        flush();
+    }
+
+    @GuardedBy("this")
+    private Batch takeCurrent()
+    {
+        Batch taken = current;
+        current = new Batch( batchSize );
+        return taken;
+    }
+
+    private void dispatch( Batch batch ) throws InterruptedException
+    {
+        if( logger.isDebugEnabled() )
+            logger.debug( "dispatching batch of " + batch.params.size() );
+
+        try
+        {
+            batch.runnable = new BatchMatcherRunnable( batchHandler, runnableFactory, batch.params, batch.keys );
+            dispatcher.dispatch( lane, batch.runnable, batch );
+        }
+        catch( RuntimeException e )
+        {
+            logger.error( "Could not dispatch a batch of " + batch.params.size(), e );
+            batch.failed( e );
+        }
+    }
+
+    /**
+     * The requests of one batch, and the completions to notify when it is done
+     */
+    private static final class Batch implements MatchDispatcher.Completion
+    {
+        Batch( int capacity )
+        {
+            params = new ArrayList<MatchParam>( capacity );
+            keys = new ArrayList<Object>( capacity );
+            completions = new ArrayList<MatchDispatcher.Completion>( capacity );
+        }
+
+        void add( MatchParam param, Object key, MatchDispatcher.Completion completion )
+        {
+            params.add( param );
+            keys.add( key );
+            completions.add( completion );
+        }
+
+        /**
+         * The batch ran; each request may still have failed on its own
+         */
+        public void succeeded()
+        {
+            for( int i = 0; i < completions.size(); i++ )
+            {
+                final MatchDispatcher.Completion completion = completions.get( i );
+                if( completion == null )
+                    continue;
+
+                final RuntimeException failure = runnable.failureOf( i );
+                if( failure == null )
+                    completion.succeeded();
+                else
+                    completion.failed( failure );
+            }
+        }
+
+        public void failed( Throwable cause )
+        {
+            for( MatchDispatcher.Completion completion : completions )
+            {
+                if( completion != null )
+                    completion.failed( cause );
+            }
+        }
+
+        final List<MatchParam> params;
+        final List<Object> keys;
+        /** in the order of {@code params}; null where a request has none */
+        final List<MatchDispatcher.Completion> completions;
+        long startedAt;
+        BatchMatcherRunnable runnable;
+    }
+
+    private final MatchDispatcher dispatcher;
+    private final int lane;
+    private final BatchMatchHandler batchHandler;
+    private final MatcherRunnableFactory runnableFactory;
+    private final int batchSize;
+    private final long windowNanos;
+    private final ScheduledExecutorService timer;
+
+    @GuardedBy("this") private Batch current;
+
+    private static final Logger logger = Logger.getLogger( MatchBatcher.class );
+}
@@ -0,0 +1,364 @@
+package com.raverun.match.server.impl;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.raverun.match.server.api.Deadline;
+import com.raverun.match.server.api.DeadlineExceededException;
+import com.raverun.match.server.metrics.MatchMetrics;
+
+/**
+ * Submits match tasks to an {@code ExecutorService} while keeping the number of them
+ * running or queued within a {@code ConcurrencyLimiter}, to which it reports how long
+ * each task ran.
+ * <p>
+ * {@link #dispatch(Runnable)} only blocks the caller when that limit is reached. With a
+ * {@code LaneScheduler}, tasks are dispatched to a lane and the scheduler also decides
+ * which lane's caller goes next.
+ * A single watchdog thread cancels (with interruption) any task that has not
+ * completed within the configured timeout of starting to run; time spent queued does not count.
+ * <p>
+ * A task holds its slot, and its {@code Completion} is not told, until the worker thread has come
+ * back from it. A cancelled task that is stuck (e.g. in JDBC) therefore still counts as in flight,
+ * and its request is not requeued while it may still be running.
+ * <p>
+ * A task may also carry the {@code Deadline} of its request. It is not started once that has
+ * passed, is cancelled when it passes, and either way fails with a {@code DeadlineExceededException}.
+ * While it runs, the earlier of that deadline and its timeout is the thread's current {@code Deadline}.
+ * <p>
+ * The stripe key of a {@code StripedExecutor.Keyed} task is passed on to the executor.
+ *
+ * @author Gavin Bong
+ */
+@ThreadSafe
+public class MatchDispatcher
+{
+    /**
+     * With a fixed limit of {@code maxInFlight}
+     */
+    public MatchDispatcher( ExecutorService executor, int maxInFlight, long timeout, TimeUnit unit, String name, 
+        MatchMetrics metrics )
+    {
+        this( executor, ConcurrencyLimiter.fixed( maxInFlight ), timeout, unit, name, metrics );
+    }
+
+    public MatchDispatcher( ExecutorService executor, ConcurrencyLimiter limiter, long timeout, TimeUnit unit, String name, 
+        MatchMetrics metrics )
+    {
+        this( executor, limiter, null, timeout, unit, name, metrics );
+    }
+
+    /**
+     * @param lanes null for a single lane
+     */
+    public MatchDispatcher( ExecutorService executor, ConcurrencyLimiter limiter, LaneScheduler lanes, long timeout, 
+        TimeUnit unit, String name, MatchMetrics metrics )
+    {
+        this.executor    = executor;
+        this.limiter     = limiter;
+        this.lanes       = lanes;
+        this.timeout     = timeout;
+        this.unit        = unit;
+        this.watchdog    = Executors.newSingleThreadScheduledExecutor( new NamedThreadFactory( name + " watchdog", false, true ) );
+        this.metrics     = metrics;
+    }
+
+    /**
+     * @throws InterruptedException if interrupted while waiting for an in-flight slot
+     */
+    public void dispatch( Runnable runnable ) throws InterruptedException
+    {
+        dispatch( runnable, null );
+    }
+
+    /**
+     * @param completion notified once {@code runnable} has finished, failed or was cancelled, 
+     *   or was refused by the executor. May be null.
+     * @throws InterruptedException if interrupted while waiting for an in-flight slot
+     */
+    public void dispatch( Runnable runnable, Completion completion ) throws InterruptedException
+    {
+        dispatch( 0, runnable, completion );
+    }
+
+    /**
+     * @param lane index into the lanes of the {@code LaneScheduler}; 0 without one
+     * @see #dispatch(Runnable, Completion)
+     */
+    public void dispatch( int lane, Runnable runnable, Completion completion ) throws InterruptedException
+    {
+        dispatch( lane, runnable, completion, null );
+    }
+
+    /**
+     * @param deadline after which the result no longer matters; null for none
+     * @see #dispatch(int, Runnable, Completion)
+     */
+    public void dispatch( int lane, Runnable runnable, Completion completion, Deadline deadline ) throws InterruptedException
+    {
+        if( lanes != null )
+            lanes.acquire( lane );
+        try
+        {
+            limiter.acquire();
+        }
+        catch( InterruptedException ie )
+        {
+            if( lanes != null )
+                lanes.release( lane );
+            throw ie;
+        }
+
+        final DispatchedTask task = new DispatchedTask( lane, runnable, completion, deadline );
+        try
+        {
+            executor.execute( task );
+        }
+        catch( RejectedExecutionException e )
+        {
+            release( lane );
+            limiter.overloaded();
+            metrics.rejections().incrementAndGet();
+            logger.warn( "executor refused a match task: " + e.getMessage() );
+            if( completion != null )
+                completion.failed( e );
+            return;
+        }
+        catch( RuntimeException e )
+        {
+            release( lane );
+            throw e;
+        }
+    }
+
+    public int inFlight()
+    {
+        return limiter.inFlight();
+    }
+
+    /**
+     * @return the current limit, which changes over time if the limiter is adaptive
+     */
+    public int maxInFlight()
+    {
+        return limiter.limit();
+    }
+
+    private void release( int lane )
+    {
+        limiter.release();
+        if( lanes != null )
+            lanes.release( lane );
+    }
+
+    /**
+     * Stops the watchdog. Tasks already dispatched are left to the executor.
+     */
+    public void shutdown()
+    {
+        watchdog.shutdownNow();
+    }
+
+    /**
+     * Callback for the outcome of a dispatched task. Invoked on the worker thread once the
+     * task has returned (or on the dispatching thread if the executor refused it), so
+     * implementations must not block.
+     */
+    public static interface Completion
+    {
+        void succeeded();
+
+        /**
+         * @param cause the exception thrown by the task, a {@code CancellationException} on timeout,
+         *   or a {@code DeadlineExceededException} once its request expired
+         */
+        void failed( Throwable cause );
+    }
+
+    /**
+     * {@link #run()} is called exactly once by the executor, whether or not the task was cancelled
+     * meanwhile, and returns only once the work has, which makes its {@code finally} the one place
+     * to return the slot.
+     */
+    private final class DispatchedTask extends FutureTask<Object> implements StripedExecutor.Keyed
+    {
+        DispatchedTask( int lane, Runnable runnable, Completion completion, Deadline deadline )
+        {
+            super( runnable, null );
+            this.lane = lane;
+            this.stripeKey = ( runnable instanceof StripedExecutor.Keyed ) ? ((StripedExecutor.Keyed)runnable).stripeKey() : null;
+            this.completion = completion;
+            this.deadline = deadline;
+            this.dispatchedAt = System.nanoTime();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                if( requestExpired() )
+                {
+                    setException( new DeadlineExceededException( "request expired while waiting for a worker" ) );
+                    return;
+                }
+                if( isDone() )
+                    return;
+
+                startedAt = System.nanoTime();
+                metrics.taskWait().record( startedAt - dispatchedAt );
+
+                final Deadline effective = Deadline.after( timeout, unit ).earlier( deadline );
+                final ScheduledFuture<?> watch = watch( effective );
+                final Deadline previous = Deadline.enter( effective );
+                try
+                {
+                    super.run(); // returns once the work does, even if cancelled meanwhile
+                }
+                finally
+                {
+                    Deadline.leave( previous );
+                    if( watch != null )
+                        watch.cancel( false );
+                }
+            }
+            finally
+            {
+                if( isCancelled() )
+                    Thread.interrupted(); // the watchdog's interrupt was meant for the task
+                settle();
+            }
+        }
+
+        /**
+         * @return null if the watchdog is shut down
+         */
+        private ScheduledFuture<?> watch( Deadline effective )
+        {
+            try
+            {
+                return watchdog.schedule( new Runnable()
+                {
+                    public void run()
+                    {
+                        if( cancel( true ) )
+                        {
+                            if( requestExpired() )
+                                logger.info( "match task outlived its request and was cancelled" );
+                            else
+                            {
+                                metrics.timeouts().incrementAndGet();
+                                logger.warn( "match task exceeded " + timeout + " " + unit + " and was cancelled" );
+                            }
+                        }
+                    }
+                }, Math.max( 0, effective.remaining( TimeUnit.NANOSECONDS ) ), TimeUnit.NANOSECONDS );
+            }
+            catch( RejectedExecutionException e )
+            {
+                return null;
+            }
+        }
+
+        public Object stripeKey()
+        {
+            return stripeKey;
+        }
+
+        boolean requestExpired()
+        {
+            return deadline != null && deadline.expired();
+        }
+
+        private void settle()
+        {
+            if( isCancelled() && !requestExpired() )
+                limiter.overloaded();
+            else if( startedAt != 0 )
+            {
+                final long ran = System.nanoTime() - startedAt;
+                metrics.taskLatency().record( ran );
+                limiter.sample( ran );
+            }
+            release( lane );
+
+            Throwable failure = null;
+            try
+            {
+                get();
+            }
+            catch( CancellationException ce )
+            {
+                failure = ce;
+            }
+            catch( InterruptedException ie )
+            {
+                failure = ie;
+            }
+            catch( ExecutionException ee )
+            {
+                failure = ee.getCause();
+                if( failure instanceof DeadlineExceededException && !requestExpired() )
+                {
+                    // the match logic gave up at the timeout, before the watchdog cancelled it
+                    metrics.timeouts().incrementAndGet();
+                    failure = new CancellationException( "match task exceeded " + timeout + " " + unit );
+                }
+                else if( !requestExpired() )
+                {
+                    metrics.taskFailures().incrementAndGet();
+                    logger.error( "match task failed", failure );
+                }
+            }
+
+            // whatever it failed with (e.g. a query timeout), the result no longer matters
+            if( failure != null && requestExpired() && !( failure instanceof DeadlineExceededException ) )
+                failure = new DeadlineExceededException( "request expired: " + failure );
+            if( failure instanceof DeadlineExceededException )
+                metrics.expired().incrementAndGet();
+
+            if( completion == null )
+                return;
+
+            try
+            {
+                if( failure == null )
+                    completion.succeeded();
+                else
+                    completion.failed( failure );
+            }
+            catch( RuntimeException e )
+            {
+                logger.error( "completion callback failed", e );
+            }
+        }
+
+        private final int lane;
+        private final Object stripeKey;
+        private final Completion completion;
+        private final Deadline deadline;
+        private final long dispatchedAt;
+        private long startedAt; // worker thread only
+    }
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService watchdog;
+    private final ConcurrencyLimiter limiter;
+    private final LaneScheduler lanes;
+    private final long timeout;
+    private final TimeUnit unit;
+    private final MatchMetrics metrics;
+
+    private static final Logger logger = Logger.getLogger( MatchDispatcher.class );
+}
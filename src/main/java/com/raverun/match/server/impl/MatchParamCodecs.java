@@ -0,0 +1,98 @@
+package com.raverun.match.server.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.raverun.match.api.MatchParam;
+import com.raverun.match.server.api.MatchParamCodec;
+import com.raverun.shared.Configuration;
+
+/**
+ * Picks the {@code MatchParamCodec} for a message from its {@code content-type}, so that
+ * producers can move to a new wire format one at a time.
+ * <p>
+ * {@code SerializedMatchParamCodec} is always registered and decodes messages whose 
+ * content-type is missing or unknown. {@code CompactMatchParamCodec} is registered unless
+ * {@code MatchParam} cannot be written in its format. Further codecs are listed in
+ * {@code daemon.codecs} as comma-separated class names; each needs a public no-argument constructor.
+ *
+ * @author Gavin Bong
+ */
+@Singleton
+public class MatchParamCodecs
+{
+    /**
+     * @throws IllegalArgumentException if a codec listed in {@code daemon.codecs} cannot be instantiated
+     */
+    @Inject
+    public MatchParamCodecs( Configuration config )
+    {
+        register( fallback );
+        try
+        {
+            register( new CompactMatchParamCodec() );
+        }
+        catch( IllegalArgumentException e )
+        {
+            logger.warn( "content-type " + CompactMatchParamCodec.CONTENT_TYPE + " is not available: " + e.getMessage() );
+        }
+
+        String classNames = config.s( KEY_CODECS );
+        if( classNames == null )
+            return;
+
+        for( String className : classNames.split( "," ) )
+        {
+            if( className.trim().length() == 0 )
+                continue;
+
+            try
+            {
+                register( (MatchParamCodec)Class.forName( className.trim() ).newInstance() );
+            }
+            catch( Exception e )
+            {
+                throw new IllegalArgumentException( "Cannot instantiate codec " + className + " listed in " + KEY_CODECS, e );
+            }
+        }
+    }
+
+    /**
+     * @param contentType may be null
+     * @throws IllegalArgumentException if the body cannot be decoded
+     */
+    public MatchParam decode( String contentType, byte[] body )
+    {
+        return codecFor( contentType ).decode( body, 0, body.length );
+    }
+
+    public MatchParamCodec codecFor( String contentType )
+    {
+        if( contentType == null )
+            return fallback;
+
+        MatchParamCodec codec = byContentType.get( contentType );
+        return ( codec == null ) ? fallback : codec;
+    }
+
+    private void register( MatchParamCodec codec )
+    {
+        byContentType.put( codec.contentType(), codec );
+        logger.info( "registered codec " + codec.getClass().getName() + " for content-type " + codec.contentType() );
+    }
+
+    private final MatchParamCodec fallback = new SerializedMatchParamCodec();
+
+    /**
+     * Only written to during construction
+     */
+    private final Map<String, MatchParamCodec> byContentType = new HashMap<String, MatchParamCodec>();
+
+    private static final String KEY_CODECS = "daemon.codecs";
+
+    private static final Logger logger = Logger.getLogger( MatchParamCodecs.class );
+}
@@ -1,36 +1,40 @@
 package com.raverun.match.server.impl;
 
-import java.sql.Connection;
-import java.sql.SQLWarning;
-
-import javax.sql.DataSource;
-
 import org.apache.log4j.Logger;
 
-import com.google.inject.Provider;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
 import com.raverun.match.api.MatchHandler;
 import com.raverun.match.api.MatchParam;
-import com.raverun.match.server.db.ConnectionPool;
+import com.raverun.match.server.api.KeyedMatchHandler;
 
-public class MatcherRunnable implements Runnable
+public class MatcherRunnable implements Runnable, StripedExecutor.Keyed
 {
     @AssistedInject
-    public MatcherRunnable( Provider<DataSource> dsProvider, MatchHandler matchHandler, @Assisted MatchParam param )
+    public MatcherRunnable( MatchHandler matchHandler, StripeKeyExtractor stripeKeys,
+        @Assisted MatchParam param, @Assisted Object key )
     {
+        this.stripeKeys = stripeKeys;
         this.matchHandler = matchHandler;
-        this.dsProvider = dsProvider;
         this.param = param;
+        this.key = key;
     }
 
-    @SuppressWarnings("unused")
     public void run()
     {
-        DataSource dataSource = dsProvider.get();
-        logger.info( toLogPrefix() + "start process" );
-        matchHandler.process( param );
-        logger.info( toLogPrefix() + "finished" );
+        if( logger.isDebugEnabled() )
+            logger.debug( toLogPrefix() + "start process" );
+        if( key != null && matchHandler instanceof KeyedMatchHandler )
+            ( (KeyedMatchHandler)matchHandler ).process( param, key );
+        else
+            matchHandler.process( param );
+        if( logger.isDebugEnabled() )
+            logger.debug( toLogPrefix() + "finished" );
+    }
+
+    public Object stripeKey()
+    {
+        return stripeKeys.keyOf( param );
     }
 
     private final String toLogPrefix()
@@ -43,8 +47,9 @@ public class MatcherRunnable implements Runnable
     }
     
     private final MatchParam param;
-    private final Provider<DataSource> dsProvider;
+    private final Object key;
     private final MatchHandler matchHandler;
+    private final StripeKeyExtractor stripeKeys;
     
     private static final Logger logger = Logger.getLogger( MatcherRunnable.class );
 }
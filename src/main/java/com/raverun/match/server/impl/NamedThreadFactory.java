@@ -0,0 +1,30 @@
+package com.raverun.match.server.impl;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names threads {@code "<prefix>"} (or {@code "<prefix>-<n>"} when numbered) so they can be told apart in
+ * thread dumps and log lines.
+ */
+public class NamedThreadFactory implements ThreadFactory
+{
+    public NamedThreadFactory( String prefix, boolean numbered, boolean daemon )
+    {
+        this.prefix = prefix;
+        this.numbered = numbered;
+        this.daemon = daemon;
+    }
+
+    public Thread newThread( Runnable r )
+    {
+        Thread thread = new Thread( r, numbered ? prefix + "-" + counter.incrementAndGet() : prefix );
+        thread.setDaemon( daemon );
+        return thread;
+    }
+
+    private final String prefix;
+    private final boolean numbered;
+    private final boolean daemon;
+    private final AtomicInteger counter = new AtomicInteger();
+}
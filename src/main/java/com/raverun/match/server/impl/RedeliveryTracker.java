@@ -0,0 +1,85 @@
+package com.raverun.match.server.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.raverun.shared.Configuration;
+import com.rabbitmq.client.AMQP;
+
+/**
+ * Counts how often a message has failed to be matched, so that a poison
+ * message is eventually dropped instead of being requeued forever.
+ * <p>
+ * AMQP 0-8 only tells us <em>whether</em> a message was redelivered, not how often,
+ * hence the count travels with the message: a failed message is requeued as a copy
+ * carrying the {@value #HEADER_ATTEMPTS} header. So the count holds on whichever server
+ * the copy is delivered to next, and across restarts, and messages with equal bodies
+ * keep counts of their own.
+ *
+ * @author Gavin Bong
+ */
+@Singleton
+@ThreadSafe
+public class RedeliveryTracker
+{
+    @Inject
+    public RedeliveryTracker( Configuration config )
+    {
+        maxDeliveries = Math.max( 1, config.i( KEY_MAX_DELIVERIES, 3 ) );
+    }
+
+    /**
+     * @param props of a message that just failed; may be null
+     * @return true if it may be requeued, with {@link #requeued(AMQP.BasicProperties)}
+     */
+    public boolean mayRequeue( AMQP.BasicProperties props )
+    {
+        return failuresOf( props ) + 1 < maxDeliveries;
+    }
+
+    /**
+     * @return a copy of {@code props} for the requeued message, counting one more failure
+     */
+    public AMQP.BasicProperties requeued( AMQP.BasicProperties props )
+    {
+        if( props == null )
+            props = new AMQP.BasicProperties();
+
+        final Map<String, Object> headers = ( props.getHeaders() == null )
+            ? new HashMap<String, Object>() : new HashMap<String, Object>( props.getHeaders() );
+        headers.put( HEADER_ATTEMPTS, Integer.valueOf( failuresOf( props ) + 1 ) );
+
+        return new AMQP.BasicProperties( props.getContentType(), props.getContentEncoding(), headers,
+            props.getDeliveryMode(), props.getPriority(), props.getCorrelationId(), props.getReplyTo(),
+            props.getExpiration(), props.getMessageId(), props.getTimestamp(), props.getType(),
+            props.getUserId(), props.getAppId(), props.getClusterId() );
+    }
+
+    public int maxDeliveries()
+    {
+        return maxDeliveries;
+    }
+
+    /**
+     * @return how often the message failed before this delivery
+     */
+    static int failuresOf( AMQP.BasicProperties props )
+    {
+        if( props == null || props.getHeaders() == null )
+            return 0;
+
+        final Object failures = props.getHeaders().get( HEADER_ATTEMPTS );
+        return ( failures instanceof Number ) ? Math.max( 0, ( (Number)failures ).intValue() ) : 0;
+    }
+
+    private final int maxDeliveries;
+
+    /** failed attempts of a requeued message */
+    public static final String HEADER_ATTEMPTS = "x-match-failures";
+
+    private static final String KEY_MAX_DELIVERIES = "daemon.redelivery.max";
+}
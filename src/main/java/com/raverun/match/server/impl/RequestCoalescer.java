@@ -0,0 +1,122 @@
+package com.raverun.match.server.impl;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.raverun.shared.Configuration;
+
+/**
+ * Folds duplicate match requests into the one already being processed.
+ * <p>
+ * A key is <em>in flight</em> from the moment it is {@link #admit(Object) admitted}
+ * until its match completes. Requests for a key that is in flight, or that completed
+ * less than {@code daemon.coalesce.window.millisecond} ago, are not admitted. 
+ * A failed match releases its key immediately so that the redelivery runs again.
+ * <p>
+ * Shared by every poller. Disabled when the window is negative, as it is by default.
+ *
+ * @author Gavin Bong
+ */
+@Singleton
+@ThreadSafe
+public class RequestCoalescer
+{
+    @Inject
+    public RequestCoalescer( Configuration config )
+    {
+        final int window = config.i( KEY_WINDOW_MS, -1 );
+        enabled = window >= 0;
+        windowNanos = window * 1000000L;
+    }
+
+    public boolean enabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * @return true if the caller should process the request for {@code key}; false if it is a duplicate
+     */
+    public synchronized boolean admit( Object key )
+    {
+        if( !enabled )
+            return true;
+
+        final long now = System.nanoTime();
+        expire( now );
+
+        if( inFlight.contains( key ) || recentlyCompleted.containsKey( key ) )
+            return false;
+
+        inFlight.add( key );
+        return true;
+    }
+
+    public synchronized void completed( Object key )
+    {
+        if( !inFlight.remove( key ) || windowNanos == 0 )
+            return;
+
+        recentlyCompleted.put( key, System.nanoTime() );
+    }
+
+    public synchronized void failed( Object key )
+    {
+        inFlight.remove( key );
+    }
+
+    /**
+     * Wraps {@code next} (which may be null) so that {@code key} is released when the match is done
+     */
+    public MatchDispatcher.Completion releasing( final Object key, final MatchDispatcher.Completion next )
+    {
+        return new MatchDispatcher.Completion()
+        {
+            public void succeeded()
+            {
+                completed( key );
+                if( next != null )
+                    next.succeeded();
+            }
+
+            public void failed( Throwable cause )
+            {
+                RequestCoalescer.this.failed( key );
+                if( next != null )
+                    next.failed( cause );
+            }
+        };
+    }
+
+    /**
+     * {@code recentlyCompleted} is in completion order, so expired keys are at its head
+     */
+    @GuardedBy("this")
+    private void expire( long now )
+    {
+        Iterator<Map.Entry<Object, Long>> it = recentlyCompleted.entrySet().iterator();
+        while( it.hasNext() )
+        {
+            if( now - it.next().getValue() < windowNanos )
+                break;
+
+            it.remove();
+        }
+    }
+
+    private final boolean enabled;
+    private final long windowNanos;
+
+    @GuardedBy("this") private final Set<Object> inFlight = new HashSet<Object>();
+    @GuardedBy("this") private final LinkedHashMap<Object, Long> recentlyCompleted = new LinkedHashMap<Object, Long>();
+
+    private static final String KEY_WINDOW_MS = "daemon.coalesce.window.millisecond";
+}
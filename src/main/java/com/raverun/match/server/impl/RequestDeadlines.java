@@ -0,0 +1,67 @@
+package com.raverun.match.server.impl;
+
+import net.jcip.annotations.Immutable;
+
+import com.raverun.match.server.api.Deadline;
+import com.rabbitmq.client.AMQP;
+
+/**
+ * Derives a request's {@code Deadline} from its message properties: the publisher's
+ * {@code expiration} (milliseconds, counted from the {@code timestamp} if there is one,
+ * otherwise from receipt) and, when {@code daemon.request.max.age.millisecond} is positive,
+ * the {@code timestamp} plus that age. The earliest applies.
+ * <p>
+ * AMQP timestamps have a resolution of one second and come from the publisher's clock.
+ *
+ * @author Gavin Bong
+ */
+@Immutable
+public class RequestDeadlines
+{
+    /**
+     * @param maxAgeMillis non-positive to ignore the age of requests
+     */
+    public RequestDeadlines( long maxAgeMillis )
+    {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @param props may be null
+     * @return null if the request has no deadline
+     */
+    public Deadline of( AMQP.BasicProperties props )
+    {
+        if( props == null )
+            return null;
+
+        final long sentAt = ( props.getTimestamp() == null ) ? -1 : props.getTimestamp().getTime();
+        Deadline deadline = null;
+
+        final long expiration = parse( props.getExpiration() );
+        if( expiration >= 0 )
+            deadline = Deadline.at( ( sentAt < 0 ? System.currentTimeMillis() : sentAt ) + expiration );
+
+        if( maxAgeMillis > 0 && sentAt >= 0 )
+            deadline = Deadline.at( sentAt + maxAgeMillis ).earlier( deadline );
+
+        return deadline;
+    }
+
+    private static long parse( String expiration )
+    {
+        if( expiration == null || expiration.trim().length() == 0 )
+            return -1;
+
+        try
+        {
+            return Math.max( 0, Long.parseLong( expiration.trim() ) );
+        }
+        catch( NumberFormatException e )
+        {
+            return -1;
+        }
+    }
+
+    private final long maxAgeMillis;
+}
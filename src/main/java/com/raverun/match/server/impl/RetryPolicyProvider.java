@@ -0,0 +1,45 @@
+package com.raverun.match.server.impl;
+
+import org.apache.log4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.raverun.match.server.api.RetryPolicy;
+import com.raverun.shared.Configuration;
+
+/**
+ * Picks the {@code RetryPolicy} named by {@code daemon.retry.policy}:
+ * {@code jittered} (the default, see {@link JitteredRetryPolicy}) or
+ * {@code exponential} (see {@link DefaultRetryPolicy}).
+ *
+ * @author Gavin Bong
+ */
+public class RetryPolicyProvider implements Provider<RetryPolicy>
+{
+    @Inject
+    public RetryPolicyProvider( Configuration config, Provider<JitteredRetryPolicy> jittered,
+        Provider<DefaultRetryPolicy> exponential )
+    {
+        this.config = config;
+        this.jittered = jittered;
+        this.exponential = exponential;
+    }
+
+    public RetryPolicy get()
+    {
+        final String name = config.s( KEY_POLICY );
+        RetryPolicy policy = ( name != null && name.trim().equalsIgnoreCase( "exponential" ) )
+            ? exponential.get() : jittered.get();
+
+        logger.info( "Retry policy: " + policy.getClass().getSimpleName() );
+        return policy;
+    }
+
+    private final Configuration config;
+    private final Provider<JitteredRetryPolicy> jittered;
+    private final Provider<DefaultRetryPolicy> exponential;
+
+    private final static String KEY_POLICY = "daemon.retry.policy";
+
+    private static final Logger logger = Logger.getLogger( RetryPolicyProvider.class );
+}
@@ -0,0 +1,57 @@
+package com.raverun.match.server.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+
+import com.raverun.match.api.MatchParam;
+import com.raverun.match.server.api.MatchParamCodec;
+
+/**
+ * The format read by {@code MatchParam.deserialize}, which is what producers have 
+ * always sent. Used for messages without a {@code content-type}.
+ */
+public class SerializedMatchParamCodec implements MatchParamCodec
+{
+    public String contentType()
+    {
+        return CONTENT_TYPE;
+    }
+
+    /**
+     * {@code MatchParam.deserialize} only accepts a whole array, so a sub-range is read
+     * with an {@code ObjectInputStream} straight from the buffer instead
+     */
+    public MatchParam decode( byte[] buffer, int offset, int length )
+    {
+        if( offset == 0 && length == buffer.length )
+            return MatchParam.deserialize( buffer );
+
+        try
+        {
+            ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( buffer, offset, length ) );
+            try
+            {
+                return (MatchParam)in.readObject();
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch( IOException e )
+        {
+            throw new IllegalArgumentException( "not a serialized MatchParam: " + e );
+        }
+        catch( ClassNotFoundException e )
+        {
+            throw new IllegalArgumentException( "not a serialized MatchParam: " + e );
+        }
+        catch( ClassCastException e )
+        {
+            throw new IllegalArgumentException( "not a serialized MatchParam: " + e );
+        }
+    }
+
+    public final static String CONTENT_TYPE = "application/x-java-serialized-object";
+}
@@ -0,0 +1,321 @@
+package com.raverun.match.server.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.raverun.match.server.api.CandidateIndex;
+import com.raverun.match.server.metrics.Gauge;
+import com.raverun.match.server.metrics.MatchMetrics;
+import com.raverun.shared.Configuration;
+
+/**
+ * A {@code CandidateIndex} loaded from the database by {@code candidates.load.sql} and kept
+ * fresh by polling {@code candidates.delta.sql}.
+ * <p>
+ * The load query returns {@code (key, candidate, updated_at)} rows. The delta query takes the
+ * latest {@code updated_at} seen so far as its one parameter and returns
+ * {@code (key, candidate, deleted, updated_at)} rows changed since, {@code ORDER BY updated_at}:
+ * they are applied in the order returned, so a pair deleted and added again must come in the
+ * order it changed. It should compare with {@code >=} so that rows committed late with the same
+ * timestamp are not missed (applying a row twice is harmless). Every
+ * {@code candidates.reload.millisecond} the index is loaded afresh, which also picks up rows
+ * deleted outright.
+ * <p>
+ * With a delta query, a load query without the {@code updated_at} column would leave nothing to
+ * poll from, so {@link #start()} refuses it; if the database was down then, every later load
+ * fails instead.
+ * <p>
+ * A refresh changes a copy of the index and then publishes it, so lookups never wait; the copy
+ * shares the candidate sets of the keys it does not change.
+ * <p>
+ * Disabled when {@code candidates.load.sql} is empty; {@link #ready()} is false until the first
+ * load succeeds.
+ *
+ * @author Gavin Bong
+ */
+@Singleton
+@ThreadSafe
+public class SqlCandidateIndex implements CandidateIndex
+{
+    @Inject
+    public SqlCandidateIndex( Provider<DataSource> dsProvider, Configuration config, MatchMetrics metrics )
+    {
+        this.dsProvider = dsProvider;
+        this.loadSql    = trimmed( config.s( KEY_LOAD_SQL ) );
+        this.deltaSql   = trimmed( config.s( KEY_DELTA_SQL ) );
+        this.interval   = Math.max( 100, config.i( KEY_REFRESH_MS, 30000 ) );
+        this.reload     = config.i( KEY_RELOAD_MS, 3600000 );
+        this.fetchSize  = config.i( KEY_FETCH_SIZE, 1000 );
+        this.failures   = metrics.counter( "match_candidates_refresh_failures_total", "Candidate index loads and refreshes that failed" );
+
+        metrics.gauge( "match_candidates_keys", "Keys with candidates in the candidate index", new Gauge()
+        {
+            public long value()
+            {
+                return table.keys();
+            }
+        });
+        metrics.gauge( "match_candidates_total", "Candidates held in the candidate index", new Gauge()
+        {
+            public long value()
+            {
+                return table.candidates();
+            }
+        });
+        metrics.gauge( "match_candidates_staleness_seconds", "Time since the candidate index was last refreshed", new Gauge()
+        {
+            public long value()
+            {
+                return ( refreshedAt == 0 ) ? 0 : TimeUnit.NANOSECONDS.toSeconds( System.nanoTime() - refreshedAt );
+            }
+        });
+    }
+
+    /**
+     * Loads the index, then refreshes it in the background. A failed load is retried on every refresh.
+     *
+     * @throws IllegalArgumentException if {@code candidates.delta.sql} is set but the load query
+     *   returns no {@code updated_at} column
+     */
+    public synchronized void start()
+    {
+        if( loadSql == null )
+        {
+            logger.info( "Candidate index: disabled" );
+            return;
+        }
+        if( refresher != null )
+            return;
+
+        logger.info( "Candidate index: refreshed every " + interval + " ms" + ( deltaSql == null ? " (by reloading)" : "" ) );
+
+        refresh();
+        refresher = Executors.newSingleThreadScheduledExecutor( new NamedThreadFactory( "candidate index refresh", false, true ) );
+        refresher.scheduleWithFixedDelay( new Runnable()
+        {
+            public void run()
+            {
+                refresh();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS );
+    }
+
+    public synchronized void stop()
+    {
+        if( refresher != null )
+            refresher.shutdownNow();
+    }
+
+    public boolean ready()
+    {
+        return ready;
+    }
+
+    public long[] candidates( long key )
+    {
+        return table.get( key );
+    }
+
+    public boolean contains( long key, long candidate )
+    {
+        return Arrays.binarySearch( table.get( key ), candidate ) >= 0;
+    }
+
+    private void refresh()
+    {
+        final long now = System.nanoTime();
+        try
+        {
+            if( !ready || deltaSql == null || ( reload > 0 && now - loadedAt >= TimeUnit.MILLISECONDS.toNanos( reload ) ) )
+                load();
+            else
+                applyDeltas();
+            refreshedAt = now;
+        }
+        catch( SQLException e )
+        {
+            failures.incrementAndGet();
+            logger.error( "could not refresh the candidate index", e );
+        }
+        catch( IllegalArgumentException e )
+        {
+            failures.incrementAndGet();
+            if( refresher == null )
+                throw e; // misconfigured: refuse to start
+            logger.error( "could not refresh the candidate index", e );
+        }
+        catch( RuntimeException e )
+        {
+            failures.incrementAndGet();
+            logger.error( "could not refresh the candidate index", e ); // e.g. no connection
+        }
+    }
+
+    private void load() throws SQLException
+    {
+        final long since = System.nanoTime();
+        final CandidateTable.Builder builder = new CandidateTable.Builder();
+        Timestamp latest = null;
+
+        Connection conn = dsProvider.get().getConnection();
+        try
+        {
+            PreparedStatement statement = prepare( conn, loadSql );
+            ResultSet rs = statement.executeQuery();
+            final boolean stamped = rs.getMetaData().getColumnCount() >= 3;
+            if( deltaSql != null && !stamped )
+                throw new IllegalArgumentException( KEY_DELTA_SQL + " is set but " + KEY_LOAD_SQL +
+                    " returns no updated_at column to poll it from: " + loadSql );
+            while( rs.next() )
+            {
+                builder.add( rs.getLong( 1 ), rs.getLong( 2 ) );
+                if( stamped )
+                    latest = later( latest, rs.getTimestamp( 3 ) );
+            }
+            rs.close();
+            statement.close();
+        }
+        finally
+        {
+            closeQuietly( conn );
+        }
+
+        final CandidateTable loaded = builder.build();
+        table = loaded;
+        watermark = latest;
+        loadedAt = since;
+        ready = true;
+
+        logger.info( "Candidate index loaded: " + loaded.keys() + " keys, " + loaded.candidates() + " candidates from " +
+            builder.rows() + " rows in " + TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - since ) + " ms" );
+    }
+
+    private void applyDeltas() throws SQLException
+    {
+        CandidateTable changed = null;
+        Timestamp latest = watermark;
+        Timestamp previous = null;
+        boolean unordered = false;
+        int rows = 0;
+
+        Connection conn = dsProvider.get().getConnection();
+        try
+        {
+            PreparedStatement statement = prepare( conn, deltaSql );
+            statement.setTimestamp( 1, ( watermark == null ) ? new Timestamp( 0 ) : watermark );
+            ResultSet rs = statement.executeQuery();
+            while( rs.next() )
+            {
+                if( changed == null )
+                    changed = table.copy();
+
+                final long key = rs.getLong( 1 );
+                final long candidate = rs.getLong( 2 );
+                if( rs.getBoolean( 3 ) )
+                    changed.remove( key, candidate );
+                else
+                    changed.add( key, candidate );
+                final Timestamp updated = rs.getTimestamp( 4 );
+                unordered |= ( previous != null && updated != null && updated.before( previous ) );
+                previous = ( updated == null ) ? previous : updated;
+                latest = later( latest, updated );
+                rows++;
+            }
+            rs.close();
+            statement.close();
+        }
+        finally
+        {
+            closeQuietly( conn );
+        }
+
+        if( unordered )
+            logger.warn( KEY_DELTA_SQL + " returned rows out of updated_at order; add ORDER BY updated_at" );
+        if( changed == null )
+            return;
+
+        table = changed;
+        watermark = latest;
+        if( logger.isDebugEnabled() )
+            logger.debug( "Candidate index: applied " + rows + " changes up to " + latest );
+    }
+
+    private PreparedStatement prepare( Connection conn, String sql ) throws SQLException
+    {
+        PreparedStatement statement = conn.prepareStatement( sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY );
+        if( fetchSize != 0 )
+            statement.setFetchSize( fetchSize );
+        return statement;
+    }
+
+    private static Timestamp later( Timestamp a, Timestamp b )
+    {
+        if( a == null )
+            return b;
+        if( b == null )
+            return a;
+
+        return b.after( a ) ? b : a;
+    }
+
+    private static void closeQuietly( Connection conn )
+    {
+        try
+        {
+            conn.close(); // also closes its statements if a query threw
+        }
+        catch( SQLException ignored ) {}
+    }
+
+    private static String trimmed( String value )
+    {
+        if( value == null || value.trim().length() == 0 )
+            return null;
+
+        return value.trim();
+    }
+
+    private final Provider<DataSource> dsProvider;
+    private final String loadSql;
+    private final String deltaSql;
+    private final int interval;
+    private final int reload;
+    private final int fetchSize;
+    private final AtomicLong failures;
+
+    /** replaced, never changed, once published */
+    private volatile CandidateTable table = new CandidateTable( 0 );
+    private volatile boolean ready;
+    private volatile long refreshedAt;
+
+    // used by the refreshing thread only
+    private Timestamp watermark;
+    private long loadedAt;
+
+    private ScheduledExecutorService refresher;
+
+    private final static String KEY_LOAD_SQL = "candidates.load.sql";
+    private final static String KEY_DELTA_SQL = "candidates.delta.sql";
+    private final static String KEY_REFRESH_MS = "candidates.refresh.millisecond";
+    private final static String KEY_RELOAD_MS = "candidates.reload.millisecond";
+    private final static String KEY_FETCH_SIZE = "candidates.fetch.size";
+
+    private static final Logger logger = Logger.getLogger( SqlCandidateIndex.class );
+}
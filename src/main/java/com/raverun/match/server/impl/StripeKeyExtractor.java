@@ -0,0 +1,113 @@
+package com.raverun.match.server.impl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.raverun.match.api.MatchParam;
+import com.raverun.shared.Configuration;
+
+/**
+ * Reads the stripe key of a request, i.e. the {@code MatchParam} property named by
+ * {@code daemon.stripe.key} (e.g. {@code userId} reads {@code getUserId()}), which decides the
+ * lane a match task runs on with {@code daemon.executor.mode=striped}.
+ * <p>
+ * Without a property, or for requests that do not have it, there is no key.
+ *
+ * @author Gavin Bong
+ */
+@Singleton
+@ThreadSafe
+public class StripeKeyExtractor
+{
+    @Inject
+    public StripeKeyExtractor( Configuration config )
+    {
+        String property = config.s( KEY_PROPERTY );
+        this.property = ( property == null || property.trim().length() == 0 ) ? null : property.trim();
+
+        if( this.property != null )
+            logger.info( "Stripe key: " + this.property );
+    }
+
+    /**
+     * @return the value of the property, null if there is none
+     */
+    public Object keyOf( MatchParam param )
+    {
+        if( property == null || param == null )
+            return null;
+
+        Method getter = getterOf( param.getClass() );
+        if( getter == null )
+            return null;
+
+        try
+        {
+            return getter.invoke( param );
+        }
+        catch( IllegalAccessException e )
+        {
+            logger.warn( "cannot read " + property + " of " + param.getClass().getName() + ": " + e );
+        }
+        catch( InvocationTargetException e )
+        {
+            logger.warn( "cannot read " + property + " of " + param.getClass().getName() + ": " + e.getCause() );
+        }
+        return null;
+    }
+
+    private Method getterOf( Class<?> type )
+    {
+        Method getter = getters.get( type );
+        if( getter != null )
+            return ( getter == NONE ) ? null : getter;
+
+        final String suffix = Character.toUpperCase( property.charAt( 0 ) ) + property.substring( 1 );
+        for( String name : new String[] { "get" + suffix, "is" + suffix, property } )
+        {
+            try
+            {
+                getter = type.getMethod( name );
+                if( getter.getReturnType() != void.class )
+                    break;
+            }
+            catch( NoSuchMethodException e ) {}
+            getter = null;
+        }
+
+        if( getter == null )
+            logger.warn( type.getName() + " has no property " + property + "; its requests run on any lane" );
+
+        getters.putIfAbsent( type, ( getter == null ) ? NONE : getter );
+        return getter;
+    }
+
+    private final String property;
+    private final ConcurrentMap<Class<?>, Method> getters = new ConcurrentHashMap<Class<?>, Method>();
+
+    private static final Method NONE;
+
+    static
+    {
+        try
+        {
+            NONE = Object.class.getMethod( "hashCode" ); // marks a type without the property
+        }
+        catch( NoSuchMethodException e )
+        {
+            throw new ExceptionInInitializerError( e );
+        }
+    }
+
+    private final static String KEY_PROPERTY = "daemon.stripe.key";
+
+    private static final Logger logger = Logger.getLogger( StripeKeyExtractor.class );
+}
@@ -0,0 +1,190 @@
+package com.raverun.match.server.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Runs tasks on a fixed number of lanes, each one thread with a queue of its own. A task that
+ * is {@link Keyed} always goes to the lane its key hashes to, so tasks with equal keys run one
+ * after the other in the order they were submitted, while tasks with other keys run on the
+ * other lanes. Tasks without a key are spread over the lanes in turn.
+ * <p>
+ * When the lane of a task is full it is refused with a {@code RejectedExecutionException},
+ * or, if {@code block}, the caller waits for room (and the task is still refused if the lane
+ * is shut down meanwhile). Running the task on the caller's thread is
+ * not offered, because it would overtake the tasks of its key that are still queued.
+ * <p>
+ * The number of lanes cannot change, since that would move keys to other lanes while their
+ * earlier tasks are still queued on the old ones.
+ *
+ * @author Gavin Bong
+ */
+@ThreadSafe
+public class StripedExecutor extends AbstractExecutorService
+{
+    /**
+     * A task that must not run concurrently with, or out of order with, other tasks of the same key
+     */
+    public static interface Keyed
+    {
+        /**
+         * @return a key with value-based {@code equals} and {@code hashCode}, or null if the task may run on any lane
+         */
+        Object stripeKey();
+    }
+
+    /**
+     * @param queueSize tasks that may wait on each lane
+     */
+    public StripedExecutor( int lanes, int queueSize, boolean block, ThreadFactory factory )
+    {
+        if( lanes < 1 || queueSize < 1 )
+            throw new IllegalArgumentException( "need at least one lane and room on each: " + lanes + ", " + queueSize );
+
+        this.lanes = new ThreadPoolExecutor[ lanes ];
+        this.block = block;
+        for( int i = 0; i < lanes; i++ )
+        {
+            this.lanes[ i ] = new ThreadPoolExecutor( 1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>( queueSize ), factory, new ThreadPoolExecutor.AbortPolicy() );
+            this.lanes[ i ].prestartAllCoreThreads();
+        }
+    }
+
+    public void execute( Runnable command )
+    {
+        if( command == null )
+            throw new NullPointerException();
+
+        final Object key = ( command instanceof Keyed ) ? ((Keyed)command).stripeKey() : null;
+        final ThreadPoolExecutor lane = lanes[ ( key == null ) ? nextLane() : laneOf( key ) ];
+        try
+        {
+            lane.execute( command );
+        }
+        catch( RejectedExecutionException e )
+        {
+            if( !block || lane.isShutdown() )
+                throw e;
+
+            try
+            {
+                // the lane's one thread never times out, so whatever is queued will be taken ...
+                lane.getQueue().put( command );
+            }
+            catch( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException( "interrupted while waiting for room on a lane" );
+            }
+
+            // ... unless the lane was shut down meanwhile: its thread may be gone, so take the task back
+            if( lane.isShutdown() && lane.getQueue().remove( command ) )
+                throw new RejectedExecutionException( "lane shut down while waiting for room" );
+        }
+    }
+
+    public int lanes()
+    {
+        return lanes.length;
+    }
+
+    /**
+     * @return tasks waiting on every lane
+     */
+    public int waiting()
+    {
+        int waiting = 0;
+        for( ThreadPoolExecutor lane : lanes )
+            waiting += lane.getQueue().size();
+        return waiting;
+    }
+
+    /**
+     * @return tasks waiting on the busiest lane
+     */
+    public int mostWaiting()
+    {
+        int most = 0;
+        for( ThreadPoolExecutor lane : lanes )
+            most = Math.max( most, lane.getQueue().size() );
+        return most;
+    }
+
+    /**
+     * @return lanes running a task
+     */
+    public int running()
+    {
+        int running = 0;
+        for( ThreadPoolExecutor lane : lanes )
+            running += lane.getActiveCount();
+        return running;
+    }
+
+    public void shutdown()
+    {
+        for( ThreadPoolExecutor lane : lanes )
+            lane.shutdown();
+    }
+
+    public List<Runnable> shutdownNow()
+    {
+        List<Runnable> never = new ArrayList<Runnable>();
+        for( ThreadPoolExecutor lane : lanes )
+            never.addAll( lane.shutdownNow() );
+        return never;
+    }
+
+    public boolean isShutdown()
+    {
+        return lanes[ 0 ].isShutdown();
+    }
+
+    public boolean isTerminated()
+    {
+        for( ThreadPoolExecutor lane : lanes )
+        {
+            if( !lane.isTerminated() )
+                return false;
+        }
+        return true;
+    }
+
+    public boolean awaitTermination( long timeout, TimeUnit unit ) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos( timeout );
+        for( ThreadPoolExecutor lane : lanes )
+        {
+            if( !lane.awaitTermination( deadline - System.nanoTime(), TimeUnit.NANOSECONDS ) )
+                return false;
+        }
+        return true;
+    }
+
+    private int laneOf( Object key )
+    {
+        int h = key.hashCode();
+        h ^= ( h >>> 16 ); // keys that differ only in their high bits still spread
+        return ( h & 0x7fffffff ) % lanes.length;
+    }
+
+    private int nextLane()
+    {
+        return ( unkeyed.getAndIncrement() & 0x7fffffff ) % lanes.length;
+    }
+
+    private final ThreadPoolExecutor[] lanes;
+    private final boolean block;
+    private final AtomicInteger unkeyed = new AtomicInteger();
+}
@@ -0,0 +1,216 @@
+package com.raverun.match.server.impl;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Starts a new thread for every task, and lets at most {@code maxConcurrent} of them run
+ * the task at once; the rest wait on a semaphore.
+ * <p>
+ * Meant for virtual threads (see {@link #virtualThreadFactory(String)}), where a thread
+ * that blocks on JDBC or on the semaphore costs next to nothing, so concurrency is bounded
+ * by what the database can take rather than by a count of platform threads.
+ *
+ * @author Gavin Bong
+ */
+@ThreadSafe
+public class ThreadPerTaskExecutor extends AbstractExecutorService
+{
+    public ThreadPerTaskExecutor( ThreadFactory factory, int maxConcurrent )
+    {
+        if( maxConcurrent < 1 )
+            throw new IllegalArgumentException( "maxConcurrent must be positive" );
+
+        this.factory = factory;
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Permits( maxConcurrent );
+    }
+
+    /**
+     * @return a factory of virtual threads named {@code "<prefix>-<n>"}, or null if this JVM has none
+     */
+    public static ThreadFactory virtualThreadFactory( String prefix )
+    {
+        try
+        {
+            // Thread.ofVirtual().name( prefix + "-", 1 ).factory(), without requiring a JDK 21 build
+            Class<?> builderType = Class.forName( "java.lang.Thread$Builder" );
+            Object builder = Thread.class.getMethod( "ofVirtual" ).invoke( null );
+            builder = builderType.getMethod( "name", String.class, long.class ).invoke( builder, prefix + "-", 1L );
+            Method factory = builderType.getMethod( "factory" );
+            return (ThreadFactory)factory.invoke( builder );
+        }
+        catch( Exception e )
+        {
+            return null; // before JDK 21, or a preview JDK without --enable-preview
+        }
+    }
+
+    public void execute( final Runnable command )
+    {
+        if( command == null )
+            throw new NullPointerException();
+
+        synchronized( this )
+        {
+            if( shutdown )
+                throw new RejectedExecutionException( "executor has been shut down" );
+
+            Thread thread = factory.newThread( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        permits.acquire();
+                    }
+                    catch( InterruptedException ie )
+                    {
+                        exited( Thread.currentThread() ); // shutdownNow() before it got to run
+                        return;
+                    }
+
+                    try
+                    {
+                        command.run();
+                    }
+                    finally
+                    {
+                        permits.release();
+                        exited( Thread.currentThread() );
+                    }
+                }
+            });
+            if( thread == null )
+                throw new RejectedExecutionException( "thread factory refused to create a thread" );
+
+            threads.add( thread );
+            thread.start();
+        }
+    }
+
+    /**
+     * Changes how many tasks may run at once. Lowering it lets running tasks finish;
+     * the new limit applies as they do.
+     */
+    public synchronized void setMaxConcurrent( int maxConcurrent )
+    {
+        if( maxConcurrent < 1 )
+            throw new IllegalArgumentException( "maxConcurrent must be positive" );
+
+        final int delta = maxConcurrent - this.maxConcurrent;
+        if( delta > 0 )
+            permits.release( delta );
+        else if( delta < 0 )
+            permits.reducePermits( -delta );
+
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    public int maxConcurrent()
+    {
+        return maxConcurrent;
+    }
+
+    /**
+     * @return tasks currently running
+     */
+    public int running()
+    {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /**
+     * @return tasks started but waiting for a permit to run
+     */
+    public int waiting()
+    {
+        return permits.getQueueLength();
+    }
+
+    public synchronized void shutdown()
+    {
+        shutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * Interrupts every task thread. Tasks that had not started running are not returned,
+     * since each already owns its thread.
+     */
+    public synchronized List<Runnable> shutdownNow()
+    {
+        shutdown();
+        for( Thread thread : threads )
+            thread.interrupt();
+
+        return new ArrayList<Runnable>( 0 );
+    }
+
+    public synchronized boolean isShutdown()
+    {
+        return shutdown;
+    }
+
+    public synchronized boolean isTerminated()
+    {
+        return shutdown && threads.isEmpty();
+    }
+
+    public synchronized boolean awaitTermination( long timeout, TimeUnit unit ) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos( timeout );
+        while( !isTerminated() )
+        {
+            final long remaining = deadline - System.nanoTime();
+            if( remaining <= 0 )
+                return false;
+
+            TimeUnit.NANOSECONDS.timedWait( this, remaining );
+        }
+        return true;
+    }
+
+    private synchronized void exited( Thread thread )
+    {
+        threads.remove( thread );
+        if( shutdown && threads.isEmpty() )
+            notifyAll();
+    }
+
+    /**
+     * A fair semaphore whose permits can be taken away without waiting for them
+     */
+    private static final class Permits extends Semaphore
+    {
+        Permits( int permits )
+        {
+            super( permits, true );
+        }
+
+        @Override
+        protected void reducePermits( int reduction )
+        {
+            super.reducePermits( reduction );
+        }
+    }
+
+    private final ThreadFactory factory;
+    private final Permits permits;
+
+    private volatile int maxConcurrent;
+
+    @GuardedBy("this") private final Set<Thread> threads = new HashSet<Thread>();
+    @GuardedBy("this") private boolean shutdown;
+}
@@ -0,0 +1,71 @@
+package com.raverun.match.server.impl;
+
+import java.io.IOException;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.raverun.match.server.api.Acknowledger;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Acknowledges every delivery in its own AMQP transaction ({@code basic.ack} followed by
+ * {@code tx.commit}). This is how the match-server has always acked, and it costs a 
+ * synchronous round-trip to the broker per message.
+ *
+ * @author Gavin Bong
+ */
+@ThreadSafe
+public class TxAcknowledger implements Acknowledger
+{
+    /**
+     * @throws IOException if the channel cannot be put into transactional mode
+     */
+    public TxAcknowledger( Channel channel ) throws IOException
+    {
+        this.channel = channel;
+        synchronized( channel )
+        {
+            channel.txSelect();
+        }
+    }
+
+    public void register( long deliveryTag )
+    {
+    }
+
+    public void ack( long deliveryTag ) throws IOException
+    {
+        synchronized( channel )
+        {
+            channel.basicAck( deliveryTag, false );
+            channel.txCommit();
+        }
+    }
+
+    /**
+     * The republish and the ack are committed together
+     */
+    public void requeue( String queue, Envelope envelope, AMQP.BasicProperties props, byte[] body ) throws IOException
+    {
+        synchronized( channel )
+        {
+            channel.basicPublish( DEFAULT_EXCHANGE, queue, props, body );
+            channel.basicAck( envelope.getDeliveryTag(), false );
+            channel.txCommit();
+        }
+    }
+
+    public void flushIfDue()
+    {
+    }
+
+    public void flush()
+    {
+    }
+
+    private final Channel channel;
+
+    private static final String DEFAULT_EXCHANGE = "";
+}
@@ -0,0 +1,359 @@
+package com.raverun.match.server.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.raverun.match.server.api.RowWriter;
+import com.raverun.match.server.metrics.Gauge;
+import com.raverun.match.server.metrics.LatencyHistogram;
+import com.raverun.match.server.metrics.MatchMetrics;
+import com.raverun.shared.Configuration;
+
+/**
+ * A {@code RowWriter} with one background thread that flushes rows once
+ * {@code db.writebehind.batch.max} are waiting, or once the oldest has waited
+ * {@code db.writebehind.delay.millisecond}.
+ * <p>
+ * A flush borrows one connection and, in a single transaction, executes one JDBC batch per
+ * statement, in the order their first rows were queued. If that fails it is rolled back and
+ * the rows are written one at a time, so that a bad row only loses itself. A row that cannot
+ * be written is only logged and counted: its message was acked long before (see {@code RowWriter}).
+ * <p>
+ * Rows wait in a buffer of {@code db.writebehind.buffer.size}. When it is full the caller
+ * waits for room ({@code db.writebehind.overflow=block}) or the row is dropped
+ * ({@code db.writebehind.overflow=drop}). After {@link #close(long, TimeUnit)} rows are
+ * written synchronously.
+ *
+ * @author Gavin Bong
+ */
+@Singleton
+@ThreadSafe
+public class WriteBehindRowWriter implements RowWriter, Runnable
+{
+    @Inject
+    public WriteBehindRowWriter( Provider<DataSource> dsProvider, Configuration config, MatchMetrics metrics )
+    {
+        this.dsProvider = dsProvider;
+        this.buffer     = new ArrayBlockingQueue<Row>( Math.max( 1, config.i( KEY_BUFFER_SIZE, 4096 ) ) );
+        this.batchMax   = Math.max( 1, config.i( KEY_BATCH_MAX, 500 ) );
+        this.delay      = TimeUnit.MILLISECONDS.toNanos( Math.max( 0, config.i( KEY_DELAY_MS, 200 ) ) );
+        this.block      = !"drop".equalsIgnoreCase( String.valueOf( config.s( KEY_OVERFLOW ) ).trim() );
+        this.written    = metrics.counter( "match_writebehind_rows_total", "Rows written by the write-behind writer" );
+        this.failed     = metrics.counter( "match_writebehind_failures_total", "Rows the write-behind writer could not write" );
+        this.dropped    = metrics.counter( "match_writebehind_dropped_total", "Rows dropped because the write-behind buffer was full" );
+        this.flushes    = metrics.histogram( "match_writebehind_flush_seconds", "Time a write-behind flush took", MatchMetrics.BUCKETS_MS );
+
+        metrics.gauge( "match_writebehind_buffered", "Rows waiting to be written behind", new Gauge()
+        {
+            public long value()
+            {
+                return buffer.size();
+            }
+        });
+
+        logger.info( "Write-behind buffer: " + buffer.remainingCapacity() + " | overflow: " + ( block ? "block" : "drop" ) +
+            " | batch: " + batchMax + " | delay (ms): " + TimeUnit.NANOSECONDS.toMillis( delay ) );
+
+        writer = new Thread( this, "write-behind writer" );
+        writer.setDaemon( true );
+        writer.start();
+    }
+
+    public void write( String sql, Object... values )
+    {
+        if( sql == null || sql.trim().length() == 0 )
+            throw new IllegalArgumentException( "no sql" );
+
+        Row row = new Row( sql, values == null ? new Object[ 0 ] : values.clone() );
+        if( closed )
+        {
+            flush( single( row ) );
+            return;
+        }
+
+        if( buffer.offer( row ) )
+        {
+            if( closed )
+                flushRemaining(); // raced with close()
+            return;
+        }
+
+        if( block )
+        {
+            try
+            {
+                buffer.put( row );
+                return;
+            }
+            catch( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if( dropped.incrementAndGet() % DROP_WARNING_INTERVAL == 1 )
+            logger.warn( "write-behind buffer full, " + dropped.get() + " rows dropped so far. Last: " + sql );
+    }
+
+    /**
+     * Stops the writer once it has flushed every buffered row, waiting at most {@code timeout}
+     */
+    public void close( long timeout, TimeUnit unit ) throws InterruptedException
+    {
+        closed = true;
+        writer.interrupt();
+        writer.join( unit.toMillis( timeout ) );
+
+        // the writer timed out, or rows slipped in after its last drain
+        flushRemaining();
+    }
+
+    public void run()
+    {
+        List<Row> batch = new ArrayList<Row>( batchMax );
+        while( !closed )
+        {
+            try
+            {
+                batch.add( buffer.take() );
+                final long flushAt = batch.get( 0 ).queuedAt + delay;
+
+                buffer.drainTo( batch, batchMax - batch.size() );
+                while( batch.size() < batchMax )
+                {
+                    Row next = buffer.poll( flushAt - System.nanoTime(), TimeUnit.NANOSECONDS );
+                    if( next == null )
+                        break;
+                    batch.add( next );
+                    buffer.drainTo( batch, batchMax - batch.size() );
+                }
+            }
+            catch( InterruptedException ie )
+            {
+                // close() was called; flush what was gathered
+            }
+
+            if( !batch.isEmpty() )
+                flush( batch );
+            batch.clear();
+        }
+
+        while( buffer.drainTo( batch, batchMax ) > 0 )
+        {
+            flush( batch );
+            batch.clear();
+        }
+    }
+
+    private void flushRemaining()
+    {
+        List<Row> rest = new ArrayList<Row>();
+        while( buffer.drainTo( rest, batchMax ) > 0 )
+        {
+            flush( rest );
+            rest.clear();
+        }
+    }
+
+    private void flush( List<Row> rows )
+    {
+        final long since = System.nanoTime();
+        try
+        {
+            executeBatches( rows );
+            written.addAndGet( rows.size() );
+        }
+        catch( SQLException e )
+        {
+            logger.error( "batch of " + rows.size() + " rows failed, writing them one at a time", e );
+            for( Row row : rows )
+                executeOne( row );
+        }
+        catch( RuntimeException e )
+        {
+            logger.error( "could not flush " + rows.size() + " rows", e ); // e.g. no connection
+            failed.addAndGet( rows.size() );
+        }
+        flushes.record( System.nanoTime() - since );
+    }
+
+    private void executeBatches( List<Row> rows ) throws SQLException
+    {
+        Map<String, List<Row>> bySql = new LinkedHashMap<String, List<Row>>();
+        for( Row row : rows )
+        {
+            List<Row> same = bySql.get( row.sql );
+            if( same == null )
+            {
+                same = new ArrayList<Row>();
+                bySql.put( row.sql, same );
+            }
+            same.add( row );
+        }
+
+        Connection conn = dsProvider.get().getConnection();
+        boolean autoCommit = true;
+        try
+        {
+            autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit( false );
+
+            for( Map.Entry<String, List<Row>> entry : bySql.entrySet() )
+            {
+                PreparedStatement statement = conn.prepareStatement( entry.getKey() );
+                try
+                {
+                    for( Row row : entry.getValue() )
+                    {
+                        bind( statement, row );
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+                finally
+                {
+                    closeQuietly( statement );
+                }
+            }
+            conn.commit();
+        }
+        catch( SQLException e )
+        {
+            try
+            {
+                conn.rollback();
+            }
+            catch( SQLException ignored ) {}
+            throw e;
+        }
+        finally
+        {
+            try
+            {
+                conn.setAutoCommit( autoCommit );
+            }
+            catch( SQLException ignored ) {}
+            closeQuietly( conn );
+        }
+    }
+
+    private void executeOne( Row row )
+    {
+        Connection conn = null;
+        PreparedStatement statement = null;
+        try
+        {
+            conn = dsProvider.get().getConnection();
+            statement = conn.prepareStatement( row.sql );
+            bind( statement, row );
+            statement.executeUpdate();
+            written.incrementAndGet();
+        }
+        catch( SQLException e )
+        {
+            failed.incrementAndGet();
+            logger.error( "could not write row: " + row.sql, e );
+        }
+        catch( RuntimeException e )
+        {
+            failed.incrementAndGet();
+            logger.error( "could not write row: " + row.sql, e );
+        }
+        finally
+        {
+            closeQuietly( statement );
+            closeQuietly( conn );
+        }
+    }
+
+    private static void bind( PreparedStatement statement, Row row ) throws SQLException
+    {
+        for( int i = 0; i < row.values.length; i++ )
+            statement.setObject( i + 1, row.values[ i ] );
+    }
+
+    private static void closeQuietly( PreparedStatement statement )
+    {
+        if( statement == null )
+            return;
+
+        try
+        {
+            statement.close();
+        }
+        catch( SQLException ignored ) {}
+    }
+
+    private static void closeQuietly( Connection conn )
+    {
+        if( conn == null )
+            return;
+
+        try
+        {
+            conn.close();
+        }
+        catch( SQLException ignored ) {}
+    }
+
+    private static List<Row> single( Row row )
+    {
+        List<Row> rows = new ArrayList<Row>( 1 );
+        rows.add( row );
+        return rows;
+    }
+
+    private static final class Row
+    {
+        Row( String sql, Object[] values )
+        {
+            this.sql = sql;
+            this.values = values;
+            this.queuedAt = System.nanoTime();
+        }
+
+        final String sql;
+        final Object[] values;
+        final long queuedAt;
+    }
+
+    private final Provider<DataSource> dsProvider;
+    private final BlockingQueue<Row> buffer;
+    private final int batchMax;
+    private final long delay;
+    private final boolean block;
+    private final AtomicLong written;
+    private final AtomicLong failed;
+    private final AtomicLong dropped;
+    private final LatencyHistogram flushes;
+    private final Thread writer;
+
+    private volatile boolean closed;
+
+    private static final int DROP_WARNING_INTERVAL = 100;
+
+    private final static String KEY_BUFFER_SIZE = "db.writebehind.buffer.size";
+    private final static String KEY_BATCH_MAX = "db.writebehind.batch.max";
+    private final static String KEY_DELAY_MS = "db.writebehind.delay.millisecond";
+    private final static String KEY_OVERFLOW = "db.writebehind.overflow";
+
+    private static final Logger logger = Logger.getLogger( WriteBehindRowWriter.class );
+}
@@ -0,0 +1,17 @@
+package com.raverun.match.server.metrics;
+
+/**
+ * A runtime setting served by {@link MetricsEndpoint} under its own path:
+ * {@code GET} reads it, {@code POST} changes it if {@code metrics.http.controls} is true.
+ *
+ * @author Gavin Bong
+ */
+public interface Control
+{
+    /**
+     * @param query the query string of a {@code POST} (e.g. {@code count=4}), or null for a {@code GET}
+     * @return the response body, i.e. the setting as it now stands
+     * @throws IllegalArgumentException if {@code query} is not understood
+     */
+    String handle( String query );
+}
@@ -0,0 +1,11 @@
+package com.raverun.match.server.metrics;
+
+/**
+ * A value that is sampled when the metrics are scraped rather than maintained on the hot path
+ *
+ * @author Gavin Bong
+ */
+public interface Gauge
+{
+    long value();
+}
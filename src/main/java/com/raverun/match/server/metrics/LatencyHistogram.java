@@ -0,0 +1,85 @@
+package com.raverun.match.server.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Fixed-bucket histogram of durations. Recording is a couple of atomic increments,
+ * so it is cheap enough to call once per match task.
+ *
+ * @author Gavin Bong
+ */
+@ThreadSafe
+public class LatencyHistogram
+{
+    /**
+     * @param boundsMillis upper bounds of the buckets in ascending order; an implicit {@code +Inf} bucket follows
+     */
+    public LatencyHistogram( long... boundsMillis )
+    {
+        this.boundsNanos = new long[ boundsMillis.length ];
+        for( int i = 0; i < boundsMillis.length; i++ )
+        {
+            if( i > 0 && boundsMillis[ i ] <= boundsMillis[ i - 1 ] )
+                throw new IllegalArgumentException( "bucket bounds must be ascending" );
+
+            this.boundsNanos[ i ] = boundsMillis[ i ] * 1000000L;
+        }
+        this.buckets = new AtomicLongArray( boundsMillis.length + 1 );
+    }
+
+    public void record( long nanos )
+    {
+        int i = 0;
+        while( i < boundsNanos.length && nanos > boundsNanos[ i ] )
+            i++;
+
+        buckets.incrementAndGet( i );
+        sumNanos.addAndGet( nanos );
+    }
+
+    public long count()
+    {
+        long count = 0;
+        for( int i = 0; i < buckets.length(); i++ )
+            count += buckets.get( i );
+        return count;
+    }
+
+    /**
+     * Writes the cumulative buckets, sum and count of this histogram in the Prometheus text format
+     */
+    void writeTo( Appendable out, String name ) throws IOException
+    {
+        // a labelled name, e.g. x{lane="bulk"}, becomes x_bucket{lane="bulk",le="0.005"} and x_count{lane="bulk"}
+        final int brace = name.indexOf( '{' );
+        final String family = ( brace < 0 ) ? name : name.substring( 0, brace );
+        final String labels = ( brace < 0 ) ? "" : name.substring( brace + 1, name.length() - 1 );
+        final String bucket = family + "_bucket{" + ( labels.length() == 0 ? "" : labels + "," ) + "le=\"";
+        final String suffix = ( brace < 0 ) ? "" : "{" + labels + "}";
+
+        long cumulative = 0;
+        for( int i = 0; i < boundsNanos.length; i++ )
+        {
+            cumulative += buckets.get( i );
+            out.append( bucket ).append( seconds( boundsNanos[ i ] ) ).append( "\"} " )
+               .append( Long.toString( cumulative ) ).append( '\n' );
+        }
+        cumulative += buckets.get( boundsNanos.length );
+        out.append( bucket ).append( "+Inf\"} " ).append( Long.toString( cumulative ) ).append( '\n' );
+        out.append( family ).append( "_sum" ).append( suffix ).append( ' ' ).append( seconds( sumNanos.get() ) ).append( '\n' );
+        out.append( family ).append( "_count" ).append( suffix ).append( ' ' ).append( Long.toString( cumulative ) ).append( '\n' );
+    }
+
+    private static String seconds( long nanos )
+    {
+        return Double.toString( nanos / 1e9 );
+    }
+
+    private final long[] boundsNanos;
+    private final AtomicLongArray buckets;
+    private final AtomicLong sumNanos = new AtomicLong();
+}
@@ -0,0 +1,258 @@
+package com.raverun.match.server.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import com.google.inject.Singleton;
+
+/**
+ * In-process registry of the match server's operational metrics.
+ * <p>
+ * Counters and histograms are looked up once and then updated through the returned
+ * object, so the hot path never touches the registry itself. Gauges are either set
+ * by their owner or sampled when {@link #writeTo(Appendable)} runs.
+ * <p>
+ * A series name may carry labels, e.g. <code>match_lane_inflight{lane="bulk"}</code>;
+ * series of one family are written together under a single {@code HELP}/{@code TYPE} header.
+ *
+ * @author Gavin Bong
+ */
+@Singleton
+@ThreadSafe
+public class MatchMetrics
+{
+    public MatchMetrics()
+    {
+        consumed = counter( "match_messages_consumed_total", "Messages read from the match queue" );
+        deserializationFailures = counter( "match_deserialization_failures_total", "Messages dropped because their body could not be decoded" );
+        coalesced = counter( "match_coalesced_total", "Duplicate requests folded into one already in flight" );
+        requeued = counter( "match_requeued_total", "Failed requests put back on the queue" );
+        dropped = counter( "match_dropped_total", "Failed requests dropped after too many deliveries" );
+        taskFailures = counter( "match_task_failures_total", "Match tasks that threw" );
+        rejections = counter( "match_task_rejections_total", "Match tasks refused by the worker pool" );
+        timeouts = counter( "match_task_timeouts_total", "Match tasks cancelled for exceeding daemon.task.timeout.millisecond" );
+        expired = counter( "match_expired_total", "Requests dropped because their deadline passed before or while they were matched" );
+        reconnects = counter( "match_poller_restarts_total", "Pollers (and their broker connections) re-created by the daemon" );
+        queueMessages = gauge( "match_queue_messages", "Messages waiting in the match queue when last sampled" );
+        taskWait = histogram( "match_task_wait_seconds", "Time a dispatched match task waited for a worker thread", BUCKETS_MS );
+        taskLatency = histogram( "match_task_latency_seconds", "Time a match task took to run", BUCKETS_MS );
+    }
+
+    public AtomicLong consumed()
+    {
+        return consumed;
+    }
+
+    public AtomicLong deserializationFailures()
+    {
+        return deserializationFailures;
+    }
+
+    public AtomicLong coalesced()
+    {
+        return coalesced;
+    }
+
+    public AtomicLong requeued()
+    {
+        return requeued;
+    }
+
+    public AtomicLong dropped()
+    {
+        return dropped;
+    }
+
+    public AtomicLong taskFailures()
+    {
+        return taskFailures;
+    }
+
+    public AtomicLong rejections()
+    {
+        return rejections;
+    }
+
+    public AtomicLong timeouts()
+    {
+        return timeouts;
+    }
+
+    public AtomicLong expired()
+    {
+        return expired;
+    }
+
+    public AtomicLong reconnects()
+    {
+        return reconnects;
+    }
+
+    /**
+     * Queue lag, as reported by the broker
+     */
+    public AtomicLong queueMessages()
+    {
+        return queueMessages;
+    }
+
+    public LatencyHistogram taskWait()
+    {
+        return taskWait;
+    }
+
+    public LatencyHistogram taskLatency()
+    {
+        return taskLatency;
+    }
+
+    /**
+     * @return the counter registered under {@code name}, creating it if necessary
+     */
+    public synchronized AtomicLong counter( String name, String help )
+    {
+        Series existing = series.get( name );
+        if( existing != null )
+            return (AtomicLong)existing.metric;
+
+        AtomicLong counter = new AtomicLong();
+        series.put( name, new Series( name, help, COUNTER, counter ) );
+        return counter;
+    }
+
+    /**
+     * @return a gauge whose value is set by its owner, creating it if necessary
+     */
+    public synchronized AtomicLong gauge( String name, String help )
+    {
+        Series existing = series.get( name );
+        if( existing != null && existing.metric instanceof AtomicLong )
+            return (AtomicLong)existing.metric;
+
+        AtomicLong level = new AtomicLong();
+        series.put( name, new Series( name, help, GAUGE, level ) );
+        return level;
+    }
+
+    /**
+     * Registers a gauge that is sampled at scrape time, replacing any series of the same name
+     */
+    public synchronized void gauge( String name, String help, Gauge gauge )
+    {
+        series.put( name, new Series( name, help, GAUGE, gauge ) );
+    }
+
+    /**
+     * @return the histogram registered under {@code name}, creating it with {@code boundsMillis} if necessary
+     */
+    public synchronized LatencyHistogram histogram( String name, String help, long... boundsMillis )
+    {
+        Series existing = series.get( name );
+        if( existing != null )
+            return (LatencyHistogram)existing.metric;
+
+        LatencyHistogram histogram = new LatencyHistogram( boundsMillis );
+        series.put( name, new Series( name, help, HISTOGRAM, histogram ) );
+        return histogram;
+    }
+
+    /**
+     * Removes a series, typically a gauge whose owner has gone away
+     */
+    public synchronized void remove( String name )
+    {
+        series.remove( name );
+    }
+
+    /**
+     * Writes every series in the Prometheus text exposition format (version 0.0.4)
+     */
+    public void writeTo( Appendable out ) throws IOException
+    {
+        List<Series> snapshot;
+        synchronized( this )
+        {
+            snapshot = new ArrayList<Series>( series.values() );
+        }
+
+        Set<String> described = new HashSet<String>();
+        for( Series s : snapshot )
+        {
+            if( described.add( s.family ) )
+            {
+                out.append( "# HELP " ).append( s.family ).append( ' ' ).append( s.help ).append( '\n' );
+                out.append( "# TYPE " ).append( s.family ).append( ' ' ).append( s.type ).append( '\n' );
+            }
+
+            if( s.metric instanceof LatencyHistogram )
+            {
+                ((LatencyHistogram)s.metric).writeTo( out, s.name );
+                continue;
+            }
+
+            long value;
+            try
+            {
+                value = ( s.metric instanceof Gauge ) ? ((Gauge)s.metric).value() : ((AtomicLong)s.metric).get();
+            }
+            catch( RuntimeException e )
+            {
+                continue; // a gauge whose owner is shutting down
+            }
+            out.append( s.name ).append( ' ' ).append( Long.toString( value ) ).append( '\n' );
+        }
+    }
+
+    private static final class Series
+    {
+        Series( String name, String help, String type, Object metric )
+        {
+            final int brace = name.indexOf( '{' );
+            this.name = name;
+            this.family = brace < 0 ? name : name.substring( 0, brace );
+            this.help = help;
+            this.type = type;
+            this.metric = metric;
+        }
+
+        final String name;
+        final String family;
+        final String help;
+        final String type;
+        final Object metric; // AtomicLong, Gauge or LatencyHistogram
+    }
+
+    /**
+     * Sorted by name so that the series of a family are contiguous
+     */
+    @GuardedBy("this") private final Map<String, Series> series = new TreeMap<String, Series>();
+
+    private final AtomicLong consumed;
+    private final AtomicLong deserializationFailures;
+    private final AtomicLong coalesced;
+    private final AtomicLong requeued;
+    private final AtomicLong dropped;
+    private final AtomicLong taskFailures;
+    private final AtomicLong rejections;
+    private final AtomicLong timeouts;
+    private final AtomicLong expired;
+    private final AtomicLong reconnects;
+    private final AtomicLong queueMessages;
+    private final LatencyHistogram taskWait;
+    private final LatencyHistogram taskLatency;
+
+    public static final long[] BUCKETS_MS = { 1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 20000 };
+
+    private static final String COUNTER = "counter";
+    private static final String GAUGE = "gauge";
+    private static final String HISTOGRAM = "histogram";
+}
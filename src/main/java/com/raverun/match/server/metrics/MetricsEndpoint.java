@@ -0,0 +1,219 @@
+package com.raverun.match.server.metrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.raverun.shared.Configuration;
+
+/**
+ * Serves {@link MatchMetrics} over plain HTTP on {@code metrics.http.address:metrics.http.port}
+ * (loopback by default) for a Prometheus scraper or {@code curl}.
+ * <p>
+ * Scrapes are answered one at a time on a single daemon thread. Any path answers with
+ * the metrics, except those of a registered {@link Control}, which answer {@code GET} with the
+ * setting. Since controls change how the server runs and the endpoint does not authenticate,
+ * they accept {@code POST} only with {@code metrics.http.controls=true}; e.g.
+ * {@code curl -d '' 'http://127.0.0.1:9404/pollers?count=4'}. Keep {@code metrics.http.address}
+ * on loopback or a management network then. Disabled unless {@code metrics.http.port} is set.
+ *
+ * @author Gavin Bong
+ */
+@Singleton
+public class MetricsEndpoint implements Runnable
+{
+    @Inject
+    public MetricsEndpoint( Configuration config, MatchMetrics metrics )
+    {
+        this.metrics = metrics;
+        this.port = config.i( KEY_PORT, -1 );
+
+        String controls = config.s( KEY_CONTROLS );
+        this.controlsEnabled = ( controls != null && controls.trim().equalsIgnoreCase( "true" ) );
+
+        String address = config.s( KEY_ADDRESS );
+        this.address = ( address == null || address.trim().length() == 0 ) ? DEFAULT_ADDRESS : address.trim();
+    }
+
+    /**
+     * Serves {@code control} on {@code path} (e.g. {@code "/pollers"}), replacing any previous one
+     */
+    public void register( String path, Control control )
+    {
+        controls.put( path, control );
+    }
+
+    /**
+     * @throws IOException if the port cannot be bound
+     */
+    public synchronized void start() throws IOException
+    {
+        if( port < 0 || server != null )
+            return;
+
+        server = new ServerSocket();
+        server.setReuseAddress( true );
+        server.bind( new InetSocketAddress( InetAddress.getByName( address ), port ) );
+
+        Thread thread = new Thread( this, "metrics endpoint" );
+        thread.setDaemon( true );
+        thread.start();
+
+        logger.info( "serving metrics on http://" + address + ":" + server.getLocalPort() + "/metrics" +
+            ( controlsEnabled ? " | controls: " + controls.keySet() : "" ) );
+    }
+
+    public synchronized void stop()
+    {
+        if( server == null )
+            return;
+
+        try
+        {
+            server.close();
+        }
+        catch( IOException ignored ) {}
+        server = null;
+    }
+
+    public void run()
+    {
+        final ServerSocket listening = server;
+        while( !listening.isClosed() )
+        {
+            Socket socket = null;
+            try
+            {
+                socket = listening.accept();
+                socket.setSoTimeout( READ_TIMEOUT_MS );
+                serve( socket );
+            }
+            catch( SocketException se )
+            {
+                if( !listening.isClosed() )
+                    logger.warn( "metrics scrape failed", se );
+            }
+            catch( IOException e )
+            {
+                logger.warn( "metrics scrape failed", e );
+            }
+            finally
+            {
+                if( socket != null )
+                {
+                    try
+                    {
+                        socket.close();
+                    }
+                    catch( IOException ignored ) {}
+                }
+            }
+        }
+    }
+
+    private void serve( Socket socket ) throws IOException
+    {
+        BufferedReader in = new BufferedReader( new InputStreamReader( socket.getInputStream(), ASCII ) );
+        String requestLine = in.readLine();
+        if( requestLine == null )
+            return;
+
+        // drain the headers; a POST to a control carries its arguments in the query string, not the body
+        String header;
+        while( ( header = in.readLine() ) != null && header.length() > 0 )
+            ;
+
+        OutputStream out = socket.getOutputStream();
+        final boolean get = requestLine.startsWith( "GET " );
+        final boolean post = requestLine.startsWith( "POST " );
+
+        // "POST /pollers?count=4 HTTP/1.0"
+        String target = requestLine.substring( requestLine.indexOf( ' ' ) + 1 );
+        if( target.indexOf( ' ' ) >= 0 )
+            target = target.substring( 0, target.indexOf( ' ' ) );
+        final int mark = target.indexOf( '?' );
+        final String path = ( mark < 0 ) ? target : target.substring( 0, mark );
+        final String query = ( mark < 0 ) ? "" : target.substring( mark + 1 );
+
+        Control control = controls.get( path );
+        if( control != null && post && !controlsEnabled )
+        {
+            respond( out, "403 Forbidden", "text/plain; charset=utf-8", "controls are disabled; see " + KEY_CONTROLS + "\n" );
+            return;
+        }
+        if( control != null && ( get || post ) )
+        {
+            try
+            {
+                respond( out, "200 OK", "text/plain; charset=utf-8", control.handle( post ? query : null ) + "\n" );
+            }
+            catch( IllegalArgumentException e )
+            {
+                respond( out, "400 Bad Request", "text/plain; charset=utf-8", e.getMessage() + "\n" );
+            }
+            catch( IllegalStateException e )
+            {
+                respond( out, "409 Conflict", "text/plain; charset=utf-8", e.getMessage() + "\n" );
+            }
+            return;
+        }
+
+        if( !get )
+        {
+            out.write( ( "HTTP/1.0 405 Method Not Allowed\r\nAllow: GET\r\nContent-Length: 0\r\nConnection: close\r\n\r\n" ).getBytes( ASCII ) );
+            out.flush();
+            return;
+        }
+
+        StringBuilder body = new StringBuilder( 4096 );
+        metrics.writeTo( body );
+        respond( out, "200 OK", "text/plain; version=0.0.4; charset=utf-8", body.toString() );
+    }
+
+    private void respond( OutputStream out, String status, String contentType, String body ) throws IOException
+    {
+        byte[] bytes = body.getBytes( UTF8 );
+
+        StringBuilder head = new StringBuilder( 128 );
+        head.append( "HTTP/1.0 " ).append( status ).append( "\r\n" );
+        head.append( "Content-Type: " ).append( contentType ).append( "\r\n" );
+        head.append( "Content-Length: " ).append( bytes.length ).append( "\r\n" );
+        head.append( "Connection: close\r\n\r\n" );
+
+        out.write( head.toString().getBytes( ASCII ) );
+        out.write( bytes );
+        out.flush();
+    }
+
+    private final MatchMetrics metrics;
+    private final int port;
+    private final String address;
+    private final boolean controlsEnabled;
+
+    private final Map<String, Control> controls = new ConcurrentHashMap<String, Control>();
+
+    private volatile ServerSocket server;
+
+    private static final int READ_TIMEOUT_MS = 2000;
+    private static final String ASCII = "US-ASCII";
+    private static final String UTF8 = "UTF-8";
+    private static final String DEFAULT_ADDRESS = "127.0.0.1";
+
+    private final static String KEY_PORT = "metrics.http.port";
+    private final static String KEY_ADDRESS = "metrics.http.address";
+    private final static String KEY_CONTROLS = "metrics.http.controls";
+
+    private static final Logger logger = Logger.getLogger( MetricsEndpoint.class );
+}
@@ -0,0 +1,169 @@
+package com.raverun.match.server.impl;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.Sequence;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * @author Gavin Bong
+ */
+@RunWith(JMock.class)
+public class BatchingAcknowledgerTest
+{
+    @Before
+    public void setUp()
+    {
+        channel = context.mock( Channel.class );
+    }
+
+    @Test
+    public void ackedInOrderGoOutAsOneMultipleAck() throws IOException
+    {
+        BatchingAcknowledger acker = new BatchingAcknowledger( channel, 3, 1, TimeUnit.HOURS );
+        register( acker, 1, 2, 3 );
+
+        context.checking( new Expectations() {{
+            one( channel ).basicAck( 3L, true );
+        }});
+
+        acker.ack( 1 );
+        acker.ack( 2 );
+        acker.ack( 3 );
+    }
+
+    @Test
+    public void heldAcksWaitForTheBatch() throws IOException
+    {
+        BatchingAcknowledger acker = new BatchingAcknowledger( channel, 3, 1, TimeUnit.HOURS );
+        register( acker, 1, 2 );
+
+        context.checking( new Expectations() {{
+            never( channel ).basicAck( with( any( long.class ) ), with( any( boolean.class ) ) );
+        }});
+
+        acker.ack( 1 );
+        acker.ack( 2 );
+        acker.flushIfDue();
+    }
+
+    @Test
+    public void slowDeliveryDoesNotHoldBackLaterAcks() throws IOException
+    {
+        BatchingAcknowledger acker = new BatchingAcknowledger( channel, 3, 1, TimeUnit.HOURS );
+        register( acker, 1, 2, 3, 4, 5 );
+
+        final Sequence acks = context.sequence( "acks" );
+        context.checking( new Expectations() {{
+            one( channel ).basicAck( 1L, true ); inSequence( acks );
+            one( channel ).basicAck( 3L, false ); inSequence( acks );
+            one( channel ).basicAck( 4L, false ); inSequence( acks );
+        }});
+
+        acker.ack( 1 );
+        acker.ack( 3 );
+        acker.ack( 4 ); // 2 is still running
+    }
+
+    @Test
+    public void onlyTheGapIsLeftAfterAFlush() throws IOException
+    {
+        BatchingAcknowledger acker = new BatchingAcknowledger( channel, 2, 1, TimeUnit.HOURS );
+        register( acker, 1, 2, 3, 4 );
+
+        final Sequence acks = context.sequence( "acks" );
+        context.checking( new Expectations() {{
+            one( channel ).basicAck( 2L, false ); inSequence( acks );
+            one( channel ).basicAck( 3L, false ); inSequence( acks );
+            one( channel ).basicAck( 4L, true ); inSequence( acks );
+        }});
+
+        acker.ack( 2 );
+        acker.ack( 3 );
+        acker.ack( 1 );
+        acker.ack( 4 );
+    }
+
+    @Test
+    public void flushIfDueSendsAcksHeldPastTheWindow() throws IOException
+    {
+        BatchingAcknowledger acker = new BatchingAcknowledger( channel, 10, 0, TimeUnit.MILLISECONDS );
+        register( acker, 1, 2 );
+
+        context.checking( new Expectations() {{
+            one( channel ).basicAck( 2L, false );
+        }});
+
+        acker.ack( 2 );
+    }
+
+    @Test
+    public void unregisteredOrRepeatedAcksAreIgnored() throws IOException
+    {
+        BatchingAcknowledger acker = new BatchingAcknowledger( channel, 1, 1, TimeUnit.HOURS );
+        register( acker, 1 );
+
+        context.checking( new Expectations() {{
+            one( channel ).basicAck( 1L, true );
+        }});
+
+        acker.ack( 7 );
+        acker.ack( 1 );
+        acker.ack( 1 );
+        acker.flush();
+    }
+
+    @Test
+    public void requeuePublishesToTheQueueAndAcksTheOriginal() throws IOException
+    {
+        BatchingAcknowledger acker = new BatchingAcknowledger( channel, 2, 1, TimeUnit.HOURS );
+        register( acker, 1, 2, 3 );
+
+        final AMQP.BasicProperties props = new AMQP.BasicProperties();
+        final byte[] body = new byte[] { 1, 2, 3 };
+        final Sequence calls = context.sequence( "calls" );
+        context.checking( new Expectations() {{
+            one( channel ).basicPublish( "", "match", props, body ); inSequence( calls );
+            one( channel ).basicAck( 2L, false ); inSequence( calls );
+            one( channel ).basicAck( 3L, false ); inSequence( calls );
+        }});
+
+        acker.requeue( "match", new Envelope( 2, true, "match.exchange", "match" ), props, body );
+        acker.ack( 3 ); // 1 is still running
+    }
+
+    @Test
+    public void requeueOfASettledDeliveryIsIgnored() throws IOException
+    {
+        BatchingAcknowledger acker = new BatchingAcknowledger( channel, 1, 1, TimeUnit.HOURS );
+        register( acker, 1 );
+
+        context.checking( new Expectations() {{
+            one( channel ).basicAck( 1L, true );
+        }});
+
+        acker.ack( 1 );
+        acker.requeue( "match", new Envelope( 1, false, "match.exchange", "match" ), new AMQP.BasicProperties(), new byte[ 0 ] );
+    }
+
+    private static void register( BatchingAcknowledger acker, long... tags )
+    {
+        for( long tag : tags )
+            acker.register( tag );
+    }
+
+    private Channel channel;
+
+    private final Mockery context = new JUnit4Mockery();
+}
@@ -0,0 +1,244 @@
+package com.raverun.match.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.raverun.match.api.MatchParam;
+
+/**
+ * @author Gavin Bong
+ */
+public class CompactMatchParamCodecTest
+{
+    @Before
+    public void setUp()
+    {
+        codec = new CompactMatchParamCodec( Param.class );
+    }
+
+    @Test
+    public void everyKindRoundTrips()
+    {
+        Param param = filled();
+
+        Param decoded = decode( codec.encode( param ) );
+
+        assertEquals( true, decoded.isWireFlag() );
+        assertEquals( (byte)-7, decoded.getWireOctet() );
+        assertEquals( (short)-300, decoded.getWireSmall() );
+        assertEquals( '\u00e9', decoded.getWireLetter() );
+        assertEquals( Integer.MIN_VALUE, decoded.getWireCount() );
+        assertEquals( Long.MAX_VALUE, decoded.getWireId() );
+        assertEquals( -1.5f, decoded.getWireRatio(), 0f );
+        assertEquals( Math.PI, decoded.getWireScore(), 0d );
+        assertEquals( "caf\u00e9 \u4e16\u754c", decoded.getWireName() );
+        assertEquals( new Date( 1234567890123L ), decoded.getWireWhen() );
+        assertEquals( TimeUnit.SECONDS, decoded.getWireUnit() );
+        assertEquals( Boolean.FALSE, decoded.getWireFlagObject() );
+        assertEquals( Byte.valueOf( (byte)1 ), decoded.getWireOctetObject() );
+        assertEquals( Short.valueOf( (short)2 ), decoded.getWireSmallObject() );
+        assertEquals( Character.valueOf( 'x' ), decoded.getWireLetterObject() );
+        assertEquals( Integer.valueOf( -4 ), decoded.getWireCountObject() );
+        assertEquals( Long.valueOf( Long.MIN_VALUE ), decoded.getWireIdObject() );
+        assertEquals( Float.valueOf( Float.NaN ), decoded.getWireRatioObject() );
+        assertEquals( Double.valueOf( Double.NEGATIVE_INFINITY ), decoded.getWireScoreObject() );
+    }
+
+    @Test
+    public void nullObjectPropertiesRoundTrip()
+    {
+        Param decoded = decode( codec.encode( new Param() ) );
+
+        assertNull( decoded.getWireName() );
+        assertNull( decoded.getWireWhen() );
+        assertNull( decoded.getWireUnit() );
+        assertNull( decoded.getWireFlagObject() );
+        assertNull( decoded.getWireOctetObject() );
+        assertNull( decoded.getWireSmallObject() );
+        assertNull( decoded.getWireLetterObject() );
+        assertNull( decoded.getWireCountObject() );
+        assertNull( decoded.getWireIdObject() );
+        assertNull( decoded.getWireRatioObject() );
+        assertNull( decoded.getWireScoreObject() );
+    }
+
+    @Test
+    public void decodesARegionOfALargerBuffer()
+    {
+        byte[] body = codec.encode( filled() );
+        byte[] buffer = new byte[ body.length + 5 ];
+        System.arraycopy( body, 0, buffer, 3, body.length );
+
+        Param decoded = (Param)codec.decode( buffer, 3, body.length );
+
+        assertEquals( Long.MAX_VALUE, decoded.getWireId() );
+        assertEquals( TimeUnit.SECONDS, decoded.getWireUnit() );
+    }
+
+    @Test
+    public void truncatedBodiesAreRefused()
+    {
+        byte[] body = codec.encode( filled() );
+
+        for( int length = 0; length < body.length; length++ )
+        {
+            try
+            {
+                codec.decode( body, 0, length );
+                fail( "decoded the first " + length + " of " + body.length + " bytes" );
+            }
+            catch( IllegalArgumentException expected ) {}
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void trailingBytesAreRefused()
+    {
+        byte[] body = codec.encode( filled() );
+        byte[] longer = new byte[ body.length + 1 ];
+        System.arraycopy( body, 0, longer, 0, body.length );
+
+        codec.decode( longer, 0, longer.length );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anotherVersionIsRefused()
+    {
+        byte[] body = codec.encode( filled() );
+        body[ 0 ]++;
+
+        decode( body );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aBodyOfOtherPropertiesIsRefused()
+    {
+        Other other = new Other();
+        other.setWireName( "other" );
+
+        decode( new CompactMatchParamCodec( Other.class ).encode( other ) );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aRegionOutsideTheBufferIsRefused()
+    {
+        byte[] body = codec.encode( filled() );
+
+        codec.decode( body, 1, body.length );
+    }
+
+    private Param decode( byte[] body )
+    {
+        return (Param)codec.decode( body, 0, body.length );
+    }
+
+    private static Param filled()
+    {
+        Param param = new Param();
+        param.setWireFlag( true );
+        param.setWireOctet( (byte)-7 );
+        param.setWireSmall( (short)-300 );
+        param.setWireLetter( '\u00e9' );
+        param.setWireCount( Integer.MIN_VALUE );
+        param.setWireId( Long.MAX_VALUE );
+        param.setWireRatio( -1.5f );
+        param.setWireScore( Math.PI );
+        param.setWireName( "caf\u00e9 \u4e16\u754c" );
+        param.setWireWhen( new Date( 1234567890123L ) );
+        param.setWireUnit( TimeUnit.SECONDS );
+        param.setWireFlagObject( Boolean.FALSE );
+        param.setWireOctetObject( Byte.valueOf( (byte)1 ) );
+        param.setWireSmallObject( Short.valueOf( (short)2 ) );
+        param.setWireLetterObject( Character.valueOf( 'x' ) );
+        param.setWireCountObject( Integer.valueOf( -4 ) );
+        param.setWireIdObject( Long.valueOf( Long.MIN_VALUE ) );
+        param.setWireRatioObject( Float.valueOf( Float.NaN ) );
+        param.setWireScoreObject( Double.valueOf( Double.NEGATIVE_INFINITY ) );
+        return param;
+    }
+
+    /**
+     * A property of every type the format holds, primitive and boxed
+     */
+    public static class Param extends MatchParam
+    {
+        public boolean isWireFlag() { return flag; }
+        public void setWireFlag( boolean flag ) { this.flag = flag; }
+        public byte getWireOctet() { return octet; }
+        public void setWireOctet( byte octet ) { this.octet = octet; }
+        public short getWireSmall() { return small; }
+        public void setWireSmall( short small ) { this.small = small; }
+        public char getWireLetter() { return letter; }
+        public void setWireLetter( char letter ) { this.letter = letter; }
+        public int getWireCount() { return count; }
+        public void setWireCount( int count ) { this.count = count; }
+        public long getWireId() { return id; }
+        public void setWireId( long id ) { this.id = id; }
+        public float getWireRatio() { return ratio; }
+        public void setWireRatio( float ratio ) { this.ratio = ratio; }
+        public double getWireScore() { return score; }
+        public void setWireScore( double score ) { this.score = score; }
+        public String getWireName() { return name; }
+        public void setWireName( String name ) { this.name = name; }
+        public Date getWireWhen() { return when; }
+        public void setWireWhen( Date when ) { this.when = when; }
+        public TimeUnit getWireUnit() { return unit; }
+        public void setWireUnit( TimeUnit unit ) { this.unit = unit; }
+        public Boolean getWireFlagObject() { return flagObject; }
+        public void setWireFlagObject( Boolean flagObject ) { this.flagObject = flagObject; }
+        public Byte getWireOctetObject() { return octetObject; }
+        public void setWireOctetObject( Byte octetObject ) { this.octetObject = octetObject; }
+        public Short getWireSmallObject() { return smallObject; }
+        public void setWireSmallObject( Short smallObject ) { this.smallObject = smallObject; }
+        public Character getWireLetterObject() { return letterObject; }
+        public void setWireLetterObject( Character letterObject ) { this.letterObject = letterObject; }
+        public Integer getWireCountObject() { return countObject; }
+        public void setWireCountObject( Integer countObject ) { this.countObject = countObject; }
+        public Long getWireIdObject() { return idObject; }
+        public void setWireIdObject( Long idObject ) { this.idObject = idObject; }
+        public Float getWireRatioObject() { return ratioObject; }
+        public void setWireRatioObject( Float ratioObject ) { this.ratioObject = ratioObject; }
+        public Double getWireScoreObject() { return scoreObject; }
+        public void setWireScoreObject( Double scoreObject ) { this.scoreObject = scoreObject; }
+
+        private boolean flag;
+        private byte octet;
+        private short small;
+        private char letter;
+        private int count;
+        private long id;
+        private float ratio;
+        private double score;
+        private String name;
+        private Date when;
+        private TimeUnit unit;
+        private Boolean flagObject;
+        private Byte octetObject;
+        private Short smallObject;
+        private Character letterObject;
+        private Integer countObject;
+        private Long idObject;
+        private Float ratioObject;
+        private Double scoreObject;
+    }
+
+    /**
+     * Written by a producer that knows other properties
+     */
+    public static class Other extends MatchParam
+    {
+        public String getWireName() { return name; }
+        public void setWireName( String name ) { this.name = name; }
+
+        private String name;
+    }
+
+    private CompactMatchParamCodec codec;
+}